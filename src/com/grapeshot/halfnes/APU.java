@@ -18,7 +18,6 @@ public class APU {
     public final NES nes;
     CPU cpu;
     CPURAM cpuram;
-    public int sprdma_count;
     private int apucycle = 0, remainder = 0;
     private int[] noiseperiod;
     // different for PAL
@@ -31,6 +30,8 @@ public class APU {
     private int dckiller = 0;
     private int lpaccum = 0;
     private boolean apuintflag = true, statusdmcint = false, statusframeint = false;
+    //IRQ lines of the frame counter and the DMC
+    private final int frameirq, dmcirqline;
     private int framectr = 0, ctrmode = 4;
     private final boolean[] lenCtrEnable = {true, true, true, true};
     private final int[] volume = new int[4];
@@ -40,6 +41,8 @@ public class APU {
             dmcvalue = 0, dmcsamplelength = 1, dmcsamplesleft = 0,
             dmcstartaddr = 0xc000, dmcaddr = 0xc000, dmcbitsleft = 8;
     private boolean dmcsilence = true, dmcirq = false, dmcloop = false, dmcBufferEmpty = true;
+    //buffer is empty and the cpu has been asked to fetch the next byte
+    private boolean dmcfetching = false;
     //length ctr instance variables
     private final int[] lengthctr = {0, 0, 0, 0};
     private final static int[] lenctrload = {10, 254, 20, 2, 40, 4, 80, 6,
@@ -71,6 +74,8 @@ public class APU {
         this.nes = nes;
         this.cpu = cpu;
         this.cpuram = cpuram;
+        frameirq = cpu.irqSource();
+        dmcirqline = cpu.irqSource();
         setParameters();
     }
 
@@ -154,7 +159,7 @@ public class APU {
                         | (statusdmcint ? 128 : 0);
                 if (statusframeint) {
                     //System.err.println("Frame interrupt ack at " + cpu.cycles);
-                    --cpu.interrupt;
+                    cpu.releaseIRQ(frameirq);
                     statusframeint = false;
                 }
 
@@ -318,7 +323,7 @@ public class APU {
                 dmcloop = ((data & (utils.BIT6)) != 0);
                 dmcrate = dmcperiods[data & 0xf];
                 if (!dmcirq && statusdmcint) {
-                    --cpu.interrupt;
+                    cpu.releaseIRQ(dmcirqline);
                     statusdmcint = false;
                 }
                 //System.err.println(dmcirq ? "dmc irq on" : "dmc irq off");
@@ -333,12 +338,8 @@ public class APU {
                 dmcsamplelength = (data << 4) + 1;
                 break;
             case 0x14:
-                //sprite dma
-                for (int i = 0; i < 256; ++i) {
-                    cpuram.write(0x2004, cpuram.read((data << 8) + i));
-                }
-                //account for time stolen from cpu
-                sprdma_count = 2;
+                //sprite dma; the cpu does the copy and halts for it
+                cpu.spriteDMA(data);
                 break;
             case 0x15:
                 //status register
@@ -361,7 +362,7 @@ public class APU {
                     dmcsilence = true;
                 }
                 if (statusdmcint) {
-                    --cpu.interrupt;
+                    cpu.releaseIRQ(dmcirqline);
                     statusdmcint = false;
                 }
                 break;
@@ -379,7 +380,7 @@ public class APU {
                 framectrdiv = framectrreload + 8; //Why +8?
                 if (apuintflag && statusframeint) {
                     statusframeint = false;
-                    --cpu.interrupt;
+                    cpu.releaseIRQ(frameirq);
                     //System.err.println("Frame interrupt off at " + cpu.cycles);
                 }
                 if (ctrmode == 5) {
@@ -516,7 +517,7 @@ public class APU {
             setsweep();
         }
         if (!apuintflag && (framectr == 3) && (ctrmode == 4) && !statusframeint) {
-            ++cpu.interrupt;
+            cpu.assertIRQ(frameirq);
             //System.err.println("frame interrupt set at " + cpu.cycles);
             statusframeint = true;
 
@@ -533,9 +534,20 @@ public class APU {
         //System.err.println("setvolumes " + volume[1]);
     }
 
+    /**
+     * @return true while the DMC still has sample bytes to fetch, i.e. can
+     * still steal cpu cycles
+     */
+    public final boolean dmcActive() {
+        return dmcsamplesleft > 0;
+    }
+
     private void clockdmc() {
-        if (dmcBufferEmpty && dmcsamplesleft > 0) {
-            dmcfillbuffer();
+        if (dmcBufferEmpty && dmcsamplesleft > 0 && !dmcfetching) {
+            //the fetch is DMA that halts the cpu, so the cpu does it
+            //and calls dmcfillbuffer() when the byte is read
+            dmcfetching = true;
+            cpu.requestDMC();
         }
         dmcpos = (dmcpos + 1) % dmcrate;
         if (dmcpos == 0) {
@@ -565,13 +577,11 @@ public class APU {
         }
     }
 
-    private void dmcfillbuffer() {
+    final void dmcfillbuffer() {
+        dmcfetching = false;
         if (dmcsamplesleft > 0) {
             dmcbuffer = cpuram.read(dmcaddr++);
             dmcBufferEmpty = false;
-            cpu.stealcycles(4);
-            //DPCM Does steal cpu cycles - this should actually vary between 1-4
-            //can't do this properly without a cycle accurate cpu/ppu
             if (dmcaddr > 0xffff) {
                 dmcaddr = 0x8000;
             }
@@ -584,7 +594,7 @@ public class APU {
                     //last byte, not when coming back AFTER reading the last byte
                     //and finding that there are no more bytes left to read.
                     //that meant all dmc timing was too long.
-                    ++cpu.interrupt;
+                    cpu.assertIRQ(dmcirqline);
                     statusdmcint = true;
                     //System.err.println("dmc irq fire");
                 }
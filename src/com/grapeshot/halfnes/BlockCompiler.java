@@ -0,0 +1,662 @@
+/*
+ * HalfNES by Andrew Hoffman
+ * Licensed under the GNU GPL Version 3. See LICENSE file
+ */
+package com.grapeshot.halfnes;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Translates straight runs of 6502 code in PRG ROM into JVM classes so hot
+ * code can skip the interpreter.
+ *
+ * Only instructions that can't touch anything but the CPU registers and
+ * internal RAM are compiled: loads, stores, arithmetic, logic, shifts,
+ * compares, transfers, increments and flag clears/sets, addressing internal
+ * RAM with zero page or absolute (indexed or not) modes. A block stops before
+ * anything else (branches, jumps, the stack, I/O or cartridge addresses,
+ * interrupt flag changes) and before the end of the 1K PRG bank it starts
+ * in, and the interpreter carries on from there. The generated code has no
+ * branches at all: flags are computed arithmetically, with zero and negative
+ * kept as the last result until the block ends.
+ */
+final class BlockCompiler {
+
+    //longest block, in instructions
+    final static int MAX_INSTRUCTIONS = 16;
+    //kinds of instruction
+    private final static int LDA = 1, LDX = 2, LDY = 3, STA = 4, STX = 5,
+            STY = 6, ADC = 7, SBC = 8, AND = 9, ORA = 10, EOR = 11, CMP = 12,
+            CPX = 13, CPY = 14, BIT = 15, INC = 16, DEC = 17, ASL = 18,
+            LSR = 19, ROL = 20, ROR = 21, TAX = 22, TAY = 23, TXA = 24,
+            TYA = 25, TSX = 26, TXS = 27, INX = 28, INY = 29, DEX = 30,
+            DEY = 31, CLC = 32, SEC = 33, CLV = 34, NOP = 35;
+    //addressing modes
+    private final static int IMP = 0, IMM = 1, ZP = 2, ZPX = 3, ZPY = 4,
+            ABS = 5, ABSX = 6, ABSY = 7;
+    private final static int[] SIZE = {1, 2, 2, 2, 2, 3, 3, 3};
+    //per opcode: kind | mode << 8 | cycles << 12 | page crossing penalty << 16
+    private final static int[] OPS = ops();
+    //local variable slots in the generated run() method
+    private final static int REGS = 1, WRAM = 2, A = 3, X = 4, Y = 5, S = 6,
+            C = 7, V = 8, ZS = 9, NS = 10, CYC = 11, T = 12, U = 13, W = 14;
+    //bytecodes used
+    private final static int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11,
+            ILOAD = 0x15, ALOAD = 0x19, ISTORE = 0x36, IALOAD = 0x2e,
+            IASTORE = 0x4f, DUP = 0x59, IADD = 0x60, ISUB = 0x64, ISHL = 0x78,
+            ISHR = 0x7a, IAND = 0x7e, IOR = 0x80, IXOR = 0x82, IRETURN = 0xac,
+            RETURN = 0xb1, INVOKESPECIAL = 0xb7;
+    private final static String INTERFACE = CompiledBlock.class.getName().replace('.', '/');
+
+    private final BlockLoader loader = new BlockLoader();
+    private int classcount = 0;
+    private ByteArrayOutputStream code;
+
+    /**
+     * Compiles the code starting at prg[offset].
+     *
+     * @param prg the PRG ROM
+     * @param offset where the block starts in prg
+     * @return the block, or null if fewer than 2 instructions in a row there
+     * can be compiled
+     */
+    CompiledBlock compile(final int[] prg, final int offset) {
+        //first find out how far the block goes
+        final int bankend = (offset | 0x3ff) + 1;
+        int end = offset, count = 0, cycles = 0, crossings = 0;
+        while (count < MAX_INSTRUCTIONS && end < bankend) {
+            final int op = OPS[prg[end]];
+            if (op == 0) {
+                break;
+            }
+            final int mode = (op >> 8) & 0xf;
+            if (end + SIZE[mode] > bankend || !inRAM(prg, end, mode)) {
+                break;
+            }
+            cycles += (op >> 12) & 0xf;
+            crossings += op >> 16;
+            end += SIZE[mode];
+            ++count;
+        }
+        if (count < 2) {
+            return null;
+        }
+
+        code = new ByteArrayOutputStream();
+        for (int i = 0; i < 8; ++i) {
+            op(ALOAD, REGS);
+            push(i);
+            op(IALOAD);
+            op(ISTORE, A + i);
+        }
+        push(cycles);
+        op(ISTORE, CYC);
+        for (int pc = offset; pc < end; pc += SIZE[(OPS[prg[pc]] >> 8) & 0xf]) {
+            instruction(prg, pc);
+        }
+        for (int i = 0; i < 8; ++i) {
+            op(ALOAD, REGS);
+            push(i);
+            op(ILOAD, A + i);
+            op(IASTORE);
+        }
+        op(ILOAD, CYC);
+        op(IRETURN);
+
+        final String name = "halfnes/jit/Block" + (classcount++);
+        try {
+            return (CompiledBlock) loader.define(name.replace('/', '.'),
+                    classfile(name, code.toByteArray(), end - offset, cycles + crossings))
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            //should never happen, but the interpreter can always take over
+            System.err.println("Couldn't compile block at PRG offset "
+                    + utils.hex(offset) + ": " + e);
+            return null;
+        }
+    }
+
+    private static boolean inRAM(final int[] prg, final int pc, final int mode) {
+        switch (mode) {
+            case ABS:
+                return prg[pc + 1] + (prg[pc + 2] << 8) < 0x2000;
+            case ABSX:
+            case ABSY:
+                //indexing can add at most 0xff
+                return prg[pc + 1] + (prg[pc + 2] << 8) <= 0x1f00;
+            default:
+                //zero page or no memory access
+                return true;
+        }
+    }
+
+    private void instruction(final int[] prg, final int pc) {
+        final int op = OPS[prg[pc]];
+        final int kind = op & 0xff;
+        final int mode = (op >> 8) & 0xf;
+        final int arg = (mode == IMP) ? 0
+                : (SIZE[mode] == 2) ? prg[pc + 1]
+                : prg[pc + 1] + (prg[pc + 2] << 8);
+        if ((op >> 16) != 0) {
+            //page crossing penalty: CYC += ((arg & 0xff) + index) >> 8
+            push(arg & 0xff);
+            op(ILOAD, mode == ABSX ? X : Y);
+            op(IADD);
+            push(8);
+            op(ISHR);
+            op(ILOAD, CYC);
+            op(IADD);
+            op(ISTORE, CYC);
+        }
+        switch (kind) {
+            case LDA:
+            case LDX:
+            case LDY:
+                value(mode, arg);
+                op(DUP);
+                op(ISTORE, kind == LDA ? A : kind == LDX ? X : Y);
+                setNZ();
+                break;
+            case STA:
+            case STX:
+            case STY:
+                op(ALOAD, WRAM);
+                index(mode, arg);
+                op(ILOAD, kind == STA ? A : kind == STX ? X : Y);
+                op(IASTORE);
+                break;
+            case AND:
+            case ORA:
+            case EOR:
+                op(ILOAD, A);
+                value(mode, arg);
+                op(kind == AND ? IAND : kind == ORA ? IOR : IXOR);
+                op(DUP);
+                op(ISTORE, A);
+                setNZ();
+                break;
+            case ADC:
+                //U = A + T + C
+                value(mode, arg);
+                op(ISTORE, T);
+                op(ILOAD, A);
+                op(ILOAD, T);
+                op(IADD);
+                op(ILOAD, C);
+                op(IADD);
+                op(ISTORE, U);
+                //C = U >> 8
+                op(ILOAD, U);
+                push(8);
+                op(ISHR);
+                op(ISTORE, C);
+                //V = (~(A ^ T) & (A ^ U) & 0x80) >> 7
+                op(ILOAD, A);
+                op(ILOAD, T);
+                op(IXOR);
+                push(-1);
+                op(IXOR);
+                overflow();
+                break;
+            case SBC:
+                //U = A - T + C - 1
+                value(mode, arg);
+                op(ISTORE, T);
+                op(ILOAD, A);
+                op(ILOAD, T);
+                op(ISUB);
+                op(ILOAD, C);
+                op(IADD);
+                push(1);
+                op(ISUB);
+                op(ISTORE, U);
+                //C = (U >> 8) + 1, i.e. 0 if U went negative
+                op(ILOAD, U);
+                push(8);
+                op(ISHR);
+                push(1);
+                op(IADD);
+                op(ISTORE, C);
+                //V = ((A ^ T) & (A ^ U) & 0x80) >> 7
+                op(ILOAD, A);
+                op(ILOAD, T);
+                op(IXOR);
+                overflow();
+                break;
+            case CMP:
+            case CPX:
+            case CPY:
+                //result = reg - value, carry set if it's not negative
+                op(ILOAD, kind == CMP ? A : kind == CPX ? X : Y);
+                value(mode, arg);
+                op(ISUB);
+                op(DUP);
+                op(DUP);
+                op(ISTORE, ZS);
+                op(ISTORE, NS);
+                push(31);
+                op(ISHR);
+                push(1);
+                op(IADD);
+                op(ISTORE, C);
+                break;
+            case BIT:
+                value(mode, arg);
+                op(ISTORE, T);
+                op(ILOAD, T);
+                op(ILOAD, A);
+                op(IAND);
+                op(ISTORE, ZS);
+                op(ILOAD, T);
+                op(ISTORE, NS);
+                op(ILOAD, T);
+                push(6);
+                op(ISHR);
+                push(1);
+                op(IAND);
+                op(ISTORE, V);
+                break;
+            case INC:
+            case DEC:
+            case ASL:
+            case LSR:
+            case ROL:
+            case ROR:
+                if (mode == IMP) {
+                    readModifyWrite(kind, A);
+                    op(ILOAD, U);
+                    op(DUP);
+                    op(ISTORE, A);
+                    setNZ();
+                } else {
+                    index(mode, arg);
+                    op(ISTORE, T);
+                    op(ALOAD, WRAM);
+                    op(ILOAD, T);
+                    op(IALOAD);
+                    op(ISTORE, W);
+                    readModifyWrite(kind, W);
+                    op(ALOAD, WRAM);
+                    op(ILOAD, T);
+                    op(ILOAD, U);
+                    op(IASTORE);
+                    op(ILOAD, U);
+                    setNZ();
+                }
+                break;
+            case TAX:
+            case TAY:
+            case TXA:
+            case TYA:
+            case TSX:
+                op(ILOAD, kind == TAX || kind == TAY ? A
+                        : kind == TXA ? X : kind == TYA ? Y : S);
+                op(DUP);
+                op(ISTORE, kind == TAX || kind == TSX ? X
+                        : kind == TAY ? Y : A);
+                setNZ();
+                break;
+            case TXS:
+                op(ILOAD, X);
+                op(ISTORE, S);
+                break;
+            case INX:
+            case INY:
+            case DEX:
+            case DEY:
+                op(ILOAD, kind == INX || kind == DEX ? X : Y);
+                push(1);
+                op(kind == INX || kind == INY ? IADD : ISUB);
+                push(0xff);
+                op(IAND);
+                op(DUP);
+                op(ISTORE, kind == INX || kind == DEX ? X : Y);
+                setNZ();
+                break;
+            case CLC:
+            case SEC:
+                push(kind == SEC ? 1 : 0);
+                op(ISTORE, C);
+                break;
+            case CLV:
+                push(0);
+                op(ISTORE, V);
+                break;
+            case NOP:
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Computes U = kind(src) for the increments and shifts, and C for the
+     * shifts.
+     */
+    private void readModifyWrite(final int kind, final int src) {
+        switch (kind) {
+            case INC:
+            case DEC:
+                op(ILOAD, src);
+                push(1);
+                op(kind == INC ? IADD : ISUB);
+                push(0xff);
+                op(IAND);
+                op(ISTORE, U);
+                break;
+            case ASL:
+            case ROL:
+                //U = (src << 1 | (ROL ? C : 0)) & 0xff, C = src >> 7
+                op(ILOAD, src);
+                push(1);
+                op(ISHL);
+                if (kind == ROL) {
+                    op(ILOAD, C);
+                    op(IOR);
+                }
+                push(0xff);
+                op(IAND);
+                op(ISTORE, U);
+                op(ILOAD, src);
+                push(7);
+                op(ISHR);
+                op(ISTORE, C);
+                break;
+            case LSR:
+            case ROR:
+                //U = src >> 1 | (ROR ? C << 7 : 0), C = src & 1
+                op(ILOAD, src);
+                push(1);
+                op(ISHR);
+                if (kind == ROR) {
+                    op(ILOAD, C);
+                    push(7);
+                    op(ISHL);
+                    op(IOR);
+                }
+                op(ISTORE, U);
+                op(ILOAD, src);
+                push(1);
+                op(IAND);
+                op(ISTORE, C);
+                break;
+        }
+    }
+
+    /**
+     * With (A ^ T) or its complement on the stack, sets V from bit 7 of that
+     * and of A ^ U, then A = U & 0xff and the zero/negative sources.
+     */
+    private void overflow() {
+        op(ILOAD, A);
+        op(ILOAD, U);
+        op(IXOR);
+        op(IAND);
+        push(0x80);
+        op(IAND);
+        push(7);
+        op(ISHR);
+        op(ISTORE, V);
+        op(ILOAD, U);
+        push(0xff);
+        op(IAND);
+        op(DUP);
+        op(ISTORE, A);
+        setNZ();
+    }
+
+    /**
+     * Pops the result on the stack into the zero and negative flag sources.
+     */
+    private void setNZ() {
+        op(DUP);
+        op(ISTORE, ZS);
+        op(ISTORE, NS);
+    }
+
+    /**
+     * Pushes the operand value.
+     */
+    private void value(final int mode, final int arg) {
+        if (mode == IMM) {
+            push(arg);
+        } else {
+            op(ALOAD, WRAM);
+            index(mode, arg);
+            op(IALOAD);
+        }
+    }
+
+    /**
+     * Pushes the internal RAM index the operand refers to.
+     */
+    private void index(final int mode, final int arg) {
+        switch (mode) {
+            case ZP:
+                push(arg);
+                break;
+            case ZPX:
+            case ZPY:
+                push(arg);
+                op(ILOAD, mode == ZPX ? X : Y);
+                op(IADD);
+                push(0xff);
+                op(IAND);
+                break;
+            case ABS:
+                push(arg & 0x7ff);
+                break;
+            case ABSX:
+            case ABSY:
+                push(arg);
+                op(ILOAD, mode == ABSX ? X : Y);
+                op(IADD);
+                push(0x7ff);
+                op(IAND);
+                break;
+        }
+    }
+
+    private void push(final int value) {
+        if (value >= -1 && value <= 5) {
+            code.write(ICONST_0 + value);
+        } else if (value >= -128 && value <= 127) {
+            code.write(BIPUSH);
+            code.write(value);
+        } else {
+            code.write(SIPUSH);
+            code.write(value >> 8);
+            code.write(value);
+        }
+    }
+
+    private void op(final int opcode) {
+        code.write(opcode);
+    }
+
+    private void op(final int opcode, final int local) {
+        code.write(opcode);
+        code.write(local);
+    }
+
+    /**
+     * Wraps the body of run() in a class implementing CompiledBlock. Uses
+     * class file version 49 so no stack map frames are needed (there are no
+     * branches anyway).
+     */
+    private static byte[] classfile(final String name, final byte[] run,
+            final int length, final int maxcycles) {
+        final ByteArrayOutputStream b = new ByteArrayOutputStream();
+        u4(b, 0xCAFEBABE);
+        u2(b, 0);
+        u2(b, 49);
+        //constant pool
+        u2(b, 17);
+        utf8(b, name); //1
+        u1(b, 7);
+        u2(b, 1); //2 this class
+        utf8(b, "java/lang/Object"); //3
+        u1(b, 7);
+        u2(b, 3); //4 super class
+        utf8(b, INTERFACE); //5
+        u1(b, 7);
+        u2(b, 5); //6 interface
+        utf8(b, "<init>"); //7
+        utf8(b, "()V"); //8
+        u1(b, 12);
+        u2(b, 7);
+        u2(b, 8); //9 name and type of Object()
+        u1(b, 10);
+        u2(b, 4);
+        u2(b, 9); //10 Object()
+        utf8(b, "run"); //11
+        utf8(b, "([I[I)I"); //12
+        utf8(b, "Code"); //13
+        utf8(b, "length"); //14
+        utf8(b, "()I"); //15
+        utf8(b, "maxCycles"); //16
+        //public final class implementing CompiledBlock
+        u2(b, 0x0031);
+        u2(b, 2);
+        u2(b, 4);
+        u2(b, 1);
+        u2(b, 6);
+        u2(b, 0); //fields
+        u2(b, 4); //methods
+        method(b, 7, 8, 1, 1, new byte[]{0x2a, (byte) INVOKESPECIAL, 0, 10, (byte) RETURN});
+        method(b, 11, 12, 8, W + 1, run);
+        method(b, 14, 15, 1, 1, new byte[]{BIPUSH, (byte) length, (byte) IRETURN});
+        method(b, 16, 15, 1, 1, new byte[]{SIPUSH, (byte) (maxcycles >> 8), (byte) maxcycles, (byte) IRETURN});
+        u2(b, 0); //attributes
+        return b.toByteArray();
+    }
+
+    private static void method(final ByteArrayOutputStream b, final int name,
+            final int descriptor, final int maxstack, final int maxlocals, final byte[] code) {
+        u2(b, 0x0001);
+        u2(b, name);
+        u2(b, descriptor);
+        u2(b, 1);
+        u2(b, 13);
+        u4(b, 12 + code.length);
+        u2(b, maxstack);
+        u2(b, maxlocals);
+        u4(b, code.length);
+        b.write(code, 0, code.length);
+        u2(b, 0); //exceptions
+        u2(b, 0); //attributes
+    }
+
+    private static void utf8(final ByteArrayOutputStream b, final String s) {
+        //all names here are plain ascii
+        u1(b, 1);
+        u2(b, s.length());
+        for (int i = 0; i < s.length(); ++i) {
+            b.write(s.charAt(i));
+        }
+    }
+
+    private static void u1(final ByteArrayOutputStream b, final int v) {
+        b.write(v);
+    }
+
+    private static void u2(final ByteArrayOutputStream b, final int v) {
+        b.write(v >> 8);
+        b.write(v);
+    }
+
+    private static void u4(final ByteArrayOutputStream b, final int v) {
+        u2(b, v >>> 16);
+        u2(b, v);
+    }
+
+    private static int[] ops() {
+        final int[] t = new int[256];
+        //loads and stores
+        def(t, LDA, IMM, 0xa9, 2, ZP, 0xa5, 3, ZPX, 0xb5, 4, ABS, 0xad, 4);
+        def(t, LDX, IMM, 0xa2, 2, ZP, 0xa6, 3, ZPY, 0xb6, 4, ABS, 0xae, 4);
+        def(t, LDY, IMM, 0xa0, 2, ZP, 0xa4, 3, ZPX, 0xb4, 4, ABS, 0xac, 4);
+        def(t, STA, ZP, 0x85, 3, ZPX, 0x95, 4, ABS, 0x8d, 4, ABSX, 0x9d, 5, ABSY, 0x99, 5);
+        def(t, STX, ZP, 0x86, 3, ZPY, 0x96, 4, ABS, 0x8e, 4);
+        def(t, STY, ZP, 0x84, 3, ZPX, 0x94, 4, ABS, 0x8c, 4);
+        //arithmetic and logic
+        def(t, ADC, IMM, 0x69, 2, ZP, 0x65, 3, ZPX, 0x75, 4, ABS, 0x6d, 4);
+        def(t, SBC, IMM, 0xe9, 2, ZP, 0xe5, 3, ZPX, 0xf5, 4, ABS, 0xed, 4);
+        def(t, AND, IMM, 0x29, 2, ZP, 0x25, 3, ZPX, 0x35, 4, ABS, 0x2d, 4);
+        def(t, ORA, IMM, 0x09, 2, ZP, 0x05, 3, ZPX, 0x15, 4, ABS, 0x0d, 4);
+        def(t, EOR, IMM, 0x49, 2, ZP, 0x45, 3, ZPX, 0x55, 4, ABS, 0x4d, 4);
+        def(t, CMP, IMM, 0xc9, 2, ZP, 0xc5, 3, ZPX, 0xd5, 4, ABS, 0xcd, 4);
+        def(t, CPX, IMM, 0xe0, 2, ZP, 0xe4, 3, ABS, 0xec, 4);
+        def(t, CPY, IMM, 0xc0, 2, ZP, 0xc4, 3, ABS, 0xcc, 4);
+        def(t, BIT, ZP, 0x24, 3, ABS, 0x2c, 4);
+        //indexed reads take an extra cycle when they cross a page
+        crossing(t, LDA, 0xbd, 0xb9);
+        crossing(t, LDX, -1, 0xbe);
+        crossing(t, LDY, 0xbc, -1);
+        crossing(t, ADC, 0x7d, 0x79);
+        crossing(t, SBC, 0xfd, 0xf9);
+        crossing(t, AND, 0x3d, 0x39);
+        crossing(t, ORA, 0x1d, 0x19);
+        crossing(t, EOR, 0x5d, 0x59);
+        crossing(t, CMP, 0xdd, 0xd9);
+        //read-modify-write
+        def(t, INC, ZP, 0xe6, 5, ZPX, 0xf6, 6, ABS, 0xee, 6, ABSX, 0xfe, 7);
+        def(t, DEC, ZP, 0xc6, 5, ZPX, 0xd6, 6, ABS, 0xce, 6, ABSX, 0xde, 7);
+        def(t, ASL, IMP, 0x0a, 2, ZP, 0x06, 5, ZPX, 0x16, 6, ABS, 0x0e, 6, ABSX, 0x1e, 7);
+        def(t, LSR, IMP, 0x4a, 2, ZP, 0x46, 5, ZPX, 0x56, 6, ABS, 0x4e, 6, ABSX, 0x5e, 7);
+        def(t, ROL, IMP, 0x2a, 2, ZP, 0x26, 5, ZPX, 0x36, 6, ABS, 0x2e, 6, ABSX, 0x3e, 7);
+        def(t, ROR, IMP, 0x6a, 2, ZP, 0x66, 5, ZPX, 0x76, 6, ABS, 0x6e, 6, ABSX, 0x7e, 7);
+        //register only
+        def(t, TAX, IMP, 0xaa, 2);
+        def(t, TAY, IMP, 0xa8, 2);
+        def(t, TXA, IMP, 0x8a, 2);
+        def(t, TYA, IMP, 0x98, 2);
+        def(t, TSX, IMP, 0xba, 2);
+        def(t, TXS, IMP, 0x9a, 2);
+        def(t, INX, IMP, 0xe8, 2);
+        def(t, INY, IMP, 0xc8, 2);
+        def(t, DEX, IMP, 0xca, 2);
+        def(t, DEY, IMP, 0x88, 2);
+        def(t, CLC, IMP, 0x18, 2);
+        def(t, SEC, IMP, 0x38, 2);
+        def(t, CLV, IMP, 0xb8, 2);
+        def(t, NOP, IMP, 0xea, 2);
+        return t;
+    }
+
+    /**
+     * Adds an instruction to the table, as groups of mode, opcode, cycles.
+     */
+    private static void def(final int[] t, final int kind, final int... modes) {
+        for (int i = 0; i < modes.length; i += 3) {
+            t[modes[i + 1]] = kind | (modes[i] << 8) | (modes[i + 2] << 12);
+        }
+    }
+
+    /**
+     * Adds the abs,x and abs,y forms of a read instruction: 4 cycles plus
+     * one if the index crosses a page.
+     */
+    private static void crossing(final int[] t, final int kind, final int absx, final int absy) {
+        if (absx >= 0) {
+            t[absx] = kind | (ABSX << 8) | (4 << 12) | (1 << 16);
+        }
+        if (absy >= 0) {
+            t[absy] = kind | (ABSY << 8) | (4 << 12) | (1 << 16);
+        }
+    }
+
+    /**
+     * Keeps the generated classes together so they go away with the
+     * cartridge that made them.
+     */
+    private static class BlockLoader extends ClassLoader {
+
+        BlockLoader() {
+            super(CompiledBlock.class.getClassLoader());
+        }
+
+        Class<?> define(final String name, final byte[] b) {
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+}
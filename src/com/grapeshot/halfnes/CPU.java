@@ -4,7 +4,6 @@
  */
 package com.grapeshot.halfnes;
 
-import java.awt.Point;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
@@ -14,28 +13,51 @@ import java.lang.reflect.Array;
 import java.nio.charset.StandardCharsets;
 import java.util.Hashtable;
 
-public final class CPU {
+public final class CPU implements CPUCore {
 
-    private final CPURAM ram;
-    private int cycles; //increment to steal cycles from cpu
+    final CPURAM ram;
+    int cycles; //increment to steal cycles from cpu
     public int clocks; //use for synchronizing with cpu
-    private int A, X, Y, S; // registers
+    int A, X, Y, S; // registers
     public int PC;
-    private boolean carryFlag = false, zeroFlag = false,
+    //registers and flags are shared with CycleCPU, which works on them too
+    boolean carryFlag = false, zeroFlag = false,
             interruptsDisabled = true, decimalModeFlag = false;
-    private boolean overflowFlag = false, negativeFlag = false,
-            previntflag = false, nmi = false, prevnmi = false, logging = false;
+    boolean overflowFlag = false, negativeFlag = false, nmi = false;
+    private boolean previntflag = false;
     private int pb = 0;// set to 1 if access crosses page boundary
-    public int interrupt = 0;
-    public boolean nmiNext = false, idle = false;
+    //interrupt lines: every IRQ source gets a bit from irqSource() and sets or
+    //clears it when its output changes, and rising NMI edges from setNMI()
+    //land in the top two bits. This word is all the CPU looks at, and only
+    //at instruction boundaries, instead of polling every source every cycle.
+    final static int NMI_EDGE = 1 << 30, NMI_NEXT = 1 << 31,
+            IRQ_LINES = NMI_EDGE - 1;
+    int lines = 0, irqmask = IRQ_LINES;
+    private int nextsource = 1;
+    public boolean idle = false;
     private final static boolean decimalModeEnable = false,
             idleLoopSkip = true;
     //NES 6502 is missing decimal mode, but most other 6502s have it
     private boolean interruptDelay = false;
     private final static String[] opcodes = opcodes();
-
-    public boolean isDead = false;
-    //Battletoads Hack until I get around to making a truly cycle accurate CPU core.
+    //general idle loop detection: a short loop that only reads RAM, ROM or
+    //$2002 and comes back to its start with the same registers will keep
+    //doing exactly the same thing until an interrupt comes or the PPU status
+    //changes. One pass of it gets recorded and is then replayed without
+    //decoding anything.
+    private final static int MAX_IDLE_LOOP = 16;
+    private int loopstart = -1, loopregs, loopbad = -1;
+    private boolean recording = false, idlepoll = false;
+    //address, registers and cycles of each instruction of the recorded pass
+    private final int[] idlepc = new int[MAX_IDLE_LOOP],
+            idleregs = new int[MAX_IDLE_LOOP],
+            idlecycles = new int[MAX_IDLE_LOOP];
+    private int idlelength = 0, idlepos = 0, idleperiod = 0, idlestatus;
+    private final static int[] idleops = idleops();
+    private final static int IMP = 1, ZP = 2, REL = 2, ABS = 3, ABSI = 4;
+
+    //Battletoads Hack for the fast core; CycleCPU does writes on the right
+    //cycle and doesn't need it.
     //Delays the write of a STA, STX, or STY until the first cycle of the NEXT instruction
     //which is enough to move it a few PPU clocks after the scroll is changed
     //making sure that Battletoads gets its sprite 0 hit. 
@@ -43,183 +65,103 @@ public final class CPU {
     private boolean dirtyBattletoadsHack = false;
     private int hackAddr = 0;
     private int hackData = 0;
-    private int score;
+    //predecoded instructions from PRG ROM, indexed the same as the PRG array:
+    //opcode | operand bytes << 8 | DECODED, 0 if not decoded yet
+    private int[] predecoded, prg;
+    private final static int DECODED = 1 << 24;
+    //operand bytes of the current instruction if it came from the cache
+    private int operands;
+    private boolean fromCache = false;
+    //optional compiled code tier, see setJIT()
+    private boolean jit;
+    private BlockCompiler compiler;
+    private CompiledBlock[] blocks;
+    private int[] blockhits;
+    private final int[] blockregs = new int[8];
+    private long blocksrun = 0;
+    //sees every instruction boundary, see setStepListener()
+    private StepListener steps;
+    //times an address has to be reached before compiling a block there
+    private final static int JIT_THRESHOLD = 32;
+    //marks addresses where no block could be compiled
+    private final static CompiledBlock NO_BLOCK = new CompiledBlock() {
+        @Override
+        public int run(int[] regs, int[] wram) {
+            return 0;
+        }
+
+        @Override
+        public int length() {
+            return 0;
+        }
+
+        @Override
+        public int maxCycles() {
+            return 0;
+        }
+    };
 
     private static enum dummy {
 
         ONCARRY, ALWAYS; //type of dummy read
     }
-    OutputStreamWriter w; //debug log writer
+    //clocks value on the last cycle of the current sprite DMA, so DMC DMA
+    //can tell when it lands in the middle of one
+    private int oamdmaend = 0;
+    //whether this frame's clocks count started on an odd cycle
+    private boolean oddframe = false;
+    //per cycle core used instead of this one, see setCycleAccurate()
+    private CycleCPU cyclecore;
+    private boolean cycleAccurate = false;
+    //debug trace, null when not logging
+    CPUTrace trace;
+    //records buffered by a text log between writes
+    private final static int LOG_BUFFER = 4096;
 
     public CPU(final CPURAM cpuram) {
         ram = cpuram;
         //ram is the ONLY thing the cpu tries to talk to.
-        if (logging) {
-            startLog();
-        }
-    }
-    
-    private void titanic() {
-        ram.write(0x000e, 0x0b);
-      }
-    
- // get enemy locations relative to mario (not block)
-    private Point[] getEnemyPos() {
-      int marioX = ram.read(0x04ac);
-      int marioY = ram.read(0x04ad);
-        Point enemies[] = new Point[5];
-        if (ram.read(0x000f) == 1) {
-          enemies[0] = new Point(ram.read(0x04b0)-marioX, ram.read(0x04b1)-marioY);
-        }
-        if (ram.read(0x0010) == 1) {
-          enemies[1] = new Point(ram.read(0x04b4)-marioX, ram.read(0x04b5)-marioY);
-        }
-        if (ram.read(0x0011) == 1) {
-          enemies[2] = new Point(ram.read(0x04b8)-marioX, ram.read(0x04b9)-marioY);
-        }
-        if (ram.read(0x0012) == 1) {
-          enemies[3] = new Point(ram.read(0x04bc)-marioX, ram.read(0x04bd)-marioY);
-        }
-        if (ram.read(0x0013) == 1) {
-          enemies[4] = new Point(ram.read(0x04c0)-marioX, ram.read(0x04c1)-marioY);
-        }
-        return enemies;
-      }
-    
-    public int getScore()
-    {
-    	int temp = score;
-    	score = 0;
-    	isDead = false;
-    	titanic();
-    	return temp;
+        //defaults only: whatever setJIT() and setCycleAccurate() are told
+        //later sticks, init() included
+        jit = PrefsSingleton.get().getBoolean("jit", false);
+        cycleAccurate = PrefsSingleton.get().getBoolean("cycleAccurateCPU", false);
     }
-    
-    public float[][] updateNN()
-    {
-    	// infinite lives
-        if(ram.read(0x075a) < 2) {
-          score = ram.read(0x6D) * 0x100 + ram.read(0x86);
-          ram.write(0x075a, 0x2);
-          isDead = true;
-        }
-
-//infinite time
-        if(ram.read(0x07f8) != 0) {
-          ram.write(0x07f8, 0);
-        }
-        if(ram.read(0x07f9) != 7) {
-          ram.write(0x07f9, 7);
-        }
-        if(ram.read(0x07fa) != 0) {
-          ram.write(0x07fa, 0);
-        }
-
-    	float[][] map1 = new float[16][16];
-    	float[][] map2 = new float[16][16];
-    	for(int x = 0x0500; x <= 0x05ce; ){
-    		for (int c = 0; c < 16; ++c, ++x)
-    		{
-    			map1[(x - 0x0500) / 16][c] = ram.read(x);
-    		}
-    	}
-    	for(int x = 0x05d0; x <= 0x069f;){
-    		for (int c = 0; c < 16; ++c, ++x)
-    		{
-    			map2[(x - 0x05d0) / 16][c] = ram.read(x);
-    		}
-    	}
-    	float[][] output = new float[8][8];
-    	int marioX = ram.read(0x6D) * 0x100 + ram.read(0x86);
-        int marioY = ram.read(0x03B8)+16;
-        int page = (marioX / 256) % 2;
-        int x = (int) Math.round((marioX % 256) / 16.0);
-        int y = ram.read(0x00ce) / 16;
-        for(int l = 0; l < 8; ++l)
-        {
-        	for(int m = 0; m < 8; ++m)
-        	{
-        		int tempY = x + l;
-        		int tempX = y + m - 4;
-        		if(tempX < 0 || tempX > 15 || tempY < 0 || tempY > 15 ){
-        			int tempXOverFlow = tempX < 0 ? 0 : tempX;
-        			int tempYOverFlow = tempY < 0 ? 0 : tempY;
-        			if(tempX > 15){
-        				tempXOverFlow = tempX - 15;
-        			}
-        			if(tempY > 15){
-        				tempYOverFlow = tempY - 15;
-        			}
-        			if(page == 0 ){
-            			output[l][m] = map2[tempXOverFlow][tempYOverFlow] != 0 ? 1 : 0;
-            			}else
-            			{
-            				output[l][m] = 0;
-            			}
-        		}
-        		else{
-        			if(page == 0 ){
-        			output[l][m] = map1[tempX][tempY] != 0 ? 1 : 0;
-        			}else
-        			{
-        				output[l][m] = map2[tempX][tempY] != 0 ? 1 : 0;
-        			}
-        		}
-        	}
-        }
-        
-     // add enemies to console printing or whatever
-        Point[] enemies = getEnemyPos();
-        for (Point p : enemies) {
-          if (p != null) {
-            if(p.getY() / 16 < 5 && p.getX() / 16 < 8 && p.getY() / 16 > 0 && p.getX() / 16 > 0)
-              output[(int) (p.getX()/16)][(int) ((p.getY()/16)) + 3] = -1f;
-          }
-        }
-
-    	for(int f = 0; f < 8; f++)
-    	{
-    		for(int l = 0; l < 8; l++)
-    		{
-    			if(f == 3 && l == 0)
-    			{
-    				System.out.print("O");
-    				continue;
-    			}
-    			switch((int)output[l][f]){
-    				case 1: System.out.print("X");
-    				break;
-    				case -1: System.out.print("#");
-    				default: System.out.print(" ");
-    			}
-    		}
-    		System.out.println();
-    	}
-    	return output;
-    }
-    
-    
+
     public void startLog() {
-        logging = true;
-        try {
-            w = new OutputStreamWriter(new FileOutputStream(new File("nesdebug.txt")), StandardCharsets.UTF_8); 
-        } catch (IOException e) {
-            System.err.println("Cannot create debug log" + e.getLocalizedMessage());
-        }
+        startLog("nesdebug.txt");
     }
 
+    /**
+     * Logs every instruction to a text file in nestest.log format.
+     */
     public void startLog(String path) {
-        logging = true;
         try {
-            w = new OutputStreamWriter(new FileOutputStream(new File(path)), StandardCharsets.UTF_8); 
+            startTrace(new CPUTrace(LOG_BUFFER, new OutputStreamWriter(
+                    new FileOutputStream(new File(path)), StandardCharsets.UTF_8)));
         } catch (IOException e) {
             System.err.println("Cannot create debug log" + e.getLocalizedMessage());
         }
     }
 
+    /**
+     * Records every instruction into the given trace, e.g. a binary one to
+     * format later with CPUTrace.main(), or a ring buffer that only keeps
+     * the last few. Replaces any log already running.
+     */
+    public void startTrace(final CPUTrace trace) {
+        stopLog();
+        this.trace = trace;
+    }
+
     public void stopLog() {
-        logging = false;
-        flushLog();
+        if (trace != null) {
+            try {
+                trace.close();
+            } catch (IOException e) {
+                System.err.println("Cannot write to debug log" + e.getLocalizedMessage());
+            }
+            trace = null;
+        }
     }
 
     public void init() {
@@ -249,11 +191,25 @@ public final class CPU {
         X = 0;
         Y = 0;
         S = 0xFD;
+        //start with an empty predecode cache if the mapper allows one
+        if (ram.mapper.prgOffset(0x8000) >= 0) {
+            prg = ram.mapper.getPRG();
+            predecoded = new int[prg.length];
+        } else {
+            prg = null;
+            predecoded = null;
+        }
+        //compiled blocks can only be set up once the cache is
+        setJIT(jit);
+        setCycleAccurate(cycleAccurate);
         if (initialPC == null) {
             PC = ram.read(0xFFFD) * 256 + ram.read(0xFFFC);
         } else {
             PC = initialPC;
         }     
+        if (cyclecore != null) {
+            cyclecore.reset();
+        }
     }
 
     public void reset() {
@@ -264,21 +220,131 @@ public final class CPU {
         S -= 3;
         S &= 0xff;
         interruptsDisabled = true;
+        if (cyclecore != null) {
+            cyclecore.reset();
+        }
     }
 
     public void modcycles() {
         //System.err.println(clocks);
+        oddframe ^= (clocks & 1) != 0;
+        oamdmaend -= clocks;
         clocks = 0;
+        //a loop being recorded has its start times from before the reset
+        recording = false;
+        loopstart = -1;
     }
 
     public void stealcycles(int cyclestosteal) {
         cycles += cyclestosteal;
-        log("**STEAL " + cyclestosteal + "**");
+        if (trace != null) {
+            trace.event(CPUTrace.STEAL, cyclestosteal, PC);
+        }
+    }
+
+    /**
+     * Sprite DMA, from a write to $4014. The page goes into OAM in one bulk
+     * copy and the CPU halts for the 513 cycles the real transfer takes, 514
+     * if it starts on an odd cycle.
+     *
+     * @param page high byte of the address to copy from
+     */
+    public void spriteDMA(final int page) {
+        ram.spriteDMA(page);
+        final int length = oddCycle() ? 514 : 513;
+        oamdmaend = clocks + length;
+        stealcycles(length);
+    }
+
+    /**
+     * DMC DMA: the APU wants its next sample byte. The CPU halts, fetches it
+     * for the APU and carries on; the fast core always takes 4 cycles for
+     * that (it doesn't know what the bus is doing mid-instruction), the cycle
+     * accurate core takes 3 or 4 depending on whether it is writing.
+     */
+    public void requestDMC() {
+        if (cyclecore != null) {
+            cyclecore.requestDMC();
+        } else {
+            dmcDMA(4);
+        }
+    }
+
+    /**
+     * Halts the CPU for a DMC fetch and does the fetch. On top of a sprite
+     * DMA the fetch slots in between the sprite DMA's own reads and writes,
+     * so it costs 2 cycles, or 1 or 3 right at the end of it.
+     *
+     * @param stall cycles the fetch takes outside sprite DMA
+     */
+    void dmcDMA(final int stall) {
+        final int left = oamdmaend - clocks;
+        if (left > 0) {
+            stealcycles((left == 1) ? 3 : (left == 2) ? 1 : 2);
+        } else {
+            stealcycles(stall);
+        }
+        ram.apu.dmcfillbuffer();
+    }
+
+    //whether the cycle clocks is on now is an odd one
+    final boolean oddCycle() {
+        return oddframe ^ ((clocks & 1) != 0);
     }
     
     public int i = 0;
-    public final void runcycle(final int scanline, final int pixel) {
-        ram.read(0x4000); //attempt to sync the APU every cycle and make dmc irqs work properly, which they still don't. Feh.
+    /**
+     * Runs one CPU cycle.
+     *
+     * @return how many of the following cycles are only counting down the
+     * current instruction (or a DMA halt) and can be skipped with
+     * skipcycles() instead. The count is 0 while a delayed Battletoads write
+     * is pending, since that has to happen on an exact cycle.
+     */
+    @Override
+    public final int runcycle(final int scanline, final int pixel) {
+        if (cyclecore != null) {
+            if (cycleAccurate || !cyclecore.atInstructionStart()) {
+                return cyclecore.runcycle(scanline, pixel);
+            }
+            //switched back to this core, which carries on from here
+            cyclecore = null;
+        }
+        cycle(scanline, pixel);
+        if (dirtyBattletoadsHack || cycles < 0) {
+            return 0;
+        }
+        if (clocks < oamdmaend && ram.apu.dmcActive()) {
+            //halted for sprite DMA: a DMC fetch in the middle of it costs
+            //less than one outside, which dmcDMA() can only tell if the APU
+            //asks on the right cycle, so run the halt a cycle at a time like
+            //CycleCPU does
+            return 0;
+        }
+        return cycles;
+    }
+
+    /**
+     * Catches up on cycles skipped as allowed by runcycle(). Nothing happens
+     * on those cycles except counting down, and the APU catches up to the new
+     * clock count on its next sync (the first thing runcycle() does), so DMC
+     * cycle stealing and IRQs land on the same instruction boundary as if
+     * every cycle had been run.
+     *
+     * @param skipped number of cycles skipped, no more than runcycle() allowed
+     */
+    @Override
+    public final void skipcycles(final int skipped) {
+        if (cyclecore != null) {
+            cyclecore.skipcycles(skipped);
+            return;
+        }
+        clocks += skipped;
+        cycles -= skipped;
+    }
+
+    private void cycle(final int scanline, final int pixel) {
+        ram.read(0x4000); //attempt to sync the APU every cycle we actually run and make dmc irqs work properly, which they still don't. Feh.
         	
         ++clocks;
         //guard against overflows
@@ -297,15 +363,6 @@ public final class CPU {
 //        if ((PC & 0xffff) != PC) {
 //            System.err.println("houston we have PC problem");
 //        }
-        if (ram.apu.sprdma_count > 0) {
-            ram.apu.sprdma_count--;
-            if (ram.apu.sprdma_count == 0) {
-                cycles += 513;
-            }
-            //this doesn't look right any more
-            //who patched this in and when? (wasn't me, it was for some bug...)
-        }
-
         if (dirtyBattletoadsHack && cycles == 1) {
             ram.write(hackAddr, hackData);
             dirtyBattletoadsHack = false;
@@ -317,59 +374,44 @@ public final class CPU {
         
         //now we're at the start of a new instruction
 
-        //handle nmi requests (NMI line is edge sensitive not level sensitive)
-        if (nmiNext) {
-            nmi();
-            nmiNext = false;
-        }
-        if (nmi && !prevnmi) {//only trigger on positive rising edge of NMI
-            nmiNext = true;
+        if ((lines != 0 || interruptDelay) && interrupts()) {
+            return;
         }
-        prevnmi = nmi;
 
-        if (interrupt > 0) {
-            if (!interruptsDisabled && !interruptDelay) {
-                interrupt();
-                cycles += 7;
+        if (recording) {
+            recordLoop();
+        }
+        //Idle loop skipping
+        if (idle && idleLoopSkip) {
+            //replayed passes never reach the trace, so while tracing every
+            //pass gets decoded and logged like any other code
+            if (trace == null && (!idlepoll || ram.ppu.status() == idlestatus)) {
+                cycles += idleSkip();
                 return;
-            } else if (interruptDelay) {
-                interruptDelay = false;
-                if (!previntflag) {
-                    interrupt();
-                    cycles += 7;
-                    return;
-                }
             }
-        } else {
-            interruptDelay = false;
+            //something the loop is polling changed, so carry on decoding
+            //from wherever in the loop it had got to
+            idle = false;
         }
 
-        //Idle loop skipping
-        if (idle && idleLoopSkip) {
-            cycles += 3; //not accurate should depend on type of instr we skip decoding
+        if (steps != null) {
+            steps.step(PC, A, X, Y, flagstobyte(), S, clocks);
+        }
+        if (blocks != null && runBlock()) {
             return;
         }
 
         pb = 0;
-        final int instr = ram.read(PC++);
+        final int instr = fetchOpcode();
         //note: 
-        if (logging) {
-            //that looks redundant, but this is a really expensive operation to create the log string
-            //also, logging *might* trigger side effects if logging while executing
-            //code from i/o registers (reading twice). So we don't want to do it always.
-            //TODO: Optimize this! It gets called a LOT
-            //and slows logging to 16 fps
-            //even when not actually writing anything
-            String op = String.format(opcodes[instr],
-                    ram.read(PC),
-                    ram.read(PC + 1),
-                    PC + (byte) (ram.read(PC)) + 1);
-            log(utils.hex(PC - 1) + " " + utils.hex(instr)
-                    + String.format(" %-14s ", op)
-                    + status() + " CYC:" + pixel + " SL:" + scanline + "\n");
-        }
-        if (cycles == 0) {
-            flushLog();
+        if (trace != null) {
+            //only raw values get recorded here, the text is made later.
+            //operands out of the cache don't need reading again, which
+            //could have side effects if executing from i/o registers
+            final int ops = fromCache ? operands
+                    : ram.read(PC) | (ram.read(PC + 1) << 8);
+            trace.instruction((PC - 1) & 0xffff, instr, ops, A, X, Y,
+                    flagstobyte(), S, pixel, scanline, clocks);
         }
 
         switch (instr) {
@@ -764,7 +806,9 @@ public final class CPU {
                 int tempe = PC;
                 PC = abs();
                 if (PC == (tempe - 1)) {
-                    idle = true;
+                    idleSelf(3);
+                } else if (PC < (tempe - 1)) {
+                    loopBack(tempe - 1, PC);
                 }
                 cycles += 3;
                 break;
@@ -772,7 +816,7 @@ public final class CPU {
                 int tempf = PC;
                 PC = ind();
                 if (PC == (tempf - 1)) {
-                    idle = true;
+                    idleSelf(5);
                 }
                 cycles += 5;
                 break;
@@ -1450,13 +1494,90 @@ public final class CPU {
         setflags(A);
     }
 
+    /**
+     * Sets the level of the NMI line. Only a rising edge does anything, so
+     * callers don't need to tell the CPU about anything but changes.
+     *
+     * @param val true if the line is asserted
+     */
     public void setNMI(boolean val) {
-        this.nmi = val;
+        if (val && !nmi) {
+            lines |= NMI_EDGE;
+        }
+        nmi = val;
+    }
+
+    /**
+     * Hands out an IRQ line for one interrupt source (a mapper's counter,
+     * the APU frame counter and so on). The CPU sees an IRQ as long as any of
+     * the lines is asserted.
+     *
+     * @return the line, to be passed to assertIRQ() and releaseIRQ()
+     */
+    public final int irqSource() {
+        if (nextsource == NMI_EDGE) {
+            throw new IllegalStateException("out of IRQ lines");
+        }
+        final int source = nextsource;
+        nextsource <<= 1;
+        return source;
+    }
+
+    public final void assertIRQ(final int source) {
+        lines |= source;
+    }
+
+    public final void releaseIRQ(final int source) {
+        lines &= ~source;
+    }
+
+    /**
+     * Stops the CPU from taking any IRQ, whatever the sources do. The NSF
+     * player needs this since the tunes it runs never expect one.
+     */
+    public final void ignoreIRQs() {
+        irqmask = 0;
+    }
+
+    //deals with whatever is pending on the interrupt lines at the start of
+    //an instruction. Returns true if an IRQ was taken.
+    private boolean interrupts() {
+        //NMI is edge sensitive: an edge is noticed at one instruction
+        //boundary and taken at the next
+        if ((lines & NMI_NEXT) != 0) {
+            lines &= ~NMI_NEXT;
+            nmi();
+        }
+        if ((lines & NMI_EDGE) != 0) {
+            lines ^= NMI_EDGE | NMI_NEXT;
+        }
+
+        if ((lines & irqmask) != 0) {
+            if (!interruptsDisabled && !interruptDelay) {
+                interrupt();
+                cycles += 7;
+                return true;
+            } else if (interruptDelay) {
+                interruptDelay = false;
+                if (!previntflag) {
+                    interrupt();
+                    cycles += 7;
+                    return true;
+                }
+            }
+        } else {
+            interruptDelay = false;
+        }
+        return false;
     }
 
     private void nmi() {
         idle = false;
-        log("**NMI**");
+        recording = false;
+        loopstart = -1;
+        if (trace != null) {
+            trace.event(CPUTrace.NMI, 0, PC);
+        }
         //System.err.println("  NMI");
         push(PC >> 8); // high bit 1st
         push((PC) & 0xFF);// check that this pushes right address
@@ -1468,8 +1589,12 @@ public final class CPU {
 
     private void interrupt() {
         idle = false;
-        log("**INTERRUPT**");
-        //System.err.println("IRQ " + interrupt);
+        recording = false;
+        loopstart = -1;
+        if (trace != null) {
+            trace.event(CPUTrace.INTERRUPT, 0, PC);
+        }
+        //System.err.println("IRQ " + utils.hex(lines));
         push(PC >> 8); // high bit 1st
         push(PC & 0xFF);// check that this pushes right address
         push(flagstobyte() & ~utils.BIT4);
@@ -1480,8 +1605,10 @@ public final class CPU {
 
     private void breakinterrupt() {
         //same as interrupt but BRK flag is turned on
-        log("**BREAK**");
-        ram.read(PC++); //dummy fetch
+        if (trace != null) {
+            trace.event(CPUTrace.BREAK, 0, PC);
+        }
+        operand(); //dummy fetch
         push(PC >> 8); // high bit 1st
         push(PC & 0xFF);// check that this pushes right address
         push(flagstobyte() | utils.BIT4 | utils.BIT5);//push byte w/bits 4+5 set
@@ -1535,14 +1662,14 @@ public final class CPU {
     }
 
     private void rts() {
-        ram.read(PC++); //dummy fetch
+        operand(); //dummy fetch
         PC = (pop() & 0xff) | (pop() << 8);// page crossing bug again?
         PC++;
     }
 
     private void rti() {
         //System.err.println("RTI");
-        ram.read(PC++); //dummy fetch
+        operand(); //dummy fetch
         bytetoflags(pop());
         PC = (pop() & 0xff) | (pop() << 8); // not plus one
     }
@@ -1572,7 +1699,9 @@ public final class CPU {
             }
 
             if ((pcprev - 2) == PC) {
-                idle = true;
+                idleSelf(3);
+            } else if (PC < pcprev) {
+                loopBack(pcprev - 2, PC);
             }
         } else {
             rel();
@@ -1580,6 +1709,168 @@ public final class CPU {
         }
     }
 
+    private int packregs() {
+        return A | (X << 8) | (Y << 16) | (flagstobyte() << 24);
+    }
+
+    private void unpackregs(final int regs) {
+        A = regs & 0xff;
+        X = (regs >> 8) & 0xff;
+        Y = (regs >> 16) & 0xff;
+        bytetoflags(regs >>> 24);
+    }
+
+    /**
+     * Called when a branch or jump goes backwards. If it closes a short loop
+     * that only reads, and the loop has come around with the registers the
+     * same as last time, the next pass gets recorded for idle loop skipping.
+     *
+     * @param from address of the branch or jump
+     * @param to address it goes to
+     */
+    private void loopBack(final int from, final int to) {
+        if (recording) {
+            return;
+        }
+        if (!idleLoopSkip || from - to > MAX_IDLE_LOOP || to == loopbad) {
+            loopstart = -1;
+            return;
+        }
+        final int regs = packregs();
+        if (to == loopstart && regs == loopregs) {
+            final int kind = pollLoop(to, from);
+            if (kind < 0) {
+                loopbad = to;
+                loopstart = -1;
+            } else {
+                recording = true;
+                idlepoll = kind > 0;
+                idlestatus = ram.ppu.status();
+                idlelength = 0;
+            }
+            return;
+        }
+        loopstart = to;
+        loopregs = regs;
+    }
+
+    /**
+     * Records one instruction of a pass through a loop found by loopBack(),
+     * and turns on idle loop skipping once the pass is back where it started
+     * with nothing changed. Gives up if the pass goes somewhere else.
+     */
+    private void recordLoop() {
+        final int regs = packregs();
+        final int n = idlelength;
+        if (n > 0 && PC == idlepc[0] && regs == idleregs[0]) {
+            recording = false;
+            loopstart = -1;
+            if (!idlepoll || ram.ppu.status() == idlestatus) {
+                idlecycles[n - 1] = clocks - idlecycles[n - 1];
+                idleperiod = 0;
+                boolean timed = true;
+                for (int i = 0; i < n; ++i) {
+                    idleperiod += idlecycles[i];
+                    timed &= idlecycles[i] > 0;
+                }
+                //every instruction takes time, so anything else is a
+                //recording that went wrong
+                if (timed && idleperiod > 0) {
+                    idlepos = 0;
+                    idle = true;
+                }
+            }
+            return;
+        }
+        if (n == MAX_IDLE_LOOP || (n == 0 && PC != loopstart)) {
+            recording = false;
+            loopstart = -1;
+            return;
+        }
+        if (n > 0) {
+            idlecycles[n - 1] = clocks - idlecycles[n - 1];
+        }
+        idlepc[n] = PC;
+        idleregs[n] = regs;
+        idlecycles[n] = clocks;
+        idlelength = n + 1;
+    }
+
+    /**
+     * Checks that every instruction of a loop only reads, and only from
+     * somewhere that can't change while the loop runs without an interrupt
+     * (RAM, PRG ROM) or from the PPU status register.
+     *
+     * @param start first instruction of the loop
+     * @param end the branch or jump back to start
+     * @return -1 if it isn't an idle loop, 1 if it reads $2002, 0 otherwise
+     */
+    private int pollLoop(final int start, final int end) {
+        if (start >= 0x2000 && start < 0x6000) {
+            return -1;
+        }
+        int poll = 0;
+        int pc = start;
+        while (pc < end) {
+            final int op = ram.read(pc);
+            final int mode = idleops[op];
+            if (mode == 0) {
+                return -1;
+            }
+            if (mode == ABS) {
+                final int addr = ram.read(pc + 1) | (ram.read(pc + 2) << 8);
+                if ((addr & 0xe007) == 0x2002) {
+                    poll = 1;
+                } else if (addr >= 0x2000 && addr < 0x8000) {
+                    return -1;
+                }
+            } else if (mode == ABSI) {
+                final int base = ram.read(pc + 1) | (ram.read(pc + 2) << 8);
+                if (base > 0x1f00 && (base < 0x8000 || base > 0xff00)) {
+                    return -1;
+                }
+            }
+            pc += (mode == ABSI) ? 3 : mode;
+        }
+        return (pc == end) ? poll : -1;
+    }
+
+    //idle loop of a single jump or branch to itself
+    private void idleSelf(final int step) {
+        recording = false;
+        idlepoll = false;
+        idlepc[0] = PC;
+        idleregs[0] = packregs();
+        idlecycles[0] = step;
+        idlelength = 1;
+        idleperiod = step;
+        idlepos = 0;
+        idle = true;
+    }
+
+    /**
+     * Replays the next instruction of the idle loop, or as many whole passes
+     * as fit before the PPU can next raise an NMI or change the status flags
+     * the loop polls. IRQs can't be predicted, so with interrupts enabled it
+     * goes one instruction at a time, and so it does while an NMI is about to
+     * be taken or DMC DMA is stealing cycles.
+     *
+     * @return cycles to skip
+     */
+    private int idleSkip() {
+        if (interruptsDisabled && (lines & NMI_NEXT) == 0 && !ram.apu.dmcActive()) {
+            final int passes = ram.ppu.cpuCyclesToEvent(idlepoll) / idleperiod;
+            if (passes > 0) {
+                return passes * idleperiod;
+            }
+        }
+        final int step = idlecycles[idlepos];
+        idlepos = (idlepos + 1 == idlelength) ? 0 : idlepos + 1;
+        PC = idlepc[idlepos];
+        unpackregs(idleregs[idlepos]);
+        return step;
+    }
+
     private void inc(final int addr) {
         int tmp = ram.read(addr);
         ram.write(addr, tmp);
@@ -1855,6 +2146,185 @@ public final class CPU {
         setflags(A);
     }
 
+    /**
+     * Turns the compiled code tier on or off. When on, straight runs of
+     * RAM-only instructions in PRG ROM that get executed often are compiled
+     * to JVM bytecode (see BlockCompiler) and run as one unit.
+     *
+     * Interrupts are only noticed between blocks, so blocks only run with
+     * IRQs disabled and when the next NMI is further off than the block is
+     * long (see runBlock()); games that run with IRQs enabled get little out
+     * of it. Only works with mappers that allow the predecode cache;
+     * otherwise stays off.
+     */
+    public final void setJIT(final boolean on) {
+        jit = on;
+        if (on && predecoded != null) {
+            if (blocks == null) {
+                compiler = new BlockCompiler();
+                blocks = new CompiledBlock[prg.length];
+                blockhits = new int[prg.length];
+            }
+        } else {
+            compiler = null;
+            blocks = null;
+            blockhits = null;
+        }
+    }
+
+    /**
+     * @return how many times a compiled block has run instead of the
+     * interpreter
+     */
+    public final long getBlocksRun() {
+        return blocksrun;
+    }
+
+    /**
+     * Gets told the registers at the start of every instruction this core
+     * runs, or of the compiled block that runs in its place, e.g. for
+     * checking compiled code against the interpreter. Slows things down a
+     * little; null turns it off.
+     */
+    public final void setStepListener(final StepListener listener) {
+        steps = listener;
+    }
+
+    public interface StepListener {
+
+        /**
+         * @param p status flags as PHP would push them, minus the B flag
+         * @param clocks CPU cycles since the start of the frame
+         */
+        public void step(int pc, int a, int x, int y, int p, int s, int clocks);
+    }
+
+    /**
+     * Switches between this fast core and the cycle accurate one (see
+     * CycleCPU). The cycle accurate core does every read and write on the
+     * cycle it really happens on, so it gets timing tests and mid-scanline
+     * tricks right without the Battletoads hack, but it is a lot slower and
+     * never skips idle loops or runs compiled blocks. Turning it off takes
+     * effect at the end of the current instruction.
+     */
+    public final void setCycleAccurate(final boolean on) {
+        cycleAccurate = on;
+        if (on && cyclecore == null) {
+            //finish up anything the fast core left half done
+            if (dirtyBattletoadsHack) {
+                ram.write(hackAddr, hackData);
+                dirtyBattletoadsHack = false;
+            }
+            idle = false;
+            recording = false;
+            loopstart = -1;
+            cyclecore = new CycleCPU(this, ram);
+        }
+    }
+
+    /**
+     * Runs the compiled block at PC if there is one, compiling it first if
+     * PC just got hot. Nothing else gets to run until a block is done, so
+     * like idleSkip() it leaves the interpreter to it whenever an interrupt
+     * could come due partway through: with IRQs enabled, with an NMI already
+     * on its way, while DMC DMA can steal cycles, or with the PPU's next NMI
+     * closer than the block can take.
+     *
+     * @return false if the interpreter has to run the next instruction
+     */
+    private boolean runBlock() {
+        if (PC < 0x8000 || trace != null || ram.hasPatches()) {
+            return false;
+        }
+        if (!interruptsDisabled || interruptDelay
+                || (lines & (NMI_EDGE | NMI_NEXT)) != 0 || ram.apu.dmcActive()) {
+            return false;
+        }
+        final int off = ram.mapper.prgOffset(PC);
+        if (off < 0) {
+            return false;
+        }
+        CompiledBlock block = blocks[off];
+        if (block == null) {
+            if (++blockhits[off] < JIT_THRESHOLD) {
+                return false;
+            }
+            block = compiler.compile(prg, off);
+            blocks[off] = (block == null) ? NO_BLOCK : block;
+            if (block == null) {
+                return false;
+            }
+        } else if (block == NO_BLOCK) {
+            return false;
+        }
+        if (ram.ppu.cpuCyclesToEvent(false) < block.maxCycles()) {
+            return false;
+        }
+        final int[] r = blockregs;
+        r[0] = A;
+        r[1] = X;
+        r[2] = Y;
+        r[3] = S;
+        r[4] = carryFlag ? 1 : 0;
+        r[5] = overflowFlag ? 1 : 0;
+        r[6] = zeroFlag ? 0 : 1;
+        r[7] = negativeFlag ? 0x80 : 0;
+        cycles += block.run(r, ram.getWRAM());
+        ++blocksrun;
+        A = r[0];
+        X = r[1];
+        Y = r[2];
+        S = r[3];
+        carryFlag = r[4] != 0;
+        overflowFlag = r[5] != 0;
+        zeroFlag = r[6] == 0;
+        negativeFlag = (r[7] & utils.BIT7) != 0;
+        PC = (PC + block.length()) & 0xffff;
+        return true;
+    }
+
+    /**
+     * Fetches the opcode at PC. Code running from PRG ROM on a mapper with
+     * plain PRG banking comes out of the predecode cache along with its
+     * operand bytes, skipping the patch check and cartRead(); anything else
+     * (RAM, I/O, banks with odd read logic, pages with cheat patches, the
+     * last two bytes of a 1K bank) is read normally.
+     */
+    private int fetchOpcode() {
+        if (PC >= 0x8000 && (PC & 0x3ff) < 0x3fe && predecoded != null
+                && !ram.isPatched(PC) && !ram.isPatched(PC + 2)) {
+            final int off = ram.mapper.prgOffset(PC);
+            if (off >= 0) {
+                int op = predecoded[off];
+                if (op == 0) {
+                    //the cache is indexed by place in the ROM, not address,
+                    //so bank switches don't invalidate anything
+                    op = DECODED | prg[off] | (prg[off + 1] << 8) | (prg[off + 2] << 16);
+                    predecoded[off] = op;
+                }
+                operands = (op >> 8) & 0xffff;
+                fromCache = true;
+                ++PC;
+                return op & 0xff;
+            }
+        }
+        fromCache = false;
+        return ram.read(PC++);
+    }
+
+    /**
+     * Fetches the next byte of the current instruction.
+     */
+    private int operand() {
+        if (fromCache) {
+            final int data = operands & 0xff;
+            operands >>= 8;
+            ++PC;
+            return data;
+        }
+        return ram.read(PC++);
+    }
+
     // Functions for memory address types; each returns the _memory_address_ for
     // the next fn
     private int imm() {
@@ -1863,28 +2333,28 @@ public final class CPU {
 
     private int zpg() {
         // zero page mode
-        return ram.read(PC++);
+        return operand();
     }
 
     private int zpg(final int reg) {
         // zero page added to register (modulus page boundary)
-        return (ram.read(PC++) + reg) & 0xff;
+        return (operand() + reg) & 0xff;
     }
 
     private int rel() {
         // returns actual value of PC, not memory location to look at
         // because only branches use this
-        return ((byte) ram.read(PC++)) + PC;
+        return ((byte) operand()) + PC;
     }
 
     private int abs() {
         // absolute mode
-        return ram.read(PC++) + (ram.read(PC++) << 8);
+        return operand() + (operand() << 8);
     }
 
     private int abs(final int reg, final dummy dummy) {
         // absolute plus value from reg
-        final int addr = (ram.read(PC++) | (ram.read(PC++) << 8));
+        final int addr = (operand() | (operand() << 8));
 
         if (addr >> 8 != (addr + reg) >> 8) {
             pb = 1;
@@ -1912,14 +2382,14 @@ public final class CPU {
 
     private int indX() {
         // indirect mode
-        final int arg = ram.read(PC++);
+        final int arg = operand();
         return ram.read((arg + X) & 0xff)
                 + (ram.read((arg + 1 + X) & 0xff) << 8);
         // doesn't suffer from the same bug as jump indirect
     }
 
     private int indY(final dummy dummy) {
-        final int arg = ram.read(PC++);
+        final int arg = operand();
         final int addr = (ram.read((arg) & 0xff) | (ram.read((arg + 1) & 0xff) << 8));
 
         if (addr >> 8 != (addr + Y) >> 8) {
@@ -1946,7 +2416,7 @@ public final class CPU {
                 | (carryFlag ? utils.BIT0 : 0));
     }
 
-    private void bytetoflags(final int statusbyte) {
+    void bytetoflags(final int statusbyte) {
 
         negativeFlag = ((statusbyte & utils.BIT7) != 0);
         overflowFlag = ((statusbyte & utils.BIT6) != 0);
@@ -1968,6 +2438,36 @@ public final class CPU {
                 + utils.hex(flagstobyte()) + " SP:" + utils.hex(S);
     }
 
+    //addressing mode of each instruction allowed in an idle loop, 0 if not
+    //allowed. Immediate, zero page and relative are only told apart by
+    //length, and zero page indexed can only ever read RAM so counts as zero
+    //page.
+    private static int[] idleops() {
+        final int[] ops = new int[256];
+        for (int op : new int[]{0xaa, 0xa8, 0x8a, 0x98, 0xba, 0x18, 0x38,
+            0xb8, 0xea, 0x0a, 0x4a, 0x2a, 0x6a}) {
+            ops[op] = IMP;
+        }
+        for (int op : new int[]{0xa9, 0xa2, 0xa0, 0xc9, 0xe0, 0xc0, 0x29,
+            0x09, 0x49, 0xa5, 0xa6, 0xa4, 0xc5, 0xe4, 0xc4, 0x24, 0x25, 0x05,
+            0x45, 0xb5, 0xb6, 0xb4, 0xd5, 0x35, 0x15, 0x55}) {
+            ops[op] = ZP;
+        }
+        for (int op : new int[]{0xad, 0xae, 0xac, 0xcd, 0xec, 0xcc, 0x2c,
+            0x2d, 0x0d, 0x4d}) {
+            ops[op] = ABS;
+        }
+        for (int op : new int[]{0xbd, 0xb9, 0xbe, 0xbc, 0xdd, 0xd9, 0x3d,
+            0x39, 0x1d, 0x19, 0x5d, 0x59}) {
+            ops[op] = ABSI;
+        }
+        for (int op : new int[]{0x10, 0x30, 0x50, 0x70, 0x90, 0xb0, 0xd0,
+            0xf0}) {
+            ops[op] = REL;
+        }
+        return ops;
+    }
+
     public static String[] opcodes() {
         //%1 1st byte, %2 2nd byte, %3 relative offset from PC
         //odd combination of format string and eventual syntax in file here.
@@ -2243,23 +2743,20 @@ public final class CPU {
     public void setPC(int value) {
         PC = value & 0xffff;
         idle = false;
-        log("**PC SET**");
-    }
-
-    public final void log(String tolog) {
-        if (logging) {
-            try {
-                w.write(tolog);
-            } catch (IOException e) {
-                System.err.println("Cannot write to debug log" + e.getLocalizedMessage());
-            }
+        recording = false;
+        loopstart = -1;
+        if (cyclecore != null) {
+            cyclecore.reset();
+        }
+        if (trace != null) {
+            trace.event(CPUTrace.PC_SET, 0, PC);
         }
     }
 
-    private void flushLog() {
-        if (logging) {
+    void flushLog() {
+        if (trace != null) {
             try {
-                w.flush();
+                trace.flush();
             } catch (IOException e) {
                 System.err.println("Cannot write to debug log" + e.getLocalizedMessage());
             }
@@ -0,0 +1,57 @@
+/*
+ * HalfNES by Andrew Hoffman
+ * Licensed under the GNU GPL Version 3. See LICENSE file
+ */
+package com.grapeshot.halfnes;
+
+import com.grapeshot.halfnes.ui.HeadlessUI;
+
+/**
+ * Runs a ROM headless with the fast CPU core and then the cycle accurate one
+ * (see CPU.setCycleAccurate()) and prints how many frames a second each
+ * manages, plus a hash of RAM at the end so it's easy to see whether the two
+ * ended up in the same place.
+ */
+public class CPUBenchmark {
+
+    private CPUBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("usage: CPUBenchmark rom.nes [frames]");
+            return;
+        }
+        final int frames = (args.length > 1) ? Integer.parseInt(args[1]) : 3600;
+        final double fast = run(args[0], frames, false);
+        final double accurate = run(args[0], frames, true);
+        System.out.println(String.format("cycle accurate core runs at %.2fx the speed of the fast core",
+                accurate / fast));
+    }
+
+    //frames per second with one core, after a warmup run so the JIT has
+    //compiled it
+    private static double run(final String rom, final int frames, final boolean accurate) {
+        runFrames(rom, frames / 4 + 1, accurate);
+        final long start = System.nanoTime();
+        final CPURAM ram = runFrames(rom, frames, accurate);
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        int hash = 0;
+        for (int i = 0; i < 0x800; ++i) {
+            hash = hash * 31 + ram.read(i);
+        }
+        final double fps = frames / seconds;
+        System.out.println(String.format("%s core: %d frames in %.2f s, %.1f fps, RAM hash %08x",
+                accurate ? "cycle accurate" : "fast", frames, seconds, fps, hash));
+        return fps;
+    }
+
+    private static CPURAM runFrames(final String rom, final int frames, final boolean accurate) {
+        final HeadlessUI ui = new HeadlessUI(rom, false);
+        ui.getNes().getCPU().setCycleAccurate(accurate);
+        for (int i = 0; i < frames; ++i) {
+            ui.runFrame();
+        }
+        return ui.getNes().getCPURAM();
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * HalfNES by Andrew Hoffman
+ * Licensed under the GNU GPL Version 3. See LICENSE file
+ */
+package com.grapeshot.halfnes;
+
+/**
+ * A way of running 6502 code, as seen by the PPU that clocks it. CPU itself
+ * is the fast core: it runs a whole instruction on its first cycle and then
+ * counts down. CycleCPU does every bus access on the cycle it really happens
+ * on. Both work on the registers and interrupt lines kept in CPU, so each CPU
+ * instance can use whichever suits it (see CPU.setCycleAccurate()).
+ */
+public interface CPUCore {
+
+    /**
+     * Runs one CPU cycle.
+     *
+     * @param scanline PPU scanline, for the debug log
+     * @param pixel PPU dot, for the debug log
+     * @return how many of the following cycles can be skipped with
+     * skipcycles() instead, because nothing happens on them except counting
+     * down
+     */
+    public int runcycle(int scanline, int pixel);
+
+    /**
+     * Catches up on cycles skipped as allowed by runcycle().
+     *
+     * @param skipped number of cycles skipped, no more than runcycle() allowed
+     */
+    public void skipcycles(int skipped);
+}
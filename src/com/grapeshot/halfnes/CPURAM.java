@@ -21,25 +21,54 @@ public class CPURAM {
     Mapper mapper;
     public APU apu;
     PPU ppu; //need these to call their write handlers from here.
-    private HashMap<Integer, Patch> patches = new HashMap<>();
+    //page table: a read from page addr >> 8 comes straight out of
+    //pages[page][offsets[page] + (addr & 0xff)], unless the page is null,
+    //which means registers or a mapper that has to see the read. Pages past
+    //0xff catch addresses that wrapped past $FFFF and always take the long
+    //way like they used to.
+    private final int[][] pages = new int[0x200][];
+    private final int[] offsets = new int[0x200];
+    //cheat patches, compiled into an open addressed hash table keyed on the
+    //address (-1 for an empty slot). Pages with a patch on them are left out
+    //of the page table and flagged, so only reads from those pages ever
+    //look at the table.
+    private int[] patchaddrs = new int[0];
+    private Patch[] patchtable = new Patch[0];
+    private int patchmask = 0;
+    private final boolean[] patched = new boolean[0x200];
+    private int[] patchedpages = new int[0];
+    //sprite DMA source for pages that can't be copied directly
+    private final int[] dmabuffer = new int[256];
 
     public CPURAM(final Mapper mappy) {
         mapper = mappy;
         // init memory
         Arrays.fill(wram, 0xff);
+        mapWRAM();
     }
 
     public final int read(final int addr) {
-        if (!patches.isEmpty()) {
-            int retval = _read(addr);
-            Patch p = patches.get(addr);
-            if (p != null && p.getAddress() == addr && p.matchesData(retval)) {
-                return p.getData();
+        final int page = addr >> 8;
+        final int[] data = pages[page];
+        if (data != null) {
+            return data[offsets[page] + (addr & 0xff)];
+        }
+        final int retval = _read(addr);
+        return patched[page] ? patch(addr, retval) : retval;
+    }
+
+    private int patch(final int addr, final int retval) {
+        for (int i = hash(addr) & patchmask; patchaddrs[i] >= 0; i = (i + 1) & patchmask) {
+            if (patchaddrs[i] == addr) {
+                final Patch p = patchtable[i];
+                return p.matchesData(retval) ? p.getData() : retval;
             }
-            return retval;
-        } else {
-            return _read(addr);
         }
+        return retval;
+    }
+
+    private static int hash(final int addr) {
+        return addr ^ (addr >> 7);
     }
 
     public final int _read(final int addr) {
@@ -62,7 +91,17 @@ public class CPURAM {
 //            System.err.println("DANGER WILL ROBINSON");
 //        }
         if (addr > 0x4018) {
+            //the PPU may be drawing a line late, see PPU.catchUp(); a plain
+            //PRG RAM write can't change how it's drawn
+            if (addr >= 0x8000 || addr < 0x6000 || !mapper.plainPRGRAMWrite()) {
+                ppu.catchUp();
+            }
             mapper.cartWrite(addr, data);
+            //might have been a bank switch
+            mapper.mapPages(pages, offsets, false);
+            if (patchedpages.length > 0) {
+                unmapPatched();
+            }
         } else if (addr <= 0x1fff) {
             wram[addr & 0x7FF] = data;
         } else if (addr <= 0x3fff) {
@@ -73,6 +112,25 @@ public class CPURAM {
         }
     }
 
+    /**
+     * Copies a page into OAM for sprite DMA: straight out of the page table
+     * in one go if the page is mapped, otherwise read a byte at a time the
+     * way the DMA would.
+     *
+     * @param page high byte of the address to copy from
+     */
+    final void spriteDMA(final int page) {
+        final int[] data = pages[page];
+        if (data != null) {
+            ppu.spriteDMA(data, offsets[page]);
+            return;
+        }
+        for (int i = 0; i < 256; ++i) {
+            dmabuffer[i] = read((page << 8) | i);
+        }
+        ppu.spriteDMA(dmabuffer, 0);
+    }
+
     public void setAPU(APU apu) {
         this.apu = apu;
     }
@@ -81,7 +139,91 @@ public class CPURAM {
         this.ppu = ppu;
     }
 
+    /**
+     * Replaces the active cheat patches with the ones in p. The map is
+     * copied into a lookup table, so later changes to it need another call.
+     */
     public void setPatches(HashMap<Integer, Patch> p) {
-        this.patches = p;
+        int size = 4;
+        while (size < p.size() * 2) {
+            size <<= 1;
+        }
+        final int[] addrs = new int[size];
+        final Patch[] table = new Patch[size];
+        Arrays.fill(addrs, -1);
+        Arrays.fill(patched, false);
+        int npages = 0;
+        for (Patch patch : p.values()) {
+            final int addr = patch.getAddress();
+            if (addr < 0 || (addr >> 8) >= patched.length) {
+                continue; //can't ever be read
+            }
+            int i = hash(addr) & (size - 1);
+            while (addrs[i] >= 0) {
+                i = (i + 1) & (size - 1);
+            }
+            addrs[i] = addr;
+            table[i] = patch;
+            if (!patched[addr >> 8]) {
+                patched[addr >> 8] = true;
+                ++npages;
+            }
+        }
+        patchedpages = new int[npages];
+        for (int page = 0, n = 0; page < patched.length; ++page) {
+            if (patched[page]) {
+                patchedpages[n++] = page;
+            }
+        }
+        patchaddrs = addrs;
+        patchtable = table;
+        patchmask = size - 1;
+        remap();
+    }
+
+    /**
+     * Rebuilds the page table. Needed after the mapper changes banks other
+     * than by a cartridge write (power on, reset) and after the patches
+     * change.
+     */
+    public final void remap() {
+        mapWRAM();
+        mapper.mapPages(pages, offsets, true);
+        unmapPatched();
+    }
+
+    //pages with patches always take the long way so they can be checked
+    private void unmapPatched() {
+        for (int page : patchedpages) {
+            pages[page] = null;
+        }
+    }
+
+    private void mapWRAM() {
+        for (int page = 0; page < 0x20; ++page) {
+            pages[page] = wram;
+            offsets[page] = (page & 7) << 8;
+        }
+    }
+
+    public final boolean hasPatches() {
+        return patchedpages.length > 0;
+    }
+
+    /**
+     * @return true if a patch applies somewhere in the 256 byte page addr is
+     * in
+     */
+    public final boolean isPatched(final int addr) {
+        return patched[(addr >> 8) & 0x1ff];
+    }
+
+    /**
+     * The live 2K of internal RAM, not a copy. For per-frame readers that
+     * want to skip the patch and mapper checks in read(); anything written
+     * here is seen by the CPU on its next access.
+     */
+    public int[] getWRAM() {
+        return wram;
     }
 }
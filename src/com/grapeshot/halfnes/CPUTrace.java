@@ -0,0 +1,293 @@
+/*
+ * HalfNES by Andrew Hoffman
+ * Licensed under the GNU GPL Version 3. See LICENSE file
+ */
+package com.grapeshot.halfnes;
+
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary trace of executed instructions. The CPU only copies a few ints into
+ * a preallocated ring buffer per instruction; turning records into text is
+ * done later, either when the buffer is drained to a text log or offline
+ * from a binary trace file with format() / main().
+ *
+ * Every record is RECORD ints: PC | type << 16 | opcode << 24, the two
+ * operand bytes | S << 16 | P << 24, A | X << 8 | Y << 16, dot | scanline <<
+ * 16, and the cpu clock count. Binary files are just those ints, big endian.
+ */
+public final class CPUTrace {
+
+    public final static int RECORD = 5;
+    //record types; anything but an instruction is an event like an NMI
+    public final static int INSTRUCTION = 0, NMI = 1, INTERRUPT = 2,
+            BREAK = 3, STEAL = 4, PC_SET = 5;
+    private final static String[] opcodes = CPU.opcodes();
+    private final int[] buf;
+    private int pos = 0;
+    private boolean wrapped = false;
+    //where full buffers go; both null for a plain ring that keeps the newest
+    private final WritableByteChannel binary;
+    private final Writer text;
+    private final ByteBuffer bytes;
+
+    /**
+     * A ring buffer that keeps the last few instructions, e.g. to look at
+     * what led up to a crash with format().
+     *
+     * @param records number of records kept
+     */
+    public CPUTrace(final int records) {
+        this(records, null, null);
+    }
+
+    /**
+     * Streams a binary trace: each time the buffer fills up it is written to
+     * out in one go.
+     *
+     * @param records number of records to buffer between writes
+     * @param out where the binary trace goes
+     */
+    public CPUTrace(final int records, final OutputStream out) {
+        this(records, Channels.newChannel(out), null);
+    }
+
+    /**
+     * Streams a text log in nestest.log format, formatting a whole buffer
+     * at a time.
+     *
+     * @param records number of records to buffer between writes
+     * @param out where the log goes
+     */
+    public CPUTrace(final int records, final Writer out) {
+        this(records, null, out);
+    }
+
+    private CPUTrace(final int records, final WritableByteChannel binary, final Writer text) {
+        if (records < 1) {
+            throw new IllegalArgumentException("Trace needs at least one record, not " + records);
+        }
+        buf = new int[records * RECORD];
+        this.binary = binary;
+        this.text = text;
+        bytes = (binary == null) ? null : ByteBuffer.allocate(buf.length * 4);
+    }
+
+    final void instruction(final int pc, final int opcode, final int operands,
+            final int a, final int x, final int y, final int p, final int s,
+            final int dot, final int scanline, final int clocks) {
+        if (pos == buf.length) {
+            full();
+        }
+        final int[] b = buf;
+        int i = pos;
+        b[i] = pc | (opcode << 24);
+        b[++i] = operands | (s << 16) | (p << 24);
+        b[++i] = a | (x << 8) | (y << 16);
+        b[++i] = dot | (scanline << 16);
+        b[++i] = clocks;
+        pos = i + 1;
+    }
+
+    final void event(final int type, final int arg, final int pc) {
+        if (pos == buf.length) {
+            full();
+        }
+        final int[] b = buf;
+        int i = pos;
+        b[i] = pc | (type << 16);
+        b[++i] = arg;
+        b[++i] = 0;
+        b[++i] = 0;
+        b[++i] = 0;
+        pos = i + 1;
+    }
+
+    private void full() {
+        if (binary == null && text == null) {
+            pos = 0;
+            wrapped = true;
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            System.err.println("Cannot write to debug log" + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Writes out everything buffered so far, if there is somewhere to write
+     * it.
+     *
+     * @throws IOException if the output does
+     */
+    public void flush() throws IOException {
+        if (binary != null) {
+            bytes.clear();
+            bytes.asIntBuffer().put(buf, 0, pos);
+            bytes.limit(pos * 4);
+            while (bytes.hasRemaining()) {
+                binary.write(bytes);
+            }
+            pos = 0;
+        } else if (text != null) {
+            format(buf, 0, pos, text);
+            text.flush();
+            pos = 0;
+        }
+    }
+
+    /**
+     * Flushes and closes the output, if any.
+     *
+     * @throws IOException if the output does
+     */
+    public void close() throws IOException {
+        flush();
+        if (binary != null) {
+            binary.close();
+        } else if (text != null) {
+            text.close();
+        }
+    }
+
+    /**
+     * @return number of records in the buffer that haven't been written out
+     */
+    public int size() {
+        return (wrapped ? buf.length : pos) / RECORD;
+    }
+
+    /**
+     * Formats the records still in the buffer, oldest first.
+     *
+     * @param out where the text goes
+     * @throws IOException if out does
+     */
+    public void format(final Writer out) throws IOException {
+        if (wrapped) {
+            format(buf, pos, buf.length - pos, out);
+        }
+        format(buf, 0, pos, out);
+    }
+
+    /**
+     * Converts a binary trace to a text log.
+     *
+     * @param in binary trace as written by a streaming CPUTrace
+     * @param out where the text goes
+     * @throws IOException if either stream does
+     */
+    public static void format(final InputStream in, final Writer out) throws IOException {
+        final DataInputStream data = new DataInputStream(in);
+        final int[] record = new int[RECORD];
+        while (true) {
+            try {
+                for (int i = 0; i < RECORD; ++i) {
+                    record[i] = data.readInt();
+                }
+            } catch (EOFException e) {
+                break;
+            }
+            format(record, 0, RECORD, out);
+        }
+        out.flush();
+    }
+
+    private static void format(final int[] b, final int start, final int length,
+            final Writer out) throws IOException {
+        final StringBuilder sb = new StringBuilder(96);
+        for (int i = start; i < start + length; i += RECORD) {
+            sb.setLength(0);
+            final int pc = b[i] & 0xffff;
+            final int type = (b[i] >> 16) & 0xff;
+            if (type != INSTRUCTION) {
+                out.write(event(type, b[i + 1]));
+                out.write('\n');
+                continue;
+            }
+            final int opcode = b[i] >>> 24;
+            final int op1 = b[i + 1] & 0xff, op2 = (b[i + 1] >> 8) & 0xff;
+            final String asm = opcodes[opcode];
+            sb.append(String.format("%04X  %02X", pc, opcode));
+            final int size = length(asm);
+            if (size > 1) {
+                sb.append(String.format(" %02X", op1));
+            }
+            if (size > 2) {
+                sb.append(String.format(" %02X", op2));
+            }
+            while (sb.length() < 16) {
+                sb.append(' ');
+            }
+            sb.append(String.format(asm, op1, op2, pc + 2 + (byte) op1));
+            while (sb.length() < 48) {
+                sb.append(' ');
+            }
+            sb.append(String.format("A:%02X X:%02X Y:%02X P:%02X SP:%02X PPU:%3d,%3d CYC:%d\n",
+                    b[i + 2] & 0xff, (b[i + 2] >> 8) & 0xff, (b[i + 2] >> 16) & 0xff,
+                    b[i + 1] >>> 24, (b[i + 1] >> 16) & 0xff,
+                    b[i + 3] >>> 16, b[i + 3] & 0xffff, b[i + 4]));
+            out.write(sb.toString());
+        }
+    }
+
+    private static String event(final int type, final int arg) {
+        switch (type) {
+            case NMI:
+                return "**NMI**";
+            case INTERRUPT:
+                return "**INTERRUPT**";
+            case BREAK:
+                return "**BREAK**";
+            case STEAL:
+                return "**STEAL " + arg + "**";
+            case PC_SET:
+                return "**PC SET**";
+            default:
+                return "**UNKNOWN EVENT " + type + "**";
+        }
+    }
+
+    //instruction length from the disassembly format: %2 means a 16 bit
+    //operand, except for (zp,x) which is written the same way
+    private static int length(final String asm) {
+        if (asm.contains("%2$") && !asm.contains("$(")) {
+            return 3;
+        }
+        return (asm.contains("%1$") || asm.contains("%3$")) ? 2 : 1;
+    }
+
+    /**
+     * Converts a binary trace file to a nestest.log style text file.
+     *
+     * @param args binary trace, text log
+     * @throws IOException if either file can't be used
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: CPUTrace trace.bin trace.log");
+            return;
+        }
+        try (InputStream in = new FileInputStream(new File(args[0]));
+                Writer out = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(new File(args[1])), StandardCharsets.UTF_8))) {
+            format(in, out);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * HalfNES by Andrew Hoffman
+ * Licensed under the GNU GPL Version 3. See LICENSE file
+ */
+package com.grapeshot.halfnes;
+
+import com.grapeshot.halfnes.mappers.BadMapperException;
+import com.grapeshot.halfnes.ui.ControllerInterface;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import org.testng.annotations.Test;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Traces a ROM that spends nearly all its time in polling loops, the ones the
+ * CPU would otherwise skip over, and checks the trace has every instruction.
+ */
+public class CPUTraceTest {
+
+    @Test
+    public void pollingLoopsTraceWithoutGaps() throws BadMapperException, IOException {
+        final File rom = pollingROM();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            final NES nes = new NES(null);
+            nes.loadROM(rom.getPath());
+            nes.setControllers(mock(ControllerInterface.class), mock(ControllerInterface.class));
+            nes.getCPU().startTrace(new CPUTrace(1024, out));
+            for (int i = 0; i < 10; ++i) {
+                nes.frameAdvance();
+            }
+            nes.getCPU().stopLog();
+        } finally {
+            rom.delete();
+        }
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        final int[] record = new int[CPUTrace.RECORD];
+        int records = 0, polls = 0, nmis = 0, lastclocks = -1, interrupted = 0;
+        while (in.available() > 0) {
+            for (int i = 0; i < CPUTrace.RECORD; ++i) {
+                record[i] = in.readInt();
+            }
+            ++records;
+            if (((record[0] >> 16) & 0xff) != CPUTrace.INSTRUCTION) {
+                nmis += (((record[0] >> 16) & 0xff) == CPUTrace.NMI) ? 1 : 0;
+                //the handler's first instruction starts on the same cycle,
+                //so the NMI's 7 cycles turn up in the gap after that one
+                interrupted = 2;
+                continue;
+            }
+            final int pc = record[0] & 0xffff, clocks = record[4];
+            if (pc == 0xc013) {
+                ++polls;
+            }
+            //the clock count goes back down at the end of every frame
+            if (lastclocks >= 0 && clocks > lastclocks) {
+                //no instruction takes more than 7 cycles, nor does an NMI
+                final int most = (interrupted > 0) ? 14 : 7;
+                assertTrue("trace skips " + (clocks - lastclocks) + " cycles before "
+                        + Integer.toHexString(pc) + " at CYC:" + clocks,
+                        clocks - lastclocks <= most);
+            }
+            lastclocks = clocks;
+            --interrupted;
+        }
+        assertTrue("only " + records + " records", records > 10000);
+        assertTrue("only " + nmis + " NMIs", nmis >= 8);
+        assertTrue("RAM polling loop only traced " + polls + " times", polls > 10000);
+    }
+
+    /**
+     * Writes out an NROM image that waits for vblank on $2002, turns on NMI
+     * and then waits for each NMI by polling a RAM flag the handler sets.
+     */
+    private static File pollingROM() throws IOException {
+        final int[] code = {
+            0x78, //SEI
+            0xd8, //CLD
+            0xa2, 0xff, //LDX #$FF
+            0x9a, //TXS
+            0x2c, 0x02, 0x20, //$C005: BIT $2002
+            0x10, 0xfb, //BPL $C005
+            0xa9, 0x80, //LDA #$80
+            0x8d, 0x00, 0x20, //STA $2000
+            0xa9, 0x00, //$C00F: LDA #0
+            0x85, 0x10, //STA $10
+            0xa5, 0x10, //$C013: LDA $10
+            0xf0, 0xfc, //BEQ $C013
+            0x4c, 0x0f, 0xc0, //JMP $C00F
+            //NMI at $C01A, the RTI doubles as the IRQ handler
+            0xe6, 0x10, //INC $10
+            0x40 //RTI
+        };
+        final byte[] image = new byte[16 + 0x4000 + 0x2000];
+        image[0] = 'N';
+        image[1] = 'E';
+        image[2] = 'S';
+        image[3] = 0x1a;
+        image[4] = 1; //16K PRG
+        image[5] = 1; //8K CHR
+        for (int i = 0; i < code.length; ++i) {
+            image[16 + i] = (byte) code[i];
+        }
+        //NMI, reset and IRQ vectors
+        final int[] vectors = {0x1a, 0xc0, 0x00, 0xc0, 0x1c, 0xc0};
+        for (int i = 0; i < vectors.length; ++i) {
+            image[16 + 0x3ffa + i] = (byte) vectors[i];
+        }
+        final File rom = File.createTempFile("polling", ".nes");
+        try (FileOutputStream out = new FileOutputStream(rom)) {
+            out.write(image);
+        }
+        return rom;
+    }
+}
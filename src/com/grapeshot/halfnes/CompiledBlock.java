@@ -0,0 +1,36 @@
+/*
+ * HalfNES by Andrew Hoffman
+ * Licensed under the GNU GPL Version 3. See LICENSE file
+ */
+package com.grapeshot.halfnes;
+
+/**
+ * A run of 6502 instructions translated to JVM bytecode by BlockCompiler.
+ * Has to be public so the generated classes, which live in their own class
+ * loader, can implement it.
+ */
+public interface CompiledBlock {
+
+    /**
+     * Runs every instruction of the block.
+     *
+     * @param regs A, X, Y, S, carry (0/1), overflow (0/1), then the values the
+     * zero and negative flags come from (zero if it is 0, negative if bit 7 is
+     * set); read on entry and written back on exit
+     * @param wram the 2K of internal RAM
+     * @return the number of cycles the instructions took
+     */
+    public int run(int[] regs, int[] wram);
+
+    /**
+     * @return number of bytes of code the block covers, so PC + length() is
+     * the next instruction
+     */
+    public int length();
+
+    /**
+     * @return the most cycles run() can take, with every indexed read
+     * crossing a page
+     */
+    public int maxCycles();
+}
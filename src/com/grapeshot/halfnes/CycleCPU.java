@@ -0,0 +1,931 @@
+/*
+ * HalfNES by Andrew Hoffman
+ * Licensed under the GNU GPL Version 3. See LICENSE file
+ */
+package com.grapeshot.halfnes;
+
+/**
+ * Cycle accurate 6502 core. Every cycle does exactly one bus access, the same
+ * one the real chip does on that cycle (dummy reads and writes included), so
+ * writes to PPU registers land on the right dot without the fast core's
+ * Battletoads hack. Interrupt lines are polled on the last cycle but one of
+ * each instruction, which gets the one instruction delay after CLI, SEI and
+ * PLP, NMIs taking over a BRK or IRQ that has already started, and taken
+ * branches without a page cross not polling.
+ *
+ * Registers, flags and interrupt lines all live in the CPU this belongs to,
+ * so the two cores can be swapped on an instruction boundary. No idle loop
+ * skipping or compiled blocks here: those are what make the fast core fast,
+ * and neither can keep to the cycle.
+ */
+final class CycleCPU implements CPUCore {
+
+    private final CPU cpu;
+    private final CPURAM ram;
+    //addressing modes
+    private final static int IMP = 0, IMM = 1, ZP = 2, ZPX = 3, ZPY = 4,
+            ABS = 5, ABSX = 6, ABSY = 7, IND = 8, INDX = 9, INDY = 10, REL = 11;
+    //what an instruction does with the address it works out
+    private final static int NONE = 0, READ = 1, WRITE = 2, MODIFY = 3;
+
+    private static enum Op {
+
+        ADC(READ), AHX(WRITE), ALR(READ), ANC(READ), AND(READ), ARR(READ),
+        ASL(MODIFY), AXS(READ), BCC(NONE), BCS(NONE), BEQ(NONE), BIT(READ),
+        BMI(NONE), BNE(NONE), BPL(NONE), BRK(NONE), BVC(NONE), BVS(NONE),
+        CLC(NONE), CLD(NONE), CLI(NONE), CLV(NONE), CMP(READ), CPX(READ),
+        CPY(READ), DCP(MODIFY), DEC(MODIFY), DEX(NONE), DEY(NONE), EOR(READ),
+        INC(MODIFY), INX(NONE), INY(NONE), ISC(MODIFY), JMP(NONE), JSR(NONE),
+        KIL(NONE), LAS(READ), LAX(READ), LDA(READ), LDX(READ), LDY(READ),
+        LSR(MODIFY), NOP(READ), ORA(READ), PHA(NONE), PHP(NONE), PLA(NONE),
+        PLP(NONE), RLA(MODIFY), ROL(MODIFY), ROR(MODIFY), RRA(MODIFY),
+        RTI(NONE), RTS(NONE), SAX(WRITE), SBC(READ), SEC(NONE), SED(NONE),
+        SEI(NONE), SHX(WRITE), SHY(WRITE), SLO(MODIFY), SRE(MODIFY),
+        STA(WRITE), STX(WRITE), STY(WRITE), TAS(WRITE), TAX(NONE), TAY(NONE),
+        TSX(NONE), TXA(NONE), TXS(NONE), TYA(NONE), XAA(READ);
+        final int kind;
+
+        Op(final int kind) {
+            this.kind = kind;
+        }
+    }
+    //steps of an instruction; each one is a single cycle and bus access
+    private final static int FETCH = 0, IMPLIED = 1, IMMEDIATE = 2,
+            ZP_ADDR = 3, ZPI_ADDR = 4, ZPI_ADD = 5,
+            ABS_LO = 6, ABS_HI = 7, ABSI_LO = 8, ABSI_HI = 9, FIX = 10,
+            IX_PTR = 11, IX_ADD = 12, IX_LO = 13, IX_HI = 14,
+            IY_PTR = 15, IY_LO = 16, IY_HI = 17,
+            READ_OP = 18, WRITE_OP = 19, RMW_READ = 20, RMW_DUMMY = 21,
+            RMW_WRITE = 22,
+            BRANCH = 23, BRANCH_TAKEN = 24, BRANCH_FIX = 25,
+            JMP_HI = 26, JMPI_LO = 27, JMPI_HI = 28, JMPI_PCL = 29, JMPI_PCH = 30,
+            JSR_LO = 31, JSR_STACK = 32, JSR_PCH = 33, JSR_PCL = 34, JSR_HI = 35,
+            PUSH_DUMMY = 36, PUSH = 37, PULL_DUMMY = 38, PULL_STACK = 39,
+            PULL = 40,
+            RTS_DUMMY = 41, RTS_STACK = 42, RTS_PCL = 43, RTS_PCH = 44,
+            RTS_INC = 45,
+            RTI_DUMMY = 46, RTI_STACK = 47, RTI_P = 48, RTI_PCL = 49,
+            RTI_PCH = 50,
+            BRK_PAD = 51, INT_DUMMY = 52, INT_PCH = 53, INT_PCL = 54,
+            INT_P = 55, INT_VLO = 56, INT_VHI = 57,
+            JAM = 58, JAMMED = 59;
+    //decoded from the disassembly table so the two can't disagree
+    private final static Op[] ops = new Op[256];
+    private final static int[] modes = new int[256], firststeps = new int[256];
+
+    static {
+        final String[] asm = CPU.opcodes();
+        for (int i = 0; i < 256; ++i) {
+            ops[i] = Op.valueOf(asm[i].substring(0, 3));
+            modes[i] = mode(asm[i]);
+            firststeps[i] = firststep(ops[i], modes[i]);
+        }
+    }
+    private int step = FETCH, mode;
+    private Op op;
+    private int addr, base, ptr, data, vector;
+    private boolean crossed, brk;
+    //interrupts as polled on the last cycle but one of the instruction
+    private boolean nmipoll = false, irqpoll = false, nopoll = false;
+    //DMC fetch waiting for the CPU to stop writing, and how long it takes
+    private boolean dmcpending = false;
+    private int dmcstall;
+
+    CycleCPU(final CPU cpu, final CPURAM ram) {
+        this.cpu = cpu;
+        this.ram = ram;
+    }
+
+    /**
+     * Forgets the instruction in progress, so the next cycle fetches an
+     * opcode from PC. For reset and for setting PC from outside.
+     */
+    void reset() {
+        step = FETCH;
+        if (dmcpending) {
+            dmcpending = false;
+            cpu.dmcDMA(4);
+        }
+        nmipoll = false;
+        irqpoll = false;
+    }
+
+    /**
+     * @return true if the next cycle starts a new instruction, so the fast
+     * core can take over
+     */
+    boolean atInstructionStart() {
+        return step == FETCH;
+    }
+
+    @Override
+    public int runcycle(final int scanline, final int pixel) {
+        ram.read(0x4000); //sync the APU every cycle, same as the fast core
+        ++cpu.clocks;
+        if (dmcpending && !writing()) {
+            dmcpending = false;
+            cpu.dmcDMA(dmcstall);
+        }
+        if (cpu.cycles > 0) {
+            //halted for DMA. Skipping ahead would leave DMC fetches the APU
+            //asks for in the meantime waiting, so only do that without one
+            --cpu.cycles;
+            return ram.apu.dmcActive() ? 0 : cpu.cycles;
+        }
+        step(scanline, pixel);
+
+        if (step != FETCH && !nopoll) {
+            //a rising NMI edge stays latched in the interrupt lines until
+            //taken, whichever core saw it first
+            nmipoll = (cpu.lines & (CPU.NMI_EDGE | CPU.NMI_NEXT)) != 0;
+            irqpoll = (cpu.lines & cpu.irqmask) != 0 && !cpu.interruptsDisabled;
+        }
+        nopoll = false;
+        return 0;
+    }
+
+    @Override
+    public void skipcycles(final int skipped) {
+        cpu.clocks += skipped;
+        cpu.cycles -= skipped;
+    }
+
+    /**
+     * DMC DMA only halts the CPU on a read, so if it's writing the fetch
+     * waits for that to finish. It takes 4 cycles, except when it comes in
+     * on a write that isn't straight after another write, which saves one.
+     */
+    void requestDMC() {
+        if (cpu.cycles > 0 || !writing()) {
+            cpu.dmcDMA(4);
+            return;
+        }
+        dmcpending = true;
+        dmcstall = (step == RMW_WRITE || step == JSR_PCL
+                || step == INT_PCL || step == INT_P) ? 4 : 3;
+    }
+
+    //whether the next step writes
+    private boolean writing() {
+        switch (step) {
+            case WRITE_OP:
+            case RMW_DUMMY:
+            case RMW_WRITE:
+            case PUSH:
+            case JSR_PCH:
+            case JSR_PCL:
+            case INT_PCH:
+            case INT_PCL:
+            case INT_P:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void step(final int scanline, final int pixel) {
+        switch (step) {
+            case FETCH: {
+                crossed = false;
+                if (nmipoll || irqpoll) {
+                    ram.read(cpu.PC); //opcode fetch, thrown away
+                    nmipoll = false;
+                    irqpoll = false;
+                    brk = false;
+                    step = INT_DUMMY;
+                    break;
+                }
+                final int opcode = ram.read(cpu.PC);
+                if (cpu.trace != null) {
+                    cpu.trace.instruction(cpu.PC, opcode,
+                            ram.read((cpu.PC + 1) & 0xffff) | (ram.read((cpu.PC + 2) & 0xffff) << 8),
+                            cpu.A, cpu.X, cpu.Y, cpu.flagstobyte(), cpu.S,
+                            pixel, scanline, cpu.clocks);
+                }
+                cpu.PC = (cpu.PC + 1) & 0xffff;
+                op = ops[opcode];
+                mode = modes[opcode];
+                step = firststeps[opcode];
+                break;
+            }
+            case IMPLIED:
+                ram.read(cpu.PC);
+                implied();
+                step = FETCH;
+                break;
+            case IMMEDIATE:
+                load(operand());
+                step = FETCH;
+                break;
+            //zero page
+            case ZP_ADDR:
+                addr = operand();
+                operate();
+                break;
+            case ZPI_ADDR:
+                addr = operand();
+                step = ZPI_ADD;
+                break;
+            case ZPI_ADD:
+                ram.read(addr);
+                addr = (addr + ((mode == ZPY) ? cpu.Y : cpu.X)) & 0xff;
+                operate();
+                break;
+            //absolute
+            case ABS_LO:
+                addr = operand();
+                step = (op == Op.JMP) ? JMP_HI : ABS_HI;
+                break;
+            case ABS_HI:
+                addr |= operand() << 8;
+                operate();
+                break;
+            case ABSI_LO:
+                addr = operand();
+                step = ABSI_HI;
+                break;
+            case ABSI_HI:
+                base = addr | (operand() << 8);
+                addr = (base + ((mode == ABSY) ? cpu.Y : cpu.X)) & 0xffff;
+                step = FIX;
+                break;
+            case FIX: {
+                //the low byte has been added but not the carry into the
+                //high byte, so this reads from the wrong page if it crossed
+                final int partial = (base & 0xff00) | (addr & 0xff);
+                crossed = (partial != addr);
+                if (op.kind == READ && !crossed) {
+                    load(ram.read(addr));
+                    step = FETCH;
+                } else {
+                    ram.read(partial);
+                    operate();
+                }
+                break;
+            }
+            //(zp,x)
+            case IX_PTR:
+                ptr = operand();
+                step = IX_ADD;
+                break;
+            case IX_ADD:
+                ram.read(ptr);
+                ptr = (ptr + cpu.X) & 0xff;
+                step = IX_LO;
+                break;
+            case IX_LO:
+                addr = ram.read(ptr);
+                step = IX_HI;
+                break;
+            case IX_HI:
+                addr |= ram.read((ptr + 1) & 0xff) << 8;
+                operate();
+                break;
+            //(zp),y
+            case IY_PTR:
+                ptr = operand();
+                step = IY_LO;
+                break;
+            case IY_LO:
+                addr = ram.read(ptr);
+                step = IY_HI;
+                break;
+            case IY_HI:
+                base = addr | (ram.read((ptr + 1) & 0xff) << 8);
+                addr = (base + cpu.Y) & 0xffff;
+                step = FIX;
+                break;
+            //doing something with the address
+            case READ_OP:
+                load(ram.read(addr));
+                step = FETCH;
+                break;
+            case WRITE_OP: {
+                final int value = store();
+                ram.write(addr, value);
+                step = FETCH;
+                break;
+            }
+            case RMW_READ:
+                data = ram.read(addr);
+                step = RMW_DUMMY;
+                break;
+            case RMW_DUMMY:
+                ram.write(addr, data);
+                data = modify(data);
+                step = RMW_WRITE;
+                break;
+            case RMW_WRITE:
+                ram.write(addr, data);
+                step = FETCH;
+                break;
+            //branches
+            case BRANCH: {
+                final int offset = operand();
+                if (taken()) {
+                    addr = (cpu.PC + (byte) offset) & 0xffff;
+                    //a taken branch doesn't poll here, so an interrupt
+                    //that comes in now waits for the next instruction
+                    nopoll = true;
+                    step = BRANCH_TAKEN;
+                } else {
+                    step = FETCH;
+                }
+                break;
+            }
+            case BRANCH_TAKEN:
+                ram.read(cpu.PC);
+                if ((addr & 0xff00) == (cpu.PC & 0xff00)) {
+                    cpu.PC = addr;
+                    step = FETCH;
+                } else {
+                    cpu.PC = (cpu.PC & 0xff00) | (addr & 0xff);
+                    step = BRANCH_FIX;
+                }
+                break;
+            case BRANCH_FIX:
+                ram.read(cpu.PC);
+                cpu.PC = addr;
+                step = FETCH;
+                break;
+            //jumps
+            case JMP_HI:
+                cpu.PC = addr | (ram.read(cpu.PC) << 8);
+                step = FETCH;
+                break;
+            case JMPI_LO:
+                addr = operand();
+                step = JMPI_HI;
+                break;
+            case JMPI_HI:
+                addr |= operand() << 8;
+                step = JMPI_PCL;
+                break;
+            case JMPI_PCL:
+                data = ram.read(addr);
+                step = JMPI_PCH;
+                break;
+            case JMPI_PCH:
+                //the pointer's high byte comes from the same page
+                cpu.PC = data | (ram.read((addr & 0xff00) | ((addr + 1) & 0xff)) << 8);
+                step = FETCH;
+                break;
+            case JSR_LO:
+                addr = operand();
+                step = JSR_STACK;
+                break;
+            case JSR_STACK:
+                ram.read(0x100 | cpu.S);
+                step = JSR_PCH;
+                break;
+            case JSR_PCH:
+                push(cpu.PC >> 8);
+                step = JSR_PCL;
+                break;
+            case JSR_PCL:
+                push(cpu.PC & 0xff);
+                step = JSR_HI;
+                break;
+            case JSR_HI:
+                cpu.PC = addr | (ram.read(cpu.PC) << 8);
+                step = FETCH;
+                break;
+            //stack
+            case PUSH_DUMMY:
+                ram.read(cpu.PC);
+                step = PUSH;
+                break;
+            case PUSH:
+                push((op == Op.PHA) ? cpu.A : cpu.flagstobyte() | utils.BIT4);
+                step = FETCH;
+                break;
+            case PULL_DUMMY:
+                ram.read(cpu.PC);
+                step = PULL_STACK;
+                break;
+            case PULL_STACK:
+                ram.read(0x100 | cpu.S);
+                step = PULL;
+                break;
+            case PULL:
+                if (op == Op.PLA) {
+                    cpu.A = pop();
+                    setflags(cpu.A);
+                } else {
+                    cpu.bytetoflags(pop());
+                }
+                step = FETCH;
+                break;
+            case RTS_DUMMY:
+                ram.read(cpu.PC);
+                step = RTS_STACK;
+                break;
+            case RTS_STACK:
+                ram.read(0x100 | cpu.S);
+                step = RTS_PCL;
+                break;
+            case RTS_PCL:
+                addr = pop();
+                step = RTS_PCH;
+                break;
+            case RTS_PCH:
+                cpu.PC = addr | (pop() << 8);
+                step = RTS_INC;
+                break;
+            case RTS_INC:
+                ram.read(cpu.PC);
+                cpu.PC = (cpu.PC + 1) & 0xffff;
+                step = FETCH;
+                break;
+            case RTI_DUMMY:
+                ram.read(cpu.PC);
+                step = RTI_STACK;
+                break;
+            case RTI_STACK:
+                ram.read(0x100 | cpu.S);
+                step = RTI_P;
+                break;
+            case RTI_P:
+                cpu.bytetoflags(pop());
+                step = RTI_PCL;
+                break;
+            case RTI_PCL:
+                addr = pop();
+                step = RTI_PCH;
+                break;
+            case RTI_PCH:
+                cpu.PC = addr | (pop() << 8);
+                step = FETCH;
+                break;
+            //BRK, IRQ and NMI
+            case BRK_PAD:
+                if (cpu.trace != null) {
+                    cpu.trace.event(CPUTrace.BREAK, 0, cpu.PC);
+                }
+                operand();
+                brk = true;
+                step = INT_PCH;
+                break;
+            case INT_DUMMY:
+                ram.read(cpu.PC);
+                step = INT_PCH;
+                break;
+            case INT_PCH:
+                push(cpu.PC >> 8);
+                step = INT_PCL;
+                break;
+            case INT_PCL:
+                push(cpu.PC & 0xff);
+                step = INT_P;
+                break;
+            case INT_P: {
+                //an NMI by now gets the NMI vector, even if this started
+                //out as a BRK or an IRQ
+                final boolean nmi = (cpu.lines & (CPU.NMI_EDGE | CPU.NMI_NEXT)) != 0;
+                cpu.lines &= ~(CPU.NMI_EDGE | CPU.NMI_NEXT);
+                vector = nmi ? 0xfffa : 0xfffe;
+                if (cpu.trace != null && !brk) {
+                    cpu.trace.event(nmi ? CPUTrace.NMI : CPUTrace.INTERRUPT, 0, cpu.PC);
+                }
+                push(brk ? cpu.flagstobyte() | utils.BIT4 : cpu.flagstobyte() & ~utils.BIT4);
+                step = INT_VLO;
+                break;
+            }
+            case INT_VLO:
+                addr = ram.read(vector);
+                cpu.interruptsDisabled = true;
+                step = INT_VHI;
+                break;
+            case INT_VHI:
+                cpu.PC = addr | (ram.read(vector + 1) << 8);
+                step = FETCH;
+                break;
+            case JAM:
+                ram.read(cpu.PC);
+                System.err.println("KIL - CPU locked");
+                cpu.flushLog();
+                ram.apu.nes.runEmulation = false;
+                step = JAMMED;
+                break;
+            case JAMMED:
+            default:
+                //stays stuck until reset
+                break;
+        }
+    }
+
+    //where an instruction goes after the address is worked out
+    private void operate() {
+        switch (op.kind) {
+            case READ:
+                step = READ_OP;
+                break;
+            case WRITE:
+                step = WRITE_OP;
+                break;
+            default:
+                step = RMW_READ;
+                break;
+        }
+    }
+
+    private int operand() {
+        final int value = ram.read(cpu.PC);
+        cpu.PC = (cpu.PC + 1) & 0xffff;
+        return value;
+    }
+
+    private void push(final int value) {
+        ram.write(0x100 | cpu.S, value);
+        cpu.S = (cpu.S - 1) & 0xff;
+    }
+
+    private int pop() {
+        cpu.S = (cpu.S + 1) & 0xff;
+        return ram.read(0x100 | cpu.S);
+    }
+
+    private boolean taken() {
+        switch (op) {
+            case BPL:
+                return !cpu.negativeFlag;
+            case BMI:
+                return cpu.negativeFlag;
+            case BVC:
+                return !cpu.overflowFlag;
+            case BVS:
+                return cpu.overflowFlag;
+            case BCC:
+                return !cpu.carryFlag;
+            case BCS:
+                return cpu.carryFlag;
+            case BNE:
+                return !cpu.zeroFlag;
+            default:
+                return cpu.zeroFlag;
+        }
+    }
+
+    private void implied() {
+        switch (op) {
+            case ASL:
+            case LSR:
+            case ROL:
+            case ROR:
+                cpu.A = modify(cpu.A);
+                break;
+            case CLC:
+                cpu.carryFlag = false;
+                break;
+            case CLD:
+                cpu.decimalModeFlag = false;
+                break;
+            case CLI:
+                cpu.interruptsDisabled = false;
+                break;
+            case CLV:
+                cpu.overflowFlag = false;
+                break;
+            case SEC:
+                cpu.carryFlag = true;
+                break;
+            case SED:
+                cpu.decimalModeFlag = true;
+                break;
+            case SEI:
+                cpu.interruptsDisabled = true;
+                break;
+            case DEX:
+                cpu.X = (cpu.X - 1) & 0xff;
+                setflags(cpu.X);
+                break;
+            case DEY:
+                cpu.Y = (cpu.Y - 1) & 0xff;
+                setflags(cpu.Y);
+                break;
+            case INX:
+                cpu.X = (cpu.X + 1) & 0xff;
+                setflags(cpu.X);
+                break;
+            case INY:
+                cpu.Y = (cpu.Y + 1) & 0xff;
+                setflags(cpu.Y);
+                break;
+            case TAX:
+                cpu.X = cpu.A;
+                setflags(cpu.X);
+                break;
+            case TAY:
+                cpu.Y = cpu.A;
+                setflags(cpu.Y);
+                break;
+            case TSX:
+                cpu.X = cpu.S;
+                setflags(cpu.X);
+                break;
+            case TXA:
+                cpu.A = cpu.X;
+                setflags(cpu.A);
+                break;
+            case TXS:
+                cpu.S = cpu.X;
+                break;
+            case TYA:
+                cpu.A = cpu.Y;
+                setflags(cpu.A);
+                break;
+            default:
+                //NOP
+                break;
+        }
+    }
+
+    //instructions that read their operand
+    private void load(final int value) {
+        switch (op) {
+            case LDA:
+                cpu.A = value;
+                setflags(value);
+                break;
+            case LDX:
+                cpu.X = value;
+                setflags(value);
+                break;
+            case LDY:
+                cpu.Y = value;
+                setflags(value);
+                break;
+            case LAX:
+                cpu.A = cpu.X = value;
+                setflags(value);
+                break;
+            case ORA:
+                cpu.A |= value;
+                setflags(cpu.A);
+                break;
+            case AND:
+                cpu.A &= value;
+                setflags(cpu.A);
+                break;
+            case EOR:
+                cpu.A ^= value;
+                setflags(cpu.A);
+                break;
+            case ADC:
+                adc(value);
+                break;
+            case SBC:
+                adc(value ^ 0xff);
+                break;
+            case CMP:
+                compare(cpu.A, value);
+                break;
+            case CPX:
+                compare(cpu.X, value);
+                break;
+            case CPY:
+                compare(cpu.Y, value);
+                break;
+            case BIT:
+                cpu.zeroFlag = (value & cpu.A) == 0;
+                cpu.negativeFlag = (value & utils.BIT7) != 0;
+                cpu.overflowFlag = (value & utils.BIT6) != 0;
+                break;
+            case LAS:
+                cpu.S &= value;
+                cpu.A = cpu.X = cpu.S;
+                setflags(cpu.S);
+                break;
+            case ANC:
+                cpu.A &= value;
+                setflags(cpu.A);
+                cpu.carryFlag = cpu.negativeFlag;
+                break;
+            case ALR:
+                cpu.A = lsr(cpu.A & value);
+                break;
+            case ARR:
+                cpu.A = ((cpu.A & value) >> 1) | (cpu.carryFlag ? 0x80 : 0);
+                setflags(cpu.A);
+                cpu.carryFlag = (cpu.A & utils.BIT6) != 0;
+                cpu.overflowFlag = cpu.carryFlag ^ ((cpu.A & utils.BIT5) != 0);
+                break;
+            case AXS: {
+                final int result = (cpu.A & cpu.X) - value;
+                cpu.carryFlag = result >= 0;
+                cpu.X = result & 0xff;
+                setflags(cpu.X);
+                break;
+            }
+            case XAA:
+                cpu.A = cpu.X & value;
+                setflags(cpu.A);
+                break;
+            default:
+                //NOP
+                break;
+        }
+    }
+
+    //instructions that read, modify and write back; returns what to write
+    private int modify(final int value) {
+        final int result;
+        switch (op) {
+            case ASL:
+                return asl(value);
+            case LSR:
+                return lsr(value);
+            case ROL:
+                return rol(value);
+            case ROR:
+                return ror(value);
+            case INC:
+                result = (value + 1) & 0xff;
+                setflags(result);
+                return result;
+            case DEC:
+                result = (value - 1) & 0xff;
+                setflags(result);
+                return result;
+            case SLO:
+                result = asl(value);
+                cpu.A |= result;
+                setflags(cpu.A);
+                return result;
+            case SRE:
+                result = lsr(value);
+                cpu.A ^= result;
+                setflags(cpu.A);
+                return result;
+            case RLA:
+                result = rol(value);
+                cpu.A &= result;
+                setflags(cpu.A);
+                return result;
+            case RRA:
+                result = ror(value);
+                adc(result);
+                return result;
+            case DCP:
+                result = (value - 1) & 0xff;
+                compare(cpu.A, result);
+                return result;
+            default:
+                //ISC
+                result = (value + 1) & 0xff;
+                adc(result ^ 0xff);
+                return result;
+        }
+    }
+
+    //instructions that only write; returns what to write
+    private int store() {
+        switch (op) {
+            case STA:
+                return cpu.A;
+            case STX:
+                return cpu.X;
+            case STY:
+                return cpu.Y;
+            case SAX:
+                return cpu.A & cpu.X;
+            case SHX:
+                return unstable(cpu.X);
+            case SHY:
+                return unstable(cpu.Y);
+            case AHX:
+                return unstable(cpu.A & cpu.X);
+            default:
+                //TAS
+                cpu.S = cpu.A & cpu.X;
+                return unstable(cpu.S);
+        }
+    }
+
+    //the unstable stores AND the value with the high byte of the base
+    //address plus one, and on a page cross that also becomes the high byte
+    //of where it gets written
+    private int unstable(final int value) {
+        final int result = value & ((base >> 8) + 1) & 0xff;
+        if (crossed) {
+            addr = (result << 8) | (addr & 0xff);
+        }
+        return result;
+    }
+
+    //no decimal mode on the NES
+    private void adc(final int value) {
+        final int result = cpu.A + value + (cpu.carryFlag ? 1 : 0);
+        cpu.carryFlag = (result >> 8) != 0;
+        cpu.overflowFlag = ((cpu.A ^ result) & (value ^ result) & 0x80) != 0;
+        cpu.A = result & 0xff;
+        setflags(cpu.A);
+    }
+
+    private void compare(final int reg, final int value) {
+        final int result = reg - value;
+        cpu.carryFlag = result >= 0;
+        setflags(result & 0xff);
+    }
+
+    private int asl(final int value) {
+        cpu.carryFlag = (value & utils.BIT7) != 0;
+        final int result = (value << 1) & 0xff;
+        setflags(result);
+        return result;
+    }
+
+    private int lsr(final int value) {
+        cpu.carryFlag = (value & utils.BIT0) != 0;
+        final int result = value >> 1;
+        setflags(result);
+        return result;
+    }
+
+    private int rol(final int value) {
+        final int result = ((value << 1) | (cpu.carryFlag ? 1 : 0)) & 0xff;
+        cpu.carryFlag = (value & utils.BIT7) != 0;
+        setflags(result);
+        return result;
+    }
+
+    private int ror(final int value) {
+        final int result = (value >> 1) | (cpu.carryFlag ? 0x80 : 0);
+        cpu.carryFlag = (value & utils.BIT0) != 0;
+        setflags(result);
+        return result;
+    }
+
+    private void setflags(final int result) {
+        cpu.zeroFlag = (result == 0);
+        cpu.negativeFlag = (result & utils.BIT7) != 0;
+    }
+
+    private static int mode(final String asm) {
+        if (asm.length() == 3 || asm.endsWith(" A")) {
+            return IMP;
+        } else if (asm.contains("#")) {
+            return IMM;
+        } else if (asm.contains("%3$")) {
+            return REL;
+        } else if (asm.contains(",x)")) {
+            return INDX;
+        } else if (asm.contains("), y")) {
+            return INDY;
+        } else if (asm.contains("(")) {
+            return IND;
+        }
+        final boolean abs = asm.contains("%2$");
+        if (asm.endsWith(",x")) {
+            return abs ? ABSX : ZPX;
+        } else if (asm.endsWith(",y")) {
+            return abs ? ABSY : ZPY;
+        }
+        return abs ? ABS : ZP;
+    }
+
+    //step for the cycle after the opcode fetch
+    private static int firststep(final Op op, final int mode) {
+        switch (mode) {
+            case IMP:
+                switch (op) {
+                    case PHA:
+                    case PHP:
+                        return PUSH_DUMMY;
+                    case PLA:
+                    case PLP:
+                        return PULL_DUMMY;
+                    case RTS:
+                        return RTS_DUMMY;
+                    case RTI:
+                        return RTI_DUMMY;
+                    case BRK:
+                        return BRK_PAD;
+                    case KIL:
+                        return JAM;
+                    default:
+                        return IMPLIED;
+                }
+            case IMM:
+                return IMMEDIATE;
+            case ZP:
+                return ZP_ADDR;
+            case ZPX:
+            case ZPY:
+                return ZPI_ADDR;
+            case ABS:
+                return (op == Op.JSR) ? JSR_LO : ABS_LO;
+            case ABSX:
+            case ABSY:
+                return ABSI_LO;
+            case IND:
+                return JMPI_LO;
+            case INDX:
+                return IX_PTR;
+            case INDY:
+                return IY_PTR;
+            default:
+                return BRANCH;
+        }
+    }
+}
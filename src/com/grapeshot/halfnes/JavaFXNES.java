@@ -3,9 +3,11 @@ package com.grapeshot.halfnes;
 import com.grapeshot.halfnes.ui.ControllerImpl;
 import com.grapeshot.halfnes.ui.GUIInterface;
 import com.grapeshot.halfnes.ui.OnScreenMenu;
+import com.grapeshot.halfnes.video.FrameExchange;
 import com.grapeshot.halfnes.video.NesColors;
 import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.geometry.Insets;
@@ -108,9 +110,25 @@ public class JavaFXNES extends Application implements GUIInterface {
     private int frametimeptr = 0;
     private double fps;
 
+    //the PPU draws over its bitmap as soon as setFrame() returns, so frames
+    //get copied to the FX thread through here
+    private final FrameExchange frames = new FrameExchange();
+    private final AtomicBoolean showPending = new AtomicBoolean();
+
     @Override
     public void setFrame(int[] nespixels, int[] bgcolor, boolean dotcrawl) {
+        frames.publish(nespixels, bgcolor, dotcrawl, null);
+        if (showPending.getAndSet(true)) {
+            //the FX thread hasn't got to the last one yet, it'll take this
+            return;
+        }
         Platform.runLater(() -> {
+            showPending.set(false);
+            final FrameExchange.Frame f = frames.take();
+            if (f == null) {
+                return;
+            }
+            final int[] pixels = f.pixels;
             frametimes[frametimeptr] = nes.getFrameTime();
             ++frametimeptr;
             frametimeptr %= frametimes.length;
@@ -129,8 +147,8 @@ public class JavaFXNES extends Application implements GUIInterface {
                     fps));
             }
             PixelWriter writer = gameCanvas.getGraphicsContext2D().getPixelWriter();
-            for (int i = 0; i < nespixels.length; i++) {
-                byte[] colbytes = NesColors.colbytes[(nespixels[i] & 0x1c0) >> 6][nespixels[i] & 0x3f];
+            for (int i = 0; i < pixels.length; i++) {
+                byte[] colbytes = NesColors.colbytes[(pixels[i] & 0x1c0) >> 6][pixels[i] & 0x3f];
                 System.arraycopy(colbytes, 0, buffer, i * 4, 3);
             }
             writer.setPixels(0, 0, 256, 240, format, buffer, 0, 256 * 4);
@@ -34,6 +34,10 @@ public class NES {
     private final FrameLimiterInterface limiter = new FrameLimiterImpl(this, 16639267);
     // Pro Action Replay device
     private ActionReplay actionReplay;
+    // optional hook that looks at (and may poke) RAM once per frame
+    private RAMWatch ramWatch;
+    private int renderEvery = 1;
+    private boolean trackDirtyLines = false;
 
     public NES(GUIInterface gui) {
         if (gui != null) {
@@ -63,7 +67,6 @@ public class NES {
         while (!shutdown) {
             if (runEmulation) {
                 frameStartTime = System.nanoTime();
-                actionReplay.applyPatches();
                 runframe();
                 if (frameLimiterOn && !dontSleep) {
                     limiter.sleep();
@@ -79,10 +82,14 @@ public class NES {
     }
 
     private synchronized void runframe() {
+        //pick up cheats added since the last frame
+        actionReplay.applyPatches();
         //run cpu, ppu for a whole frame
         ppu.runFrame();
-        cpu.updateNN();
-        
+        if (ramWatch != null) {
+            ramWatch.frameDone(cpuram.getWRAM());
+        }
+
         //do end of frame stuff
         dontSleep = apu.bufferHasLessThan(1000);
         //if the audio buffer is completely drained, don't sleep for this frame
@@ -157,6 +164,8 @@ public class NES {
             actionReplay = new ActionReplay(cpuram);
             cpu = mapper.cpu;
             ppu = mapper.ppu;
+            ppu.setRenderEvery(renderEvery);
+            ppu.setDirtyLineTracking(trackDirtyLines);
             apu = new APU(this, cpu, cpuram);
             cpuram.setAPU(apu);
             cpuram.setPPU(ppu);
@@ -171,6 +180,7 @@ public class NES {
             //and start emulation
             cpu.init(initialPC);
             mapper.init();
+            cpuram.remap();
             setParameters();
             runEmulation = true;
         } else {
@@ -214,6 +224,7 @@ public class NES {
     public synchronized void reset() {
         if (cpu != null) {
             mapper.reset();
+            cpuram.remap();
             cpu.reset();
             runEmulation = true;
             apu.pause();
@@ -305,6 +316,54 @@ public class NES {
         }
     }
 
+    /**
+     * Sets the hook called with the internal RAM at the end of every frame,
+     * or null to remove it. Survives loading a new ROM.
+     */
+    public synchronized void setRAMWatch(RAMWatch watch) {
+        this.ramWatch = watch;
+    }
+
+    /**
+     * Draws only every Nth frame, or none with 0, for when nobody is looking
+     * at the picture. Survives loading a new ROM. See PPU.setRenderEvery().
+     */
+    public synchronized void setRenderEvery(int n) {
+        if (ppu != null) {
+            ppu.setRenderEvery(n);
+        }
+        this.renderEvery = n;
+    }
+
+    /**
+     * Has the PPU work out which lines of each frame changed, for GUIs whose
+     * renderers can skip the rest. Survives loading a new ROM. See
+     * PPU.getDirtyLines().
+     */
+    public synchronized void setDirtyLineTracking(boolean on) {
+        if (ppu != null) {
+            ppu.setDirtyLineTracking(on);
+        }
+        this.trackDirtyLines = on;
+    }
+
+    /**
+     * Draws the next frame even if setRenderEvery() would skip it.
+     */
+    public synchronized void drawNextFrame() {
+        if (ppu != null) {
+            ppu.drawNextFrame();
+        }
+    }
+
+    /**
+     * @return false if the last frame run was skipped by setRenderEvery(),
+     * so the picture the GUI has is older than that
+     */
+    public synchronized boolean frameDrawn() {
+        return ppu != null && ppu.isDrawing();
+    }
+
     /**
      * Access to the Pro Action Replay device.
      */
@@ -25,6 +25,28 @@ public class PPU {
     public int scanline = 0;
     public int cycles = 0;
     private int framecount = 0;
+    //which frames get drawn, see setRenderEvery()
+    private int renderevery = 1;
+    private boolean drawing = true, drawnext = false;
+    //a line that gets drawn all at once: the dots from 1 to 256 don't fetch
+    //or draw anything until catchUp(). linedot is how far it's drawn so far.
+    private boolean fastlines, batching;
+    private int linedot;
+    //what drawLine() works from: each background tile's decoded row and
+    //attribute, and opaque sprite pixels as (slot << 2) | pixel
+    private final int[] linerows = new int[34], lineattrs = new int[34],
+            sprline = new int[256];
+    //the sprites on each line, a bit per OAM entry, see binSprites(), and
+    //the pixels the ones found for the current line cover
+    private final long[] spritebins = new long[256 + 16], spritecover = new long[4];
+    private boolean binsdirty = true;
+    //the last frame drawn, to tell which lines of this one changed; a bit per
+    //line, see getDirtyLines(). Only kept up while something wants them:
+    //comparing is whether this frame's lines are being compared, and
+    //prevvalid whether prevbitmap holds the last frame drawn.
+    private final int[] prevbitmap = new int[240 * 256], prevbg = new int[240];
+    private final long[] dirtylines = new long[4];
+    private boolean trackdirty = false, comparing = false, prevvalid = false;
     private int div = 2;
     private final int[] OAM = new int[256], secOAM = new int[32],
             spriteshiftregH = new int[8],
@@ -34,7 +56,7 @@ public class PPU {
     private final boolean[] spritebgflags = new boolean[8];
     private boolean even = true, bgpattern = true, sprpattern, spritesize, nmicontrol,
             grayscale, bgClip, spriteClip, bgOn, spritesOn,
-            vblankflag, sprite0hit, spriteoverflow;
+            vblankflag, sprite0hit, spriteoverflow, nmiline;
     private int emph;
     public final int[] pal;
     private DebugUI debuggui;
@@ -63,6 +85,8 @@ public class PPU {
          */
         this.mapper = mapper;
         fill(OAM, 0xff);
+        //so every line of the first frame counts as changed
+        fill(prevbg, -1);
         if (PPUDEBUG) {
             nametableView = new BufferedImage(512, 480, TYPE_INT_BGR);
             debuggui = new DebugUI(512, 480);
@@ -72,6 +96,7 @@ public class PPU {
     }
 
     final void setParameters() {
+        fastlines = get().getBoolean("fastScanlines", true);
         //set stuff to NTSC or PAL or Dendy values
         switch (mapper.getTVType()) {
             case NTSC:
@@ -97,6 +122,29 @@ public class PPU {
         for (int line = 0; line < numscanlines; ++line) {
             clockLine(line);
         }
+        //bring the cpu clock count up to date for the end of frame stuff
+        if (cpuskipped > 0) {
+            mapper.cpu.skipcycles(cpuskipped);
+            cpuskipped = 0;
+        }
+    }
+
+    /**
+     * Sprite DMA: 256 bytes written to OAMDATA in a row, done as one copy.
+     * Starts at the current OAM address, which ends up back where it was.
+     *
+     * @param data array holding the page to copy
+     * @param offset where the page starts in data
+     */
+    public final void spriteDMA(final int[] data, final int offset) {
+        final int first = 256 - oamaddr;
+        System.arraycopy(data, offset, OAM, oamaddr, first);
+        System.arraycopy(data, offset + first, OAM, 0, oamaddr);
+        //the same masking a write to $2004 does for attribute bytes
+        for (int i = 2; i < 256; i += 4) {
+            OAM[i] &= 0xE3;
+        }
+        binsdirty = true;
     }
 
     /**
@@ -108,6 +156,7 @@ public class PPU {
      * to a PPU register) if the register is read only
      */
     public final int read(final int regnum) {
+        endBatch();
         switch (regnum) {
             case 2:
                 even = true;
@@ -130,6 +179,7 @@ public class PPU {
                         | (spriteoverflow ? 0x20 : 0)
                         | (openbus & 0x1f);
                 vblankflag = false;
+                updateNMI();
                 break;
             case 4:
                 // reading this is NOT reliable but some games do it anyways
@@ -193,6 +243,7 @@ public class PPU {
 //                    + " frame " + framecount + " scanline " + scanline);
 //        }
         //debugdraw();
+        endBatch();
         openbus = data;
         switch (regnum) {
             case 0: //PPUCONTROL (2000)
@@ -209,7 +260,10 @@ public class PPU {
                 vraminc = (((data & (utils.BIT2)) != 0) ? 32 : 1);
                 sprpattern = ((data & (utils.BIT3)) != 0);
                 bgpattern = ((data & (utils.BIT4)) != 0);
-                spritesize = ((data & (utils.BIT5)) != 0);
+                if (spritesize != ((data & (utils.BIT5)) != 0)) {
+                    spritesize = !spritesize;
+                    binsdirty = true;
+                }
                 /*bit 6 is kind of a halt and catch fire situation since it outputs
                  ppu color data on the EXT pins that are tied to ground if set
                  and that'll make the PPU get very hot from sourcing the current. 
@@ -217,6 +271,7 @@ public class PPU {
                  useless for emulators. I will ignore it.
                  */
                 nmicontrol = ((data & (utils.BIT7)) != 0);
+                updateNMI();
 
                 break;
             case 1: //PPUMASK (2001)
@@ -249,6 +304,7 @@ public class PPU {
                     OAM[oamaddr++] = data;
                 }
                 oamaddr &= 0xff;
+                binsdirty = true;
                 // games don't usually write this directly anyway, it's unreliable
                 break;
 
@@ -316,6 +372,16 @@ public class PPU {
         }
     }
 
+    //the NMI output is vblank flag AND enable bit; the CPU only gets told
+    //when that changes rather than on every dot
+    private void updateNMI() {
+        final boolean line = vblankflag && nmicontrol;
+        if (line != nmiline) {
+            nmiline = line;
+            mapper.cpu.setNMI(line);
+        }
+    }
+
     /**
      * PPU is on if either background or sprites are enabled
      *
@@ -325,6 +391,45 @@ public class PPU {
         return bgOn || spritesOn;
     }
 
+    /**
+     * @return the vblank, sprite 0 hit and sprite overflow bits as a read of
+     * $2002 would return them, without the side effects of reading it
+     */
+    public final int status() {
+        catchUp();
+        return (vblankflag ? 0x80 : 0)
+                | (sprite0hit ? 0x40 : 0)
+                | (spriteoverflow ? 0x20 : 0);
+    }
+
+    /**
+     * Lower bound on the number of cpu cycles before vblank starts or ends,
+     * which is when the NMI line and the vblank flag can next change on their
+     * own. Lets an idle cpu skip ahead that far in one go.
+     *
+     * @param sprites if sprite 0 hit and overflow changes count too. They can
+     * happen on any rendered line, so then this is 0 while rendering.
+     * @return number of cpu cycles that can safely be skipped
+     */
+    public final int cpuCyclesToEvent(final boolean sprites) {
+        if (sprites && renderingOn()
+                && (scanline < 240 || scanline == numscanlines - 1)) {
+            return 0;
+        }
+        final int now = scanline * 341 + cycles, frame = numscanlines * 341;
+        int tovblank = vblankline * 341 + 1 - now;
+        if (tovblank <= 0) {
+            tovblank += frame;
+        }
+        int toprerender = (numscanlines - 1) * 341 - now;
+        if (toprerender <= 0) {
+            toprerender += frame;
+        }
+        final int dots = Math.min(tovblank, toprerender);
+        //cpudivider[0] is the longest cpu cycle in dots
+        return Math.max(dots / cpudivider[0] - 1, 0);
+    }
+
     /**
      * MMC3 scan line counter isn't clocked if background and sprites are using
      * the same half of the pattern table
@@ -340,6 +445,16 @@ public class PPU {
      * Runs the PPU emulation for one NES scan line.
      */
     public final void clockLine(int scanline) {
+        if (scanline == 0) {
+            drawing = drawnext || (renderevery > 0 && framecount % renderevery == 0);
+            drawnext = false;
+            if (drawing) {
+                comparing = trackdirty;
+                //with nothing to compare against every line is new
+                fill(dirtylines, prevvalid ? 0 : -1L);
+                prevvalid = comparing;
+            }
+        }
         //skip a PPU clock on line 0 of odd frames when rendering is on
         //and we are in NTSC mode (pal has no skip)
         int skip = (numscanlines == 262
@@ -353,6 +468,9 @@ public class PPU {
 
     private int tileAddr = 0;
     private int cpudividerctr = 0;
+    //cpu cycles left in the current instruction that don't need runcycle(),
+    //and how many of those have gone by without telling the cpu
+    private int cpuskip = 0, cpuskipped = 0;
 
     /**
      * runs the emulation for one PPU clock cycle.
@@ -366,9 +484,20 @@ public class PPU {
             }
             if (scanline < 240) {
                 bgcolors[scanline] = pal[0];
+                //nothing but the CPU can change how a line is drawn, so
+                //unless it does the whole line gets drawn at dot 256
+                batching = fastlines && bgOn && mapper.plainPPURead();
+                linedot = 0;
             }
         }
-        if (scanline < 240 || scanline == (numscanlines - 1)) {
+        final boolean batched = batching;
+        if (batched) {
+            if (cycles == 65) {
+                oamstart = oamaddr;
+            } else if (cycles == 256) {
+                endBatch();
+            }
+        } else if (scanline < 240 || scanline == (numscanlines - 1)) {
             //on all rendering lines
             if (renderingOn()
                     && ((cycles >= 1 && cycles <= 256)
@@ -407,6 +536,7 @@ public class PPU {
                     vblankflag = false;
                     sprite0hit = false;
                     spriteoverflow = false;
+                    updateNMI();
                 } else if (cycles >= 280 && cycles <= 304 && renderingOn()) {
                     //loopyV = (all of)loopyT for each of these cycles
                     loopyV = loopyT;
@@ -415,6 +545,7 @@ public class PPU {
         } else if (scanline == vblankline && cycles == 1) {
             //handle vblank on / off
             vblankflag = true;
+            updateNMI();
         }
         if (!renderingOn() || (scanline > 240 && scanline < (numscanlines - 1))) {
             //HACK ALERT
@@ -423,45 +554,25 @@ public class PPU {
             //needed to pass Blargg's mmc3 tests
             mapper.checkA12(loopyV & 0x3fff);
         }
-        if (scanline < 240 && cycles >= 1 && cycles <= 256) {
-            int bufferoffset = (scanline << 8) + (cycles - 1);
-            //bg drawing
-            if (bgOn) { //if background is on, draw a dot of that first
-                final boolean isBG = drawBGPixel(bufferoffset);
-                //sprite drawing
-                drawSprites(scanline, cycles - 1, isBG);
-
-            } else if (spritesOn) {
-                //just the sprites then
-                int bgcolor = ((loopyV > 0x3f00 && loopyV < 0x3fff) ? mapper.ppuRead(loopyV) : pal[0]);
-                bitmap[bufferoffset] = bgcolor;
-                drawSprites(scanline, cycles - 1, true);
-            } else {
-                //rendering is off, so draw either the background color OR
-                //if the PPU address points to the palette, draw that color instead.
-                int bgcolor = ((loopyV > 0x3f00 && loopyV < 0x3fff) ? mapper.ppuRead(loopyV) : pal[0]);
-                bitmap[bufferoffset] = bgcolor;
-            }
-            //deal with the grayscale flag
-            if (grayscale) {
-                bitmap[bufferoffset] &= 0x30;
-            }
-            //handle color emphasis
-            bitmap[bufferoffset] = (bitmap[bufferoffset] & 0x3f) | emph;
-
+        if (!batched && scanline < 240 && cycles >= 1 && cycles <= 256) {
+            drawDot();
         }
-        //handle nmi
-        if (vblankflag && nmicontrol) {
-            //pull NMI line on when conditions are right
-            mapper.cpu.setNMI(true);
-        } else {
-            mapper.cpu.setNMI(false);
+        if (cycles == 256 && scanline < 240 && drawing && comparing) {
+            compareLine(scanline);
         }
-
         //clock CPU, once every 3 ppu cycles
         div = (div + 1) % cpudivider[cpudividerctr];
         if (div == 0) {
-            mapper.cpu.runcycle(scanline, cycles);
+            if (cpuskip > 0) {
+                --cpuskip;
+                ++cpuskipped;
+            } else {
+                if (cpuskipped > 0) {
+                    mapper.cpu.skipcycles(cpuskipped);
+                    cpuskipped = 0;
+                }
+                cpuskip = mapper.cpu.runcycle(scanline, cycles);
+            }
             mapper.cpucycle(1);
             cpudividerctr = (cpudividerctr + 1) % cpudivider.length;
         }
@@ -475,6 +586,191 @@ public class PPU {
         }
     }
 
+    //checks a finished line against the same line of the last frame drawn
+    private void compareLine(final int line) {
+        final int base = line << 8;
+        boolean same = bgcolors[line] == prevbg[line];
+        for (int i = base; same && i < base + 256; ++i) {
+            same = bitmap[i] == prevbitmap[i];
+        }
+        if (!same) {
+            System.arraycopy(bitmap, base, prevbitmap, base, 256);
+            prevbg[line] = bgcolors[line];
+            dirtylines[line >> 6] |= 1L << (line & 63);
+        }
+    }
+
+    //draws dot `cycles` of a visible line
+    private void drawDot() {
+        if (!drawing) {
+            if (bgOn) {
+                skipDot(cycles - 1);
+            }
+            return;
+        }
+        int bufferoffset = (scanline << 8) + (cycles - 1);
+        //bg drawing
+        if (bgOn) { //if background is on, draw a dot of that first
+            final boolean isBG = drawBGPixel(bufferoffset);
+            //sprite drawing
+            if (spriteCovers(cycles - 1)) {
+                drawSprites(scanline, cycles - 1, isBG);
+            }
+
+        } else if (spritesOn) {
+            //just the sprites then
+            int bgcolor = ((loopyV > 0x3f00 && loopyV < 0x3fff) ? mapper.ppuRead(loopyV) : pal[0]);
+            bitmap[bufferoffset] = bgcolor;
+            if (spriteCovers(cycles - 1)) {
+                drawSprites(scanline, cycles - 1, true);
+            }
+        } else {
+            //rendering is off, so draw either the background color OR
+            //if the PPU address points to the palette, draw that color instead.
+            int bgcolor = ((loopyV > 0x3f00 && loopyV < 0x3fff) ? mapper.ppuRead(loopyV) : pal[0]);
+            bitmap[bufferoffset] = bgcolor;
+        }
+        //deal with the grayscale flag
+        if (grayscale) {
+            bitmap[bufferoffset] &= 0x30;
+        }
+        //handle color emphasis
+        bitmap[bufferoffset] = (bitmap[bufferoffset] & 0x3f) | emph;
+    }
+
+    /**
+     * Does the fetches and drawing for the dots of a batched line that have
+     * gone by, up to and including the current one. Has to happen before
+     * anything that could change how they'd come out: a cartridge write
+     * might switch CHR banks or mirroring, so CPURAM calls this first.
+     */
+    final void catchUp() {
+        if (!batching || linedot >= cycles) {
+            return;
+        }
+        final int dot = cycles;
+        if (linedot == 0 && dot == 256 && prefetched()) {
+            drawLine();
+        } else {
+            //only part of the line, so do it the same way clock() would
+            for (cycles = linedot + 1; cycles <= dot; ++cycles) {
+                bgFetch();
+                drawDot();
+            }
+            cycles = dot;
+        }
+        linedot = dot;
+    }
+
+    //catches up and goes back to dot by dot for the rest of the line, for
+    //register reads and writes and at the end of the visible dots
+    private void endBatch() {
+        if (batching) {
+            catchUp();
+            batching = false;
+        }
+    }
+
+    //true if the first tile in the shift registers has a single attribute,
+    //which it does unless rendering was off for some of the prefetch
+    private boolean prefetched() {
+        final int lo = (bgAttrShiftRegL >> 1) & 0xff, hi = (bgAttrShiftRegH >> 1) & 0xff;
+        return (lo == 0 || lo == 0xff) && (hi == 0 || hi == 0xff);
+    }
+
+    /**
+     * Dots 1 to 256 of a line in one go. The background is tiles 0 to 33 in
+     * a row, scrolled left by fine X: 0 and 1 were fetched at the end of the
+     * last line and are in the shift registers, the rest are fetched as
+     * decoded rows (see Mapper.patternRow()) and drawn 8 pixels at a time.
+     * Then the line's sprites go on top. Fetches, loopyV and the shift
+     * registers end up just as clock() would leave them.
+     */
+    private void drawLine() {
+        final int[] rows = linerows, attrs = lineattrs;
+        rows[0] = utils.patternRow((bgShiftRegL >> 9) & 0xff, (bgShiftRegH >> 9) & 0xff);
+        attrs[0] = (((bgAttrShiftRegH >> 8) & 1) << 1) | ((bgAttrShiftRegL >> 8) & 1);
+        rows[1] = utils.patternRow((bgShiftRegL >> 1) & 0xff, (bgShiftRegH >> 1) & 0xff);
+        attrs[1] = nextattr;
+        for (int t = 2; t < 34; ++t) {
+            fetchNTByte();
+            penultimateattr = getAttribute(((loopyV & 0xc00) + 0x23c0),
+                    (loopyV) & 0x1f,
+                    (((loopyV) & 0x3e0) >> 5));
+            final int addr = tileAddr + ((loopyV & 0x7000) >> 12);
+            rows[t] = mapper.patternRow(addr);
+            attrs[t] = penultimateattr;
+            if (t == 32) {
+                bgShiftRegL = mapper.ppuRead(addr) << 9;
+                bgShiftRegH = mapper.ppuRead(addr + 8) << 9;
+            } else if (t == 33) {
+                linelowbits = mapper.ppuRead(addr);
+                linehighbits = mapper.ppuRead(addr + 8);
+                bgShiftRegL |= linelowbits << 1;
+                bgShiftRegH |= linehighbits << 1;
+            }
+            if (t != 33) {
+                incLoopyVHoriz();
+            } else {
+                incLoopyVVert();
+            }
+        }
+        nextattr = attrs[33];
+        bgAttrShiftRegL = ((attrs[32] & 1) * 0x1fe) | ((attrs[31] & 1) * 0x1fe00);
+        bgAttrShiftRegH = ((attrs[32] >> 1) * 0x1fe) | ((attrs[31] >> 1) * 0x1fe00);
+
+        final int base = scanline << 8;
+        if (drawing) {
+            final int mask = grayscale ? 0x30 : 0x3f;
+            for (int t = 0, x = -loopyX; t < 33; ++t, x += 8) {
+                final int row = rows[t], palbase = attrs[t] << 2;
+                for (int q = Math.max(0, -x), end = Math.min(8, 256 - x); q < end; ++q) {
+                    final int pix = (row >> (q << 1)) & 3;
+                    bitmap[base + x + q] = ((pix == 0 ? pal[0] : pal[palbase + pix]) & mask) | emph;
+                }
+            }
+            if (bgClip) {
+                fill(bitmap, base, base + 8, (pal[0] & mask) | emph);
+            }
+        }
+        if (!spritesOn || found == 0) {
+            return;
+        }
+        //opaque sprite pixels of the line, lower slots on top
+        for (int y = found - 1; y >= 0; --y) {
+            final int row = utils.patternRow(reverseByte(spriteshiftregL[y]), reverseByte(spriteshiftregH[y]));
+            for (int x = spriteXlatch[y], q = 0; q < 8 && x < 256; ++x, ++q) {
+                final int pxl = (row >> (q << 1)) & 3;
+                if (pxl != 0) {
+                    sprline[x] = (y << 2) | pxl;
+                }
+            }
+        }
+        final int startdraw = !spriteClip ? 0 : 8;
+        for (int y = 0; y < found; ++y) {
+            for (int x = spriteXlatch[y], q = 0; q < 8 && x < 256; ++x, ++q) {
+                final int spr = sprline[x];
+                if (spr == 0) {
+                    continue;
+                }
+                sprline[x] = 0;
+                if (x < startdraw) {
+                    continue;
+                }
+                final int p = x + loopyX;
+                final boolean isBG = (bgClip && x < 8)
+                        || ((rows[p >> 3] >> ((p & 7) << 1)) & 3) == 0;
+                final int index = spr >> 2;
+                if (sprite0here && (index == 0) && !isBG && x < 255) {
+                    sprite0hit = true;
+                }
+                if (drawing && (!spritebgflags[index] || isBG)) {
+                    bitmap[base + x] = ((pal[spritepals[index] + (spr & 3)]) & (grayscale ? 0x30 : 0x3f)) | emph;
+                }
+            }
+        }
+    }
+
     private void bgFetch() {
         //fetch tiles for background
         //on real PPU this logic is repurposed for sprite fetches as well
@@ -579,6 +875,18 @@ public class PPU {
         return isBG;
     }
 
+    //a dot of a frame that isn't being drawn: no pixel, but the background
+    //still shifts along and sprite 0 hit still has to be worked out,
+    //since games poll it
+    private void skipDot(final int x) {
+        final boolean isBG = (bgClip && x < 8)
+                || ((((bgShiftRegH | bgShiftRegL) >> -loopyX + 16) & 1) == 0);
+        bgShiftClock();
+        if (sprite0here && spritesOn && !sprite0hit && spriteCovers(x)) {
+            drawSprites(scanline, x, isBG);
+        }
+    }
+
     private void bgShiftClock() {
         bgShiftRegH <<= 1;
         bgShiftRegL <<= 1;
@@ -594,58 +902,47 @@ public class PPU {
      */
     private void evalSprites() {
         sprite0here = false;
-        int ypos, offset;
         found = 0;
-        Arrays.fill(secOAM, 0xff);
-        //primary evaluation
-        //need to emulate behavior when OAM address is set to nonzero here
-        for (int spritestart = oamstart; spritestart < 255; spritestart += 4) {
-            //for each sprite, first we cull the non-visible ones
-            ypos = OAM[spritestart];
-            offset = scanline - ypos;
-            if (ypos > scanline || offset > (spritesize ? 15 : 7)) {
-                //sprite is out of range vertically
-                continue;
-            }
-            //if we're here it's a valid renderable sprite
-            if (spritestart == 0) {
-                sprite0here = true;
-            }
-            //actually which sprite is flagged for sprite 0 depends on the starting
-            //oam address which is, on the real thing, not necessarily zero.
-            if (found >= 8) {
-                //if more than 8 sprites, set overflow bit and STOP looking
-                //todo: add "no sprite limit" option back
-                spriteoverflow = true;
-                break; //also the real PPU does strange stuff on sprite overflow
-                //todo: emulate register trashing that happens when overflow
-            } else {
-                //set up ye sprite for rendering
-                secOAM[found * 4] = OAM[spritestart];
-//                secOAM[found * 4 + 1] = OAM[spritestart + 1];
-//                secOAM[found * 4 + 2] = OAM[spritestart + 2];
-//                secOAM[found * 4 + 3] = OAM[spritestart + 3];
-                final int oamextra = OAM[spritestart + 2];
-
-                //bg flag
-                spritebgflags[found] = ((oamextra & (utils.BIT5)) != 0);
-                //x value
-                spriteXlatch[found] = OAM[spritestart + 3];
-                spritepals[found] = ((oamextra & 3) + 4) * 4;
-                if (((oamextra & (utils.BIT7)) != 0)) {
-                    //if sprite is flipped vertically, reverse the offset
-                    offset = (spritesize ? 15 : 7) - offset;
+        if (oamstart == 0) {
+            //the usual case: go straight to the sprites on this line
+            if (binsdirty) {
+                binSprites();
+            }
+            long online = (scanline < spritebins.length) ? spritebins[scanline] : 0;
+            while (online != 0) {
+                if (found >= 8) {
+                    //if more than 8 sprites, set overflow bit and STOP looking
+                    spriteoverflow = true;
+                    break;
+                }
+                loadSprite(Long.numberOfTrailingZeros(online) << 2);
+                online &= online - 1;
+            }
+        } else {
+            //primary evaluation
+            //need to emulate behavior when OAM address is set to nonzero here
+            for (int spritestart = oamstart; spritestart < 255; spritestart += 4) {
+                //for each sprite, first we cull the non-visible ones
+                final int ypos = OAM[spritestart];
+                final int offset = scanline - ypos;
+                if (ypos > scanline || offset > (spritesize ? 15 : 7)) {
+                    //sprite is out of range vertically
+                    continue;
                 }
-                //now correction for the fact that 8x16 tiles are 2 separate tiles
-                if (offset > 7) {
-                    offset += 8;
+                if (found >= 8) {
+                    //if more than 8 sprites, set overflow bit and STOP looking
+                    //todo: add "no sprite limit" option back
+                    spriteoverflow = true;
+                    break; //also the real PPU does strange stuff on sprite overflow
+                    //todo: emulate register trashing that happens when overflow
                 }
-                //get tile address (8x16 sprites can use both pattern tbl pages but only the even tiles)
-                final int tilenum = OAM[spritestart + 1];
-                spriteFetch(spritesize, tilenum, offset, oamextra);
-                ++found;
+                loadSprite(spritestart);
             }
         }
+        if (found == 0) {
+            //the only byte of secondary OAM anything looks at
+            secOAM[0] = 0xff;
+        }
         for (int i = found; i < 8; ++i) {
             //fill unused sprite registers with zeros
             spriteshiftregL[found] = 0;
@@ -654,6 +951,69 @@ public class PPU {
             //dummy reads are to sprite 0xff
             spriteFetch(spritesize, 0xff, 0, 0);
         }
+        //which pixels of the line the sprites cover
+        spritecover[0] = spritecover[1] = spritecover[2] = spritecover[3] = 0;
+        for (int i = 0; i < found; ++i) {
+            final int x = spriteXlatch[i];
+            spritecover[x >> 6] |= 0xffL << x;
+            if ((x & 63) > 56 && x < 192) {
+                spritecover[(x >> 6) + 1] |= 0xffL >>> (64 - (x & 63));
+            }
+        }
+    }
+
+    //sets up the sprite at spritestart in OAM, which is on this line, in the
+    //next free slot
+    private void loadSprite(final int spritestart) {
+        int offset = scanline - OAM[spritestart];
+        //actually which sprite is flagged for sprite 0 depends on the starting
+        //oam address which is, on the real thing, not necessarily zero.
+        if (spritestart == 0) {
+            sprite0here = true;
+        }
+        //set up ye sprite for rendering
+        secOAM[found * 4] = OAM[spritestart];
+        final int oamextra = OAM[spritestart + 2];
+
+        //bg flag
+        spritebgflags[found] = ((oamextra & (utils.BIT5)) != 0);
+        //x value
+        spriteXlatch[found] = OAM[spritestart + 3];
+        spritepals[found] = ((oamextra & 3) + 4) * 4;
+        if (((oamextra & (utils.BIT7)) != 0)) {
+            //if sprite is flipped vertically, reverse the offset
+            offset = (spritesize ? 15 : 7) - offset;
+        }
+        //now correction for the fact that 8x16 tiles are 2 separate tiles
+        if (offset > 7) {
+            offset += 8;
+        }
+        //get tile address (8x16 sprites can use both pattern tbl pages but only the even tiles)
+        final int tilenum = OAM[spritestart + 1];
+        spriteFetch(spritesize, tilenum, offset, oamextra);
+        ++found;
+    }
+
+    /**
+     * Sorts the 64 sprites into the lines they're on, one bit per sprite in
+     * OAM order. Needs redoing after anything writes OAM or changes the
+     * sprite size.
+     */
+    private void binSprites() {
+        fill(spritebins, 0);
+        final int height = spritesize ? 16 : 8;
+        for (int n = 0; n < 64; ++n) {
+            final int y = OAM[n << 2];
+            for (int line = y; line < y + height; ++line) {
+                spritebins[line] |= 1L << n;
+            }
+        }
+        binsdirty = false;
+    }
+
+    //true if a sprite found for this line covers pixel x
+    private boolean spriteCovers(final int x) {
+        return ((spritecover[x >> 6] >>> x) & 1) != 0;
     }
 
     private void spriteFetch(final boolean spritesize, final int tilenum, int offset, final int oamextra) {
@@ -707,7 +1067,7 @@ public class PPU {
             sprite0hit = true;
         }
         //now, FINALLY, drawing.
-        if (!spritebgflags[index] || bgflag) {
+        if (drawing && (!spritebgflags[index] || bgflag)) {
             bitmap[(line << 8) + x] = pal[spritepals[index] + sprpxl];
         }
     }
@@ -814,6 +1174,60 @@ public class PPU {
         return dat;
     }
 
+    /**
+     * Picks which frames the PPU draws. Frames in between still run all the
+     * timing games can see (status flags, sprite 0 hit, sprite overflow,
+     * mapper scanline counters) but don't compose any pixels or touch the
+     * bitmap, and aren't sent to the GUI. Takes effect from the next frame.
+     *
+     * @param n 1 to draw every frame, N to draw every Nth, 0 for none
+     */
+    public final void setRenderEvery(final int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("negative frame interval " + n);
+        }
+        renderevery = n;
+    }
+
+    /**
+     * Draws the next frame whatever setRenderEvery() says, e.g. because
+     * something is going to look at it. Call it between frames.
+     */
+    public final void drawNextFrame() {
+        drawnext = true;
+    }
+
+    /**
+     * @return true if the frame running now, or the one just finished when
+     * called between frames, is being drawn
+     */
+    public final boolean isDrawing() {
+        return drawing;
+    }
+
+    /**
+     * Turns on working out getDirtyLines(), which costs a compare of every
+     * line drawn against the frame before, so it's off until a GUI that
+     * uses them asks. Takes effect from the next frame.
+     */
+    public final void setDirtyLineTracking(final boolean on) {
+        trackdirty = on;
+    }
+
+    /**
+     * Which lines of the frame just sent to the GUI differ from the frame
+     * sent before it, in pixels or background color. Line n is bit (n & 63)
+     * of word n >> 6. Frames skipped by setRenderEvery() don't count, and
+     * every line of the first frame is dirty. Only valid until the next frame
+     * starts.
+     *
+     * @return 4 words, 240 bits, or null if dirty line tracking was off for
+     * the frame
+     */
+    public final long[] getDirtyLines() {
+        return comparing ? dirtylines : null;
+    }
+
     /**
      * Sends off a frame of NES video to be rendered by the GUI. also includes
      * dot crawl flag and BG color to be displayed around edges which are needed
@@ -825,8 +1239,8 @@ public class PPU {
         if (PPUDEBUG) {
             debugDraw();
         }
-        if (gui != null) {
-            gui.setFrame(bitmap, bgcolors, dotcrawl);
+        if (gui != null && drawing) {
+            gui.setFrame(bitmap, bgcolors, dotcrawl, getDirtyLines());
         }
 
     }
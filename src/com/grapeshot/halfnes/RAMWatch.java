@@ -0,0 +1,19 @@
+/*
+ * HalfNES by Andrew Hoffman
+ * Licensed under the GNU GPL Version 3. See LICENSE file
+ */
+package com.grapeshot.halfnes;
+
+/**
+ * Called once at the end of every emulated frame with the console's internal
+ * RAM, so game-specific code (rewards, observations, RAM pins) can live
+ * outside the emulator core.
+ */
+public interface RAMWatch {
+
+    /**
+     * @param wram the live 2K of internal RAM ($0000-$07FF); writes go
+     * straight to the console
+     */
+    public void frameDone(int[] wram);
+}
@@ -17,6 +17,11 @@ public class BnromMapper extends Mapper {
         }
     }
 
+    @Override
+    protected boolean prgRAMWritesPlain() {
+        return true;
+    }
+
     @Override
     public final void cartWrite(int addr, int data) {
         if (addr < 0x8000 || addr > 0xffff) {
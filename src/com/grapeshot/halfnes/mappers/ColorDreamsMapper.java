@@ -22,6 +22,11 @@ public class ColorDreamsMapper extends Mapper {
         }
     }
 
+    @Override
+    protected boolean prgRAMWritesPlain() {
+        return true;
+    }
+
     @Override
     public final void cartWrite(final int addr, final int data) {
         if (addr < 0x8000 || addr > 0xffff) {
@@ -60,6 +60,11 @@ public class FME7Mapper extends Mapper {
         return addr >> 8; //open bus
     }
 
+    @Override
+    protected boolean prgRAMWritesPlain() {
+        return true;
+    }
+
     @Override
     public final void cartWrite(final int addr, final int data) {
         if (addr < 0x8000 || addr > 0xffff) {
@@ -129,11 +134,10 @@ public class FME7Mapper extends Mapper {
 
                     irqenabled = ((data & (utils.BIT0)) != 0);
 
-                    if (interrupted && cpu.interrupt > 0) {
-                        --cpu.interrupt;
+                    if (interrupted) {
+                        cpu.releaseIRQ(irqline);
                     }
                     interrupted = false;
-                    //System.err.println(cpu.interrupt);
                     break;
                 case 0xe:
                     irqcounter &= 0xff00;
@@ -157,7 +161,7 @@ public class FME7Mapper extends Mapper {
                 irqcounter = 0xffff;
                 if (irqenabled && !interrupted) {
                     interrupted = true;
-                    ++cpu.interrupt;
+                    cpu.assertIRQ(irqline);
                     //System.err.println("FME7 Interrupt");
                 }
             } else {
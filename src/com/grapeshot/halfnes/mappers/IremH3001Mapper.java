@@ -36,13 +36,13 @@ public class IremH3001Mapper extends Mapper {
         } else if (addr == 0x9003) {    //IRQ Enable
             irqenable = ((data & (utils.BIT7)) != 0);
             if (interrupted) {
-                --cpu.interrupt;
+                cpu.releaseIRQ(irqline);
                 interrupted = false;
             }
         } else if (addr == 0x9004) {    //IRQ Reload
             irqctr = irqreload;
             if (interrupted) {
-                --cpu.interrupt;
+                cpu.releaseIRQ(irqline);
                 interrupted = false;
             }
         } else if (addr == 0x9005) {    //High 8 bits of IRQ Reload
@@ -68,7 +68,7 @@ public class IremH3001Mapper extends Mapper {
         if (irqenable) {
             if (irqctr <= 0) {
                 if (!interrupted) {
-                    ++cpu.interrupt;
+                    cpu.assertIRQ(irqline);
                     interrupted = true;
                 }
                 irqenable = false;
@@ -31,6 +31,11 @@ public class MMC1Mapper extends Mapper {
         setbanks();
     }
 
+    @Override
+    protected boolean prgRAMWritesPlain() {
+        return true;
+    }
+
     @Override
     public final void cartWrite(final int addr, final int data) {
         if (addr < 0x8000 || addr > 0xffff) {
@@ -38,6 +38,11 @@ public class MMC3Mapper extends Mapper {
         //cpuram.setPrgRAMEnable(false);
     }
 
+    @Override
+    protected boolean prgRAMWritesPlain() {
+        return true;
+    }
+
     @Override
     public void cartWrite(int addr, int data) {
         if (addr < 0x8000 || addr > 0xffff) {
@@ -98,7 +103,7 @@ public class MMC3Mapper extends Mapper {
             } else if ((addr >= 0xe000) && (addr <= 0xffff)) {
                 //any value here disables IRQ and acknowledges
                 if (interrupted) {
-                    --cpu.interrupt;
+                    cpu.releaseIRQ(irqline);
                 }
                 interrupted = false;
                 irqenable = false;
@@ -195,7 +200,7 @@ public class MMC3Mapper extends Mapper {
             --irqctr;
         }
         if ((irqctr == 0) && irqenable && !interrupted) {
-            ++cpu.interrupt;
+            cpu.assertIRQ(irqline);
             interrupted = true;
             //System.err.println("interrupt line " + ppu.scanline + " reload " + irqctrreload);
         }
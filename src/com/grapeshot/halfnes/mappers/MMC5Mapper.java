@@ -286,7 +286,7 @@ public class MMC5Mapper extends Mapper {
                     int stat = (irqPend ? 0x80 : 0) + (inFrame ? 0x40 : 0);
                     if (irqPend) {
                         irqPend = false;
-                        --cpu.interrupt;
+                        cpu.releaseIRQ(irqline);
                     }
                     return stat;
                 case 0x5205:
@@ -459,7 +459,7 @@ public class MMC5Mapper extends Mapper {
             irqCounter = 0;
             if (irqPend) {
                 irqPend = false;
-                --cpu.interrupt;
+                cpu.releaseIRQ(irqline);
             }
         } else {
             if (irqCounter++ == scanctrLine) {
@@ -467,7 +467,7 @@ public class MMC5Mapper extends Mapper {
 
             }
             if (irqPend && scanctrEnable) {
-                ++cpu.interrupt;
+                cpu.assertIRQ(irqline);
             }
         }
     }
@@ -15,11 +15,24 @@ public abstract class Mapper {
     protected ROMLoader loader;
     protected int mappertype, submapper, prgsize, prgoff, chroff, chrsize;
     public CPU cpu;
+    //the cartridge's IRQ line into the CPU
+    protected int irqline;
     public CPURAM cpuram;
     public PPU ppu;
     protected int[] prg, chr, chr_map, prg_map, prgram = new int[8192];
     protected MirrorType scrolltype;
     protected boolean haschrram = false, hasprgram = true, savesram = false;
+    //true if cartRead() is this class's plain prg_map lookup
+    private boolean plainPRG;
+    //same for ppuRead() and the chr_map and nametables
+    private boolean plainPPU;
+    //true if writes to $6000-$7FFF only store to PRG RAM, see plainPRGRAMWrite()
+    private boolean plainWRAM;
+    //decoded tile rows of chr, see patternRow()
+    private int[] tilerows, tilechr;
+    //what the CPU page table was last pointed at, see mapPages()
+    private final int[] mappedbanks = new int[32];
+    private int[] mappedprg, mappedprgram;
     // PPU nametables
     protected final int[] pput0 = new int[0x400], pput1 = new int[0x400],
             pput2 = new int[0x400], pput3 = new int[0x400];
@@ -89,6 +102,24 @@ public abstract class Mapper {
             chrsize = 8192;
             chr = new int[8192];
         }
+        try {
+            plainPRG = getClass().getMethod("cartRead", int.class).getDeclaringClass() == Mapper.class;
+        } catch (NoSuchMethodException e) {
+            plainPRG = false;
+        }
+        try {
+            plainPPU = getClass().getMethod("ppuRead", int.class).getDeclaringClass() == Mapper.class;
+        } catch (NoSuchMethodException e) {
+            plainPPU = false;
+        }
+        try {
+            final Class<?> writer = getClass().getMethod("cartWrite", int.class, int.class).getDeclaringClass();
+            //a subclass overriding cartWrite() again has to say so again
+            plainWRAM = writer == Mapper.class
+                    || (prgRAMWritesPlain() && writer.getDeclaredMethod("prgRAMWritesPlain") != null);
+        } catch (NoSuchMethodException e) {
+            plainWRAM = false;
+        }
         prg_map = new int[32];
         for (int i = 0; i < 32; ++i) {
             prg_map[i] = (1024 * i) & (prgsize - 1);
@@ -99,6 +130,7 @@ public abstract class Mapper {
         }
         cpuram = new CPURAM(this);
         cpu = new CPU(cpuram);
+        irqline = cpu.irqSource();
         ppu = new PPU(this);
         Arrays.fill(pput0, 0xa0);
         Arrays.fill(pput1, 0xb0);
@@ -131,6 +163,60 @@ public abstract class Mapper {
         return addr >> 8; //open bus
     }
 
+    /**
+     * Where a CPU address in $8000-$FFFF currently reads from in the PRG ROM,
+     * for the CPU's predecode cache. Mappers whose cartRead() does anything
+     * but look up the PRG array (or that change the PRG array) return -1,
+     * which is the default for any mapper that overrides cartRead().
+     *
+     * @param addr CPU address, 0x8000 or above
+     * @return index into getPRG(), or -1 if reads have to go through cartRead()
+     */
+    public int prgOffset(final int addr) {
+        return plainPRG ? prg_map[(addr & 0x7fff) >> 10] + (addr & 1023) : -1;
+    }
+
+    public int[] getPRG() {
+        return prg;
+    }
+
+    /**
+     * Points the CPU's page table entries for $6000-$FFFF at the PRG RAM and
+     * the currently selected PRG banks, so reads from there skip cartRead().
+     * Pages are left alone (null) for mappers that override cartRead(). Only
+     * pages whose bank changed since the last call are touched unless all is
+     * set, so this is cheap enough to run after every cartridge write.
+     *
+     * @param pages one array per 256 byte page
+     * @param offsets where each page starts in its array
+     * @param all set to redo every page
+     */
+    public void mapPages(final int[][] pages, final int[] offsets, final boolean all) {
+        if (!plainPRG) {
+            return;
+        }
+        final int[] ram = hasprgram ? prgram : null;
+        if (all || ram != mappedprgram) {
+            for (int page = 0x60; page < 0x80; ++page) {
+                pages[page] = ram;
+                offsets[page] = (page & 0x1f) << 8;
+            }
+            mappedprgram = ram;
+        }
+        final boolean newprg = all || prg != mappedprg;
+        for (int bank = 0; bank < 32; ++bank) {
+            if (newprg || prg_map[bank] != mappedbanks[bank]) {
+                mappedbanks[bank] = prg_map[bank];
+                for (int i = 0; i < 4; ++i) {
+                    final int page = 0x80 + (bank << 2) + i;
+                    pages[page] = prg;
+                    offsets[page] = prg_map[bank] + (i << 8);
+                }
+            }
+        }
+        mappedprg = prg;
+    }
+
     public int ppuRead(int addr) {
         if (addr < 0x2000) {
             return chr[chr_map[addr >> 10] + (addr & 1023)];
@@ -163,7 +249,11 @@ public abstract class Mapper {
             if (haschrram) {
                 // Shame on you, Milon's Secret Castle. What possible
                 // reason could you have to write to your own chr rom?
-                chr[chr_map[addr >> 10] + (addr & 1023)] = data;
+                final int chraddr = chr_map[addr >> 10] + (addr & 1023);
+                chr[chraddr] = data;
+                if (tilerows != null) {
+                    tilerows[((chraddr >> 4) << 3) | (chraddr & 7)] = -1;
+                }
                 // anyway, only allowing writes when there's actual ram here.
             }
         } else {
@@ -405,12 +495,74 @@ public abstract class Mapper {
         return cpuram;
     }
 
+    /**
+     * Whether the PPU can do its reads some time other than on the dot they
+     * belong to without the mapper noticing, which is the case unless
+     * ppuRead() is overridden to watch them (MMC2 latches, MMC3 A12 and so
+     * on). The PPU draws whole scan lines at once for mappers like that.
+     *
+     * @return true if ppuRead() just looks up CHR, nametables and palette
+     */
+    public boolean plainPPURead() {
+        return plainPPU;
+    }
+
+    /**
+     * Whether a CPU write to $6000-$7FFF does nothing but store to PRG RAM,
+     * so the PPU doesn't need to catch up on a line it's drawing late before
+     * the write (see PPU.catchUp()). True if cartWrite() isn't overridden,
+     * or if the class that overrides it also overrides prgRAMWritesPlain().
+     *
+     * @return true if $6000-$7FFF holds no mapper registers
+     */
+    public final boolean plainPRGRAMWrite() {
+        return plainWRAM;
+    }
+
+    /**
+     * Mappers whose cartWrite() hands $6000-$7FFF straight to
+     * Mapper.cartWrite() override this to return true, in the same class.
+     */
+    protected boolean prgRAMWritesPlain() {
+        return false;
+    }
+
+    /**
+     * A row of a tile as the PPU would fetch it, both bit planes merged (see
+     * utils.patternRow()). Rows are decoded once and kept, by where they are
+     * in CHR rather than where they're banked in, so bank switches don't
+     * throw anything away; writes to CHR RAM through ppuWrite() do. Reads
+     * CHR directly, so only for mappers with a plain ppuRead().
+     *
+     * @param addr PPU address of the row's low plane byte, below 0x2000
+     * @return the 8 pixels of the row, two bits each, leftmost first
+     */
+    public final int patternRow(final int addr) {
+        if (tilechr != chr) {
+            //first use, or new CHR
+            tilechr = chr;
+            tilerows = new int[(chr.length + 15) >> 1];
+            Arrays.fill(tilerows, -1);
+        }
+        final int chraddr = chr_map[addr >> 10] + (addr & 1023);
+        final int row = ((chraddr >> 4) << 3) | (chraddr & 7);
+        int pixels = tilerows[row];
+        if (pixels < 0) {
+            pixels = utils.patternRow(chr[chraddr], chr[chraddr + 8]);
+            tilerows[row] = pixels;
+        }
+        return pixels;
+    }
+
     public void checkA12(int addr) {
         //needed for mmc3 irq counter
     }
 
     public void setPRGRAM(final int[] newprgram) {
         prgram = newprgram.clone();
+        if (cpuram != null) {
+            cpuram.remap();
+        }
 
     }
 
@@ -109,7 +109,7 @@ public class Mapper182 extends Mapper {
             } else if ((addr >= 0xE000) && (addr <= 0xFFFF)) {
                 //any value here disables IRQ and acknowledges
                 if (interrupted) {
-                    --cpu.interrupt;
+                    cpu.releaseIRQ(irqline);
                 }
                 interrupted = false;
                 irqenable = false;
@@ -178,7 +178,7 @@ public class Mapper182 extends Mapper {
                 //irqs stop being generated if reload set to zero
             }
             if (irqenable && !interrupted) {
-                ++cpu.interrupt;
+                cpu.assertIRQ(irqline);
                 interrupted = true;
             }
             irqctr = irqctrreload;
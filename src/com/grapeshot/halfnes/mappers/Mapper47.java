@@ -102,7 +102,7 @@ public class Mapper47 extends MMC3Mapper {
             } else if ((addr >= 0xe000) && (addr <= 0xffff)) {
                 //any value here disables IRQ and acknowledges
                 if (interrupted) {
-                    --cpu.interrupt;
+                    cpu.releaseIRQ(irqline);
                 }
                 interrupted = false;
                 irqenable = false;
@@ -95,7 +95,7 @@ public class Mapper48 extends Mapper {
                 case 3:
                     //any value here disables IRQ and acknowledges
                     if (interrupted) {
-                        --cpu.interrupt;
+                        cpu.releaseIRQ(irqline);
                     }
                     interrupted = false;
                     irqenable = false;
@@ -165,7 +165,7 @@ public class Mapper48 extends Mapper {
                 //irqs stop being generated if reload set to zero
             }
             if (irqenable && !interrupted) {
-                ++cpu.interrupt;
+                cpu.assertIRQ(irqline);
                 interrupted = true;
             }
             irqctr = irqctrreload;
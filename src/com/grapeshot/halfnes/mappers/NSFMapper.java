@@ -103,6 +103,7 @@ public class NSFMapper extends Mapper {
         }
         cpuram = new CPURAM(this);
         cpu = new CPU(cpuram);
+        irqline = cpu.irqSource();
         ppu = new PPU(this);
         Arrays.fill(pput0, 0x00);
         setmirroring(scrolltype);
@@ -142,7 +143,7 @@ public class NSFMapper extends Mapper {
         cpu.push(0xfa);
 
         cpu.setPC(init);
-        cpu.interrupt = -99999; //no interrupts for you
+        cpu.ignoreIRQs(); //no interrupts for you
         cpu.setRegA(song);
         if (this.region == TVType.PAL) {
             cpu.setRegX(0x01);
@@ -154,7 +154,7 @@ public class NamcoMapper extends Mapper {
 
     private void irqack() {
         if (interrupted) {
-            --cpu.interrupt;
+            cpu.releaseIRQ(irqline);
             interrupted = false;
         }
 
@@ -167,7 +167,7 @@ public class NamcoMapper extends Mapper {
             irqcounter = 0x7fff;
         }
         if (irqcounter == 0x7fff && irqenable && !interrupted) {
-            ++cpu.interrupt;
+            cpu.assertIRQ(irqline);
             interrupted = true;
         }
     }
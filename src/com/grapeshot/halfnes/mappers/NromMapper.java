@@ -36,6 +36,27 @@ public class NromMapper extends Mapper {
         return addr >> 8; //open bus
     }
 
+    @Override
+    public int prgOffset(final int addr) {
+        return addr;
+    }
+
+    @Override
+    public void mapPages(final int[][] pages, final int[] offsets, final boolean all) {
+        //banks never change, so cartridge writes can't move anything
+        if (!all) {
+            return;
+        }
+        for (int page = 0x60; page < 0x80; ++page) {
+            pages[page] = hasprgram ? prgram : null;
+            offsets[page] = (page & 0x1f) << 8;
+        }
+        for (int page = 0x80; page < 0x100; ++page) {
+            pages[page] = prg;
+            offsets[page] = page << 8;
+        }
+    }
+
     @Override
     public int ppuRead(int addr) {
         if (addr < 0x2000) {
@@ -63,4 +84,10 @@ public class NromMapper extends Mapper {
             }
         }
     }
+
+    @Override
+    public boolean plainPPURead() {
+        //same lookup as Mapper's, minus the banking
+        return true;
+    }
 }
@@ -53,7 +53,7 @@ public class Sunsoft03Mapper extends Mapper {
             }
         } else if (addr >= 0xD800 && addr <= 0xDFFF) {
             if (interrupted) {
-                --cpu.interrupt;
+                cpu.releaseIRQ(irqline);
                 interrupted = false;
             }
             irqenable = ((data & (utils.BIT4)) != 0);
@@ -86,7 +86,7 @@ public class Sunsoft03Mapper extends Mapper {
             if (irqctr <= 0) {
                 irqctr = 0xFFFF;
                 if (!interrupted) {
-                    ++cpu.interrupt;
+                    cpu.assertIRQ(irqline);
                     interrupted = true;
                 }
                 irqenable = false;
@@ -124,7 +124,7 @@ public class TengenRamboMapper extends Mapper {
             } else if ((addr >= 0xe000) && (addr <= 0xffff)) {
                 //any value here disables IRQ and acknowledges
                 if (interrupted) {
-                    --cpu.interrupt;
+                    cpu.releaseIRQ(irqline);
                 }
                 interrupted = false;
                 irqenable = false;
@@ -217,7 +217,7 @@ public class TengenRamboMapper extends Mapper {
         if (intnextcycle) {
             intnextcycle = false;
             if (!interrupted) {
-                ++cpu.interrupt;
+                cpu.assertIRQ(irqline);
                 interrupted = true;
             }
         }
@@ -25,6 +25,11 @@ public class UnromMapper extends Mapper {
         }
     }
 
+    @Override
+    protected boolean prgRAMWritesPlain() {
+        return true;
+    }
+
     @Override
     public final void cartWrite(int addr, int data) {
         if (addr < 0x8000 || addr > 0xffff) {
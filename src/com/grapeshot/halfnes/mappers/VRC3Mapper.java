@@ -62,7 +62,7 @@ public class VRC3Mapper extends Mapper {
                     }
 
                     if (interrupted) {
-                        --cpu.interrupt;
+                        cpu.releaseIRQ(irqline);
                         interrupted = false;
                     }
                 }
@@ -70,7 +70,7 @@ public class VRC3Mapper extends Mapper {
             case 0xD:   //IRQ Acknowledge
                 irqenable = irqackenable;
                 if (interrupted) {
-                    --cpu.interrupt;
+                    cpu.releaseIRQ(irqline);
                     interrupted = false;
                 }
                 break;
@@ -92,7 +92,7 @@ public class VRC3Mapper extends Mapper {
                     irqctr = irqreload;
                     irqctr |= (irqreload & 0xFF);
                     if (!interrupted) {
-                        ++cpu.interrupt;
+                        cpu.assertIRQ(irqline);
                         interrupted = true;
                     }
                 } else {
@@ -103,7 +103,7 @@ public class VRC3Mapper extends Mapper {
                 if (irqctr >= 0xFFFF) {
                     irqctr = irqreload;
                     if (!interrupted) {
-                        ++cpu.interrupt;
+                        cpu.assertIRQ(irqline);
                         interrupted = true;
                     }
                 } else {
@@ -145,14 +145,14 @@ public class VRC4Mapper extends Mapper {
                         prescaler = 341;
                     }
                     if (firedinterrupt) {
-                        --cpu.interrupt;
+                        cpu.releaseIRQ(irqline);
                     }
                     firedinterrupt = false;
 
                 } else {
                     irqenable = irqack;
                     if (firedinterrupt) {
-                        --cpu.interrupt;
+                        cpu.releaseIRQ(irqline);
                     }
                     firedinterrupt = false;
                 }
@@ -233,7 +233,7 @@ public class VRC4Mapper extends Mapper {
                 irqcounter = irqreload;
                 //System.err.println("Interrupt @ Scanline " + scanline + " reload " + irqreload);
                 if (!firedinterrupt) {
-                    ++cpu.interrupt;
+                    cpu.assertIRQ(irqline);
                 }
                 firedinterrupt = true;
             } else {
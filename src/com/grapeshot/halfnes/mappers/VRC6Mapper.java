@@ -118,7 +118,7 @@ public class VRC6Mapper extends Mapper {
                             prescaler = 341;
                         }
                         if (firedinterrupt) {
-                            --cpu.interrupt;
+                            cpu.releaseIRQ(irqline);
                         }
                         firedinterrupt = false;
                     }
@@ -126,7 +126,7 @@ public class VRC6Mapper extends Mapper {
                     if (!bit0) {
                         irqenable = irqack;
                         if (firedinterrupt) {
-                            --cpu.interrupt;
+                            cpu.releaseIRQ(irqline);
                         }
                         firedinterrupt = false;
                     }
@@ -194,7 +194,7 @@ public class VRC6Mapper extends Mapper {
                 irqcounter = irqreload;
                 //System.err.println("Interrupt @ Scanline " + scanline + " reload " + irqreload);
                 if (!firedinterrupt) {
-                    ++cpu.interrupt;
+                    cpu.assertIRQ(irqline);
                 }
                 firedinterrupt = true;
             } else {
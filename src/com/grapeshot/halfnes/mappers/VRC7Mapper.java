@@ -117,7 +117,7 @@ public class VRC7Mapper extends Mapper {
                     //irq ack
                     irqenable = irqack;
                     if (firedinterrupt) {
-                        --cpu.interrupt;
+                        cpu.releaseIRQ(irqline);
                     }
                     firedinterrupt = false;
                 } else {
@@ -130,7 +130,7 @@ public class VRC7Mapper extends Mapper {
                         prescaler = 341;
                     }
                     if (firedinterrupt) {
-                        --cpu.interrupt;
+                        cpu.releaseIRQ(irqline);
                     }
                     firedinterrupt = false;
                 }
@@ -194,7 +194,7 @@ public class VRC7Mapper extends Mapper {
                 irqcounter = irqreload;
                 //System.err.println("Interrupt @ Scanline " + scanline + " reload " + irqreload);
                 if (!firedinterrupt) {
-                    ++cpu.interrupt;
+                    cpu.assertIRQ(irqline);
                 }
                 firedinterrupt = true;
             } else {
@@ -1,10 +1,16 @@
 package com.grapeshot.halfnes.nestest;
 
+import com.grapeshot.halfnes.CPU;
 import com.grapeshot.halfnes.NES;
 import com.grapeshot.halfnes.mappers.BadMapperException;
 import com.grapeshot.halfnes.ui.ControllerInterface;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import org.testng.annotations.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import static org.mockito.Mockito.mock;
 
@@ -41,4 +47,189 @@ public class NesTest {
         assertEquals(nes.getCPURAM().read(3), 255);
     }
 
+    @Test
+    public void nesTestJIT() throws BadMapperException {
+        //the same run with compiled blocks off and on. Every instruction
+        //boundary the compiled run stops at has to turn up in the
+        //interpreter's run, in the same order and with the same registers
+        //and cycle count; the ones it doesn't stop at are inside blocks.
+        final StepLog interpreted = new StepLog(), compiled = new StepLog();
+        runLogged(NESTEST, interpreted, false, 0);
+        final NES nes = runLogged(NESTEST, compiled, true, 0);
+        assertTrue("no compiled blocks ran", nes.getCPU().getBlocksRun() > 0);
+        assertSameBoundaries(interpreted, compiled);
+        assertEquals(nes.getCPURAM().read(0), 0);
+        assertEquals(nes.getCPURAM().read(1), 255);
+        assertEquals(nes.getCPURAM().read(2), 255);
+        assertEquals(nes.getCPURAM().read(3), 255);
+    }
+
+    @Test
+    public void nesTestJITInterrupts() throws BadMapperException, IOException {
+        //nestest never enables NMI, so this runs a loop of compilable code
+        //with NMI on instead. A block that ran on past the start of vblank
+        //would take the NMI late: the handler would start on the wrong cycle
+        //and push a different return address than the interpreter does.
+        final File rom = nmiLoopROM();
+        try {
+            final StepLog interpreted = new StepLog(), compiled = new StepLog();
+            final NES slow = runLogged(rom.getPath(), interpreted, false, 30);
+            final NES fast = runLogged(rom.getPath(), compiled, true, 30);
+            assertTrue("no compiled blocks ran", fast.getCPU().getBlocksRun() > 0);
+            assertTrue("no NMIs were taken", fast.getCPURAM().read(0x10) > 20);
+            assertSameBoundaries(interpreted, compiled);
+            //a block can finish past the end of the last frame, so only the
+            //NMI count and stack (where the return addresses are) have to
+            //match outright
+            assertEquals(slow.getCPURAM().read(0x10), fast.getCPURAM().read(0x10));
+            for (int addr = 0x100; addr < 0x200; ++addr) {
+                assertEquals("stack at " + Integer.toHexString(addr),
+                        slow.getCPURAM().read(addr), fast.getCPURAM().read(addr));
+            }
+        } finally {
+            rom.delete();
+        }
+    }
+
+    private final static String NESTEST = "src/test/resources/nestest/nestest.nes";
+
+    //runs nestest like nesTest() does when frames is 0
+    private static NES runLogged(final String rom, final StepLog log, final boolean jit,
+            final int frames) throws BadMapperException {
+        NES nes = new NES(null);
+        if (frames == 0) {
+            nes.loadROM(rom, 0xC000);
+        } else {
+            nes.loadROM(rom);
+        }
+        nes.setControllers(mock(ControllerInterface.class), mock(ControllerInterface.class));
+        nes.getCPU().setJIT(jit);
+        nes.getCPU().setStepListener(log);
+        if (frames == 0) {
+            while (nes.runEmulation) {
+                nes.frameAdvance();
+            }
+        }
+        for (int i = 0; i < frames; ++i) {
+            nes.frameAdvance();
+        }
+        return nes;
+    }
+
+    //Every instruction boundary the compiled run stops at has to turn up in
+    //the interpreter's run, in the same order and with the same registers
+    //and cycle count; the ones it doesn't stop at are inside blocks.
+    private static void assertSameBoundaries(final StepLog interpreted, final StepLog compiled) {
+        assertTrue("compiled run never skipped an instruction", compiled.size < interpreted.size);
+        int i = 0;
+        for (int j = 0; j < compiled.size; ++j, ++i) {
+            while (i < interpreted.size && !interpreted.same(i, compiled, j)) {
+                ++i;
+            }
+            assertTrue("compiled run differs from the interpreter at " + compiled.describe(j),
+                    i < interpreted.size);
+        }
+    }
+
+    /**
+     * Writes out an NROM image that turns on NMI and then spins in a loop of
+     * 15 compilable instructions; the NMI handler just counts frames at $10.
+     */
+    private static File nmiLoopROM() throws IOException {
+        final int[] code = {
+            0x78, //SEI
+            0xd8, //CLD
+            0xa2, 0xff, //LDX #$FF
+            0x9a, //TXS
+            0xa9, 0x80, //LDA #$80
+            0x8d, 0x00, 0x20, //STA $2000
+            //loop at $C00A
+            0xa5, 0x00, //LDA $00
+            0x18, //CLC
+            0x69, 0x03, //ADC #3
+            0x85, 0x00, //STA $00
+            0xa5, 0x01, //LDA $01
+            0x69, 0x00, //ADC #0
+            0x85, 0x01, //STA $01
+            0xe6, 0x02, //INC $02
+            0xa6, 0x02, //LDX $02
+            0xbd, 0x80, 0x03, //LDA $0380,X
+            0x9d, 0x00, 0x04, //STA $0400,X
+            0xc8, //INY
+            0x84, 0x03, //STY $03
+            0x45, 0x00, //EOR $00
+            0x85, 0x04, //STA $04
+            0x4c, 0x0a, 0xc0, //JMP $C00A
+            //NMI at $C02B, the RTI doubles as the IRQ handler
+            0xe6, 0x10, //INC $10
+            0x40 //RTI
+        };
+        final byte[] image = new byte[16 + 0x4000 + 0x2000];
+        image[0] = 'N';
+        image[1] = 'E';
+        image[2] = 'S';
+        image[3] = 0x1a;
+        image[4] = 1; //16K PRG
+        image[5] = 1; //8K CHR
+        for (int i = 0; i < code.length; ++i) {
+            image[16 + i] = (byte) code[i];
+        }
+        //NMI, reset and IRQ vectors
+        final int[] vectors = {0x2b, 0xc0, 0x00, 0xc0, 0x2d, 0xc0};
+        for (int i = 0; i < vectors.length; ++i) {
+            image[16 + 0x3ffa + i] = (byte) vectors[i];
+        }
+        final File rom = File.createTempFile("nmiloop", ".nes");
+        try (FileOutputStream out = new FileOutputStream(rom)) {
+            out.write(image);
+        }
+        return rom;
+    }
+
+    //CPU state at each instruction boundary
+    private static class StepLog implements CPU.StepListener {
+
+        long[] regs = new long[1 << 16];
+        int[] clocks = new int[1 << 16];
+        int size = 0;
+
+        @Override
+        public void step(int pc, int a, int x, int y, int p, int s, int clocks) {
+            if (size == regs.length) {
+                regs = Arrays.copyOf(regs, size * 2);
+                this.clocks = Arrays.copyOf(this.clocks, size * 2);
+            }
+            regs[size] = ((long) pc << 40) | ((long) a << 32) | ((long) x << 24)
+                    | (y << 16) | (p << 8) | s;
+            this.clocks[size++] = clocks;
+        }
+
+        boolean same(int i, StepLog other, int j) {
+            return regs[i] == other.regs[j] && clocks[i] == other.clocks[j];
+        }
+
+        String describe(int i) {
+            final long r = regs[i];
+            return String.format("%04X A:%02X X:%02X Y:%02X P:%02X SP:%02X CYC:%d",
+                    r >> 40, (r >> 32) & 0xff, (r >> 24) & 0xff, (r >> 16) & 0xff,
+                    (r >> 8) & 0xff, r & 0xff, clocks[i]);
+        }
+    }
+
+    @Test
+    public void nesTestCycleAccurate() throws BadMapperException {
+        //same checks on the per cycle core
+        NES nes = new NES(null);
+        nes.loadROM("src/test/resources/nestest/nestest.nes", 0xC000);
+        nes.setControllers(mock(ControllerInterface.class), mock(ControllerInterface.class));
+        nes.getCPU().setCycleAccurate(true);
+        while (nes.runEmulation) {
+            nes.frameAdvance();
+        }
+        assertEquals(nes.getCPURAM().read(0), 0);
+        assertEquals(nes.getCPURAM().read(1), 255);
+        assertEquals(nes.getCPURAM().read(2), 255);
+        assertEquals(nes.getCPURAM().read(3), 255);
+    }
+
 }
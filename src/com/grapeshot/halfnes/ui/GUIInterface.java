@@ -20,6 +20,15 @@ public interface GUIInterface extends Runnable {
     //Frame is now a 256x240 array with NES color numbers from 0-3F
     //plus the state of the 3 color emphasis bits in bits 7,8,9
 
+    /**
+     * Same as setFrame() plus which lines changed since the last frame sent,
+     * a bit per line (see PPU.getDirtyLines()), for GUIs that can skip work
+     * on the rest. The array is only valid during the call.
+     */
+    public default void setFrame(int[] frame, int[] bgcolor, boolean dotcrawl, long[] dirtylines) {
+        setFrame(frame, bgcolor, dotcrawl);
+    }
+
     public void messageBox(String message);
 
     @Override
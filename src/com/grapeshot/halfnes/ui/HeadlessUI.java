@@ -2,6 +2,7 @@ package com.grapeshot.halfnes.ui;
 
 import com.grapeshot.halfnes.CPURAM;
 import com.grapeshot.halfnes.NES;
+import com.grapeshot.halfnes.video.PixelObservation;
 import com.grapeshot.halfnes.video.RGBRenderer;
 import com.grapeshot.halfnes.video.Renderer;
 
@@ -16,6 +17,8 @@ public class HeadlessUI implements GUIInterface {
     private Renderer renderer;
     private boolean renderFrames;
     private BufferedImage lastFrame = null;
+    // palette index bitmap of the last frame, for pixel observations
+    private int[] lastBitmap = null;
     private boolean updateImage;
     private PuppetController controller1, controller2;
 
@@ -27,6 +30,8 @@ public class HeadlessUI implements GUIInterface {
         this.controller2 = new PuppetController();
         nes.setControllers(this.controller1, this.controller2);
         this.renderFrames = renderFrames;
+        //nothing else reads which lines changed
+        nes.setDirtyLineTracking(renderFrames);
     }
 
     public void loadROM(String romToLoad) {
@@ -37,6 +42,27 @@ public class HeadlessUI implements GUIInterface {
         return lastFrame;
     }
 
+    /**
+     * Builds a pixel observation of the last frame straight from the PPU's
+     * palette indexes. Only does work when called, so frames in between
+     * observations cost nothing extra. With NES.setRenderEvery() skipping
+     * frames, call NES.drawNextFrame() before a frame that gets observed.
+     *
+     * @return out, or out untouched if no frame has been drawn yet
+     * @throws IllegalStateException if the last frame wasn't drawn, so the
+     * picture is out of date
+     */
+    public float[] getPixels(PixelObservation obs, float[] out) {
+        if (lastBitmap != null) {
+            if (!nes.frameDrawn()) {
+                throw new IllegalStateException("last frame was skipped by"
+                        + " setRenderEvery(), its pixels are out of date");
+            }
+            obs.extract(lastBitmap, out);
+        }
+        return out;
+    }
+
     public PuppetController getController1() {
         return controller1;
     }
@@ -65,8 +91,17 @@ public class HeadlessUI implements GUIInterface {
 
     @Override
     public void setFrame(int[] frame, int[] bgcolor, boolean dotcrawl) {
+        setFrame(frame, bgcolor, dotcrawl, null);
+    }
+
+    @Override
+    public void setFrame(int[] frame, int[] bgcolor, boolean dotcrawl, long[] dirtylines) {
+        //the PPU doesn't touch this again until the next frame starts
+        lastBitmap = frame;
         if (renderFrames) {
-            this.lastFrame = renderer.render(frame, bgcolor, dotcrawl);
+            //this renderer sees every frame the PPU sends, so it only has to
+            //convert the lines that changed
+            this.lastFrame = renderer.render(frame, bgcolor, dotcrawl, dirtylines);
         }
     }
 
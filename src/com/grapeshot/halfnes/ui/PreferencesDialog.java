@@ -11,6 +11,7 @@
 package com.grapeshot.halfnes.ui;
 
 import com.grapeshot.halfnes.PrefsSingleton;
+import com.grapeshot.halfnes.video.ScaleRenderer;
 import java.awt.event.KeyEvent;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -40,6 +41,9 @@ public class PreferencesDialog extends javax.swing.JDialog {
         jCheckSoundFiltering.setSelected(prefs.getBoolean("soundFiltering", true));
         jCheckMaintainAspect.setSelected(prefs.getBoolean("maintainAspect", true));
         jCheckBoxNTSC.setSelected(prefs.getBoolean("TVEmulation", false));
+        jScaleFilterBox.setSelectedIndex(scaleFilterIndex(prefs.get("scaleFilter", "none")));
+        //the NTSC filter does its own scaling
+        jScaleFilterBox.setEnabled(!jCheckBoxNTSC.isSelected());
         jCheckBoxNTView.setSelected(prefs.getBoolean("ntView", false));
         jCheckBoxShowScope.setSelected(prefs.getBoolean("showScope", false));
         jCheckBoxSleep.setSelected(prefs.getBoolean("Sleep", true));
@@ -54,6 +58,21 @@ public class PreferencesDialog extends javax.swing.JDialog {
         //0-> auto, 1-> NTSC, 2-> PAL, 3-> Dendy
     }
 
+    //the filters are listed in ScaleRenderer.Filter order after "None"
+    private static int scaleFilterIndex(final String name) {
+        final ScaleRenderer.Filter[] filters = ScaleRenderer.Filter.values();
+        for (int i = 0; i < filters.length; ++i) {
+            if (filters[i].name().equalsIgnoreCase(name)) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private static String scaleFilterName(final int index) {
+        return (index > 0) ? ScaleRenderer.Filter.values()[index - 1].name().toLowerCase() : "none";
+    }
+
     /**
      * This method is called from within the constructor to initialize the form.
      * WARNING: Do NOT modify this code. The content of this method is always
@@ -87,6 +106,8 @@ public class PreferencesDialog extends javax.swing.JDialog {
         jCheckBoxNTView = new javax.swing.JCheckBox();
         jLabel3 = new javax.swing.JLabel();
         jRegionBox = new javax.swing.JComboBox();
+        jLabel4 = new javax.swing.JLabel();
+        jScaleFilterBox = new javax.swing.JComboBox();
 
         setModalityType(java.awt.Dialog.ModalityType.APPLICATION_MODAL);
         setName("OptionsDialog"); // NOI18N
@@ -182,6 +203,10 @@ public class PreferencesDialog extends javax.swing.JDialog {
             }
         });
 
+        jLabel4.setText("Scale filter:");
+
+        jScaleFilterBox.setModel(new javax.swing.DefaultComboBoxModel(new String[] { "None", "Scale2x", "Scale3x", "hq2x", "hq3x", "xBR 2x", "xBR 3x" }));
+
         javax.swing.GroupLayout layout = new javax.swing.GroupLayout(getContentPane());
         getContentPane().setLayout(layout);
         layout.setHorizontalGroup(
@@ -206,6 +231,10 @@ public class PreferencesDialog extends javax.swing.JDialog {
                                         .addComponent(jLabel20, javax.swing.GroupLayout.PREFERRED_SIZE, 26, javax.swing.GroupLayout.PREFERRED_SIZE))
                                     .addComponent(jLabel19)
                                     .addComponent(jCheckBoxNTSC)
+                                    .addGroup(layout.createSequentialGroup()
+                                        .addComponent(jLabel4)
+                                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                                        .addComponent(jScaleFilterBox, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
                                     .addComponent(jCheckMaintainAspect)
                                     .addComponent(jCheckBoxSmoothVideo)
                                     .addComponent(jCheckBoxSleep)
@@ -270,6 +299,10 @@ public class PreferencesDialog extends javax.swing.JDialog {
                         .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                         .addComponent(jCheckBoxNTSC)
                         .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                        .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                            .addComponent(jLabel4)
+                            .addComponent(jScaleFilterBox, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                         .addComponent(jCheckBoxSleep)
                         .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                         .addComponent(jCheckBoxShowScope)
@@ -303,6 +336,7 @@ public class PreferencesDialog extends javax.swing.JDialog {
         prefs.putBoolean("soundFiltering", jCheckSoundFiltering.isSelected());
         prefs.putBoolean("maintainAspect", jCheckMaintainAspect.isSelected());
         prefs.putBoolean("TVEmulation", jCheckBoxNTSC.isSelected());
+        prefs.put("scaleFilter", scaleFilterName(jScaleFilterBox.getSelectedIndex()));
         prefs.putBoolean("Sleep", jCheckBoxSleep.isSelected());
         screenScaling = (Integer) (jSpinnerScale.getModel().getValue());
         prefs.putBoolean("smoothScaling", jCheckBoxSmoothVideo.isSelected());
@@ -333,7 +367,7 @@ public class PreferencesDialog extends javax.swing.JDialog {
     }//GEN-LAST:event_jCheckSoundFilteringActionPerformed
 
     private void jCheckBoxNTSCActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jCheckBoxNTSCActionPerformed
-        // TODO add your handling code here:
+        jScaleFilterBox.setEnabled(!jCheckBoxNTSC.isSelected());
     }//GEN-LAST:event_jCheckBoxNTSCActionPerformed
 
     private void jCheckBoxSmoothVideoActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jCheckBoxSmoothVideoActionPerformed
@@ -368,8 +402,10 @@ public class PreferencesDialog extends javax.swing.JDialog {
     private javax.swing.JLabel jLabel2;
     private javax.swing.JLabel jLabel20;
     private javax.swing.JLabel jLabel3;
+    private javax.swing.JLabel jLabel4;
     private javax.swing.JComboBox jRegionBox;
     private javax.swing.JComboBox jSampleRateBox;
+    private javax.swing.JComboBox jScaleFilterBox;
     private javax.swing.JSpinner jSpinnerScale;
     private javax.swing.JSlider volumeSlider;
     // End of variables declaration//GEN-END:variables
@@ -11,11 +11,14 @@ import com.grapeshot.halfnes.video.RGBRenderer;
 import com.grapeshot.halfnes.cheats.ActionReplay;
 import com.grapeshot.halfnes.cheats.ActionReplayGui;
 import com.grapeshot.halfnes.ui.PuppetController.Button;
+import com.grapeshot.halfnes.video.FrameExchange;
 import com.grapeshot.halfnes.video.NTSCRenderer;
 import com.grapeshot.halfnes.video.Renderer;
+import com.grapeshot.halfnes.video.ScaleRenderer;
 
+import hackisu_s17.env.RamExtractor;
+import hackisu_s17.env.SuperMarioBros;
 import hackisu_s17.neur.NeuralNet;
-import hackisu_s17.util.Util.ArrayUtils;
 
 import java.awt.*;
 import java.awt.datatransfer.DataFlavor;
@@ -31,6 +34,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
@@ -52,9 +56,13 @@ public class SwingUI extends JFrame implements GUIInterface {
     private Renderer renderer;
     ControllerImpl padController1;
 	private final ControllerImpl padController2;
+    private final RamExtractor mario = SuperMarioBros.profile().compile();
 
     public SwingUI(String[] args) {
         nes = new NES(this);
+        //the renderers only convert the lines that changed
+        nes.setDirtyLineTracking(true);
+        nes.setRAMWatch(mario);
         screenScaleFactor = PrefsSingleton.get().getInt("screenScaling", 2);
         padController1 = new ControllerImpl(this, 0);
         padController2 = new ControllerImpl(this, 1);
@@ -66,15 +74,16 @@ public class SwingUI extends JFrame implements GUIInterface {
     private int noInput = 0;
     public int runSim(NeuralNet n)
     {
-    	while(!nes.getCPU().isDead){
+    	float[] obs = new float[mario.getObservationSize()];
+    	while(!mario.isDead()){
     		//0 = Up 1 = Right 2 = Down 3 = A 4 = B
-    		float[] butts = n.calculate(ArrayUtils.asSingleArray(nes.getCPU().updateNN()));
+    		float[] butts = n.calculate(mario.observe(obs));
     		for(int i = 0; i < butts.length; i++)
     		{
     			//botButtonPress(i, butts[i] > .5f);
     		}
     	}
-    	return nes.getCPU().getScore();
+    	return mario.takeScore();
     }
     
 //    boolean[] bottonTable = { false, false, false, false, false }; 
@@ -117,17 +126,31 @@ public class SwingUI extends JFrame implements GUIInterface {
         this.nes = nes;
     }
 
+    //one of ScaleRenderer.Filter by name, or plain RGB for anything else
+    private static Renderer scaleRenderer(final String name) {
+        for (ScaleRenderer.Filter f : ScaleRenderer.Filter.values()) {
+            if (f.name().equalsIgnoreCase(name)) {
+                return new ScaleRenderer(f);
+            }
+        }
+        return new RGBRenderer();
+    }
+
     public synchronized void setRenderOptions() {
         if (canvas != null) {
             this.remove(canvas);
         }
         screenScaleFactor = PrefsSingleton.get().getInt("screenScaling", 2);
         smoothScale = PrefsSingleton.get().getBoolean("smoothScaling", false);
+        if (renderer != null) {
+            //frames are only rendered holding this lock, so it's done with
+            renderer.close();
+        }
         if (PrefsSingleton.get().getBoolean("TVEmulation", false)) {
             renderer = new NTSCRenderer();
             NES_WIDTH = 302;
         } else {
-            renderer = new RGBRenderer();
+            renderer = scaleRenderer(PrefsSingleton.get().get("scaleFilter", "none"));
             NES_WIDTH = 256;
         }
         if (PrefsSingleton.get().getInt("region", 0) > 1) {
@@ -439,14 +462,20 @@ public class SwingUI extends JFrame implements GUIInterface {
     BufferedImage frame;
     double fps;
     int frameskip = 0;
+    //frames go from the emulation thread to the event thread through here,
+    //so the emulator never waits on the video filter or the screen
+    private final FrameExchange frames = new FrameExchange();
+    private final AtomicBoolean showPending = new AtomicBoolean();
+    private boolean publishedlast = false;
+    private long lastshown = -1;
 
     @Override
-    public final synchronized void setFrame(final int[] nextframe, final int[] bgcolors, boolean dotcrawl) {
-        //todo: stop running video filters while paused!
-        //also move video filters into a worker thread because they
-        //don't really depend on emulation state at all. Yes this is going to
-        //cause more lag but it will hopefully get back up to playable speed with NTSC filter
+    public final void setFrame(final int[] nextframe, final int[] bgcolors, boolean dotcrawl) {
+        setFrame(nextframe, bgcolors, dotcrawl, null);
+    }
 
+    @Override
+    public final void setFrame(final int[] nextframe, final int[] bgcolors, boolean dotcrawl, long[] dirtylines) {
         frametimes[frametimeptr] = nes.getFrameTime();
         ++frametimeptr;
         frametimeptr %= frametimes.length;
@@ -464,10 +493,31 @@ public class SwingUI extends JFrame implements GUIInterface {
                     nes.getCurrentRomName(),
                     fps));
         }
-        if (nes.framecount % (frameskip + 1) == 0) {
-            frame = renderer.render(nextframe, bgcolors, dotcrawl);
-            render();
+        final boolean draw = nes.framecount % (frameskip + 1) == 0;
+        if (draw) {
+            //the dirty lines are relative to the PPU's last frame, which
+            //only helps if that one went through here as well
+            frames.publish(nextframe, bgcolors, dotcrawl, publishedlast ? dirtylines : null);
+            if (!showPending.getAndSet(true)) {
+                EventQueue.invokeLater(this::showFrame);
+            }
         }
+        publishedlast = draw;
+    }
+
+    //runs the video filter on the newest frame and puts it on screen; on the
+    //event thread, and skips any frames it was too slow for
+    private synchronized void showFrame() {
+        showPending.set(false);
+        final FrameExchange.Frame f = frames.take();
+        if (f == null) {
+            return;
+        }
+        //the renderer only saw the frame before if none were skipped
+        frame = renderer.render(f.pixels, f.bgcolors, f.dotcrawl,
+                (f.number == lastshown + 1) ? f.dirtylines : null);
+        lastshown = f.number;
+        render();
     }
 
     @Override
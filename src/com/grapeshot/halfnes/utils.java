@@ -40,6 +40,28 @@ public class utils {
         return (Integer.reverse(nibble) >> 24) & 0xff;
     }
 
+    //each byte spread out to every other bit, leftmost pixel (bit 7) first
+    private final static int[] PLANE = new int[256];
+
+    static {
+        for (int b = 0; b < 256; ++b) {
+            for (int i = 0; i < 8; ++i) {
+                PLANE[b] |= ((b >> (7 - i)) & 1) << (i * 2);
+            }
+        }
+    }
+
+    /**
+     * Merges the two bit planes of a row of a tile.
+     *
+     * @param lo low plane byte, as stored in CHR
+     * @param hi high plane byte
+     * @return the 8 pixels of the row, two bits each, leftmost in bits 0-1
+     */
+    public static int patternRow(final int lo, final int hi) {
+        return PLANE[lo] | (PLANE[hi] << 1);
+    }
+
     public static void printarray(final int[] a) {
         StringBuilder s = new StringBuilder();
         for (int i : a) {
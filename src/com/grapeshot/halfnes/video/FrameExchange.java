@@ -0,0 +1,79 @@
+/*
+ * HalfNES by Andrew Hoffman
+ * Licensed under the GNU GPL Version 3. See LICENSE file
+ */
+package com.grapeshot.halfnes.video;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Passes frames from the emulation thread to a display thread without
+ * either of them waiting on the other. There are three slots: one the
+ * emulator fills, one the display is showing, and the newest finished frame
+ * in between. Publishing or taking a frame swaps a slot with the one in the
+ * middle in a single atomic step. The emulator always has a free slot, the
+ * display always gets the newest whole frame, and frames the display is too
+ * slow for are dropped. Each frame is copied exactly once, into its slot.
+ *
+ * One thread may publish and one other thread may take.
+ */
+public class FrameExchange {
+
+    /**
+     * One frame as the PPU sent it to setFrame().
+     */
+    public static final class Frame {
+
+        public final int[] pixels = new int[256 * 240];
+        public final int[] bgcolors = new int[256];
+        //lines changed since the frame published before this one
+        public final long[] dirtylines = new long[4];
+        public boolean dotcrawl;
+        //counts up by 1 for every frame published
+        public long number;
+    }
+    //set in middle when the slot there hasn't been taken yet
+    private final static int FRESH = 4;
+    private final Frame[] slots = {new Frame(), new Frame(), new Frame()};
+    private final AtomicInteger middle = new AtomicInteger(1);
+    //only touched by the publishing and taking thread respectively
+    private int back = 0, front = 2;
+    private long published = 0;
+
+    /**
+     * Copies a frame into the free slot and makes it the newest. Called from
+     * the emulation thread, never blocks.
+     *
+     * @param dirtylines lines changed since the previous frame passed in, or
+     * null if unknown
+     */
+    public void publish(final int[] pixels, final int[] bgcolors, final boolean dotcrawl, final long[] dirtylines) {
+        final Frame f = slots[back];
+        System.arraycopy(pixels, 0, f.pixels, 0, f.pixels.length);
+        System.arraycopy(bgcolors, 0, f.bgcolors, 0, Math.min(bgcolors.length, f.bgcolors.length));
+        if (dirtylines != null) {
+            System.arraycopy(dirtylines, 0, f.dirtylines, 0, f.dirtylines.length);
+        } else {
+            Arrays.fill(f.dirtylines, -1L);
+        }
+        f.dotcrawl = dotcrawl;
+        f.number = ++published;
+        back = middle.getAndSet(back | FRESH) & 3;
+    }
+
+    /**
+     * Takes the newest frame published. It belongs to the caller until the
+     * next call to take(). Called from the display thread, never blocks.
+     *
+     * @return the frame, or null if nothing new has been published since the
+     * last call
+     */
+    public Frame take() {
+        if ((middle.get() & FRESH) == 0) {
+            return null;
+        }
+        front = middle.getAndSet(front) & 3;
+        return slots[front];
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * HalfNES by Andrew Hoffman
+ * Licensed under the GNU GPL Version 3. See LICENSE file
+ */
+package com.grapeshot.halfnes.video;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import org.testng.annotations.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks FrameExchange hands out the newest frame, and that with a thread
+ * publishing as fast as it can the display thread never gets a frame that's
+ * half one frame and half another, or one that gets written over while it
+ * still holds it.
+ */
+public class FrameExchangeTest {
+
+    private static final int FRAMES = 5000;
+
+    //every value in frame n is n, so a mix of two frames shows up
+    private static void publish(final FrameExchange ex, final int n) {
+        final int[] pixels = new int[256 * 240], bgcolors = new int[240];
+        Arrays.fill(pixels, n);
+        Arrays.fill(bgcolors, n);
+        ex.publish(pixels, bgcolors, (n & 1) != 0, new long[]{n, n, n, n});
+    }
+
+    //null if the frame is all frame n
+    private static String check(final FrameExchange.Frame f, final long n) {
+        for (int i = 0; i < f.pixels.length; ++i) {
+            if (f.pixels[i] != n) {
+                return "frame " + n + " has pixel " + i + " from frame " + f.pixels[i];
+            }
+        }
+        for (int i = 0; i < 240; ++i) {
+            if (f.bgcolors[i] != n) {
+                return "frame " + n + " has line " + i + " backdrop from frame " + f.bgcolors[i];
+            }
+        }
+        for (long d : f.dirtylines) {
+            if (d != n) {
+                return "frame " + n + " has dirty lines from frame " + d;
+            }
+        }
+        if (f.dotcrawl != ((n & 1) != 0)) {
+            return "frame " + n + " has the wrong dot crawl";
+        }
+        return null;
+    }
+
+    @Test
+    public void takesTheNewestFrame() {
+        final FrameExchange ex = new FrameExchange();
+        assertNull(ex.take());
+        publish(ex, 1);
+        publish(ex, 2);
+        publish(ex, 3);
+        final FrameExchange.Frame f = ex.take();
+        assertEquals(3, f.number);
+        assertNull(check(f, 3), check(f, 3));
+        assertNull("nothing new", ex.take());
+        ex.publish(new int[256 * 240], new int[240], false, null);
+        assertArrayEquals(new long[]{-1, -1, -1, -1}, ex.take().dirtylines);
+    }
+
+    @Test
+    public void consumerNeverSeesTornOrReusedFrames() throws InterruptedException {
+        final FrameExchange ex = new FrameExchange();
+        final AtomicReference<String> error = new AtomicReference<>();
+        final int[] taken = {0};
+        final Thread consumer = new Thread(() -> {
+            long last = 0;
+            final long deadline = System.currentTimeMillis() + 60000;
+            while (last < FRAMES && System.currentTimeMillis() < deadline) {
+                final FrameExchange.Frame f = ex.take();
+                if (f == null) {
+                    continue;
+                }
+                final long n = f.number;
+                String e = (n > last) ? check(f, n) : "frame " + n + " after frame " + last;
+                if (e == null) {
+                    //still ours while the producer carries on, so it mustn't
+                    //change under us
+                    Thread.yield();
+                    e = check(f, n);
+                    if (e != null) {
+                        e = "while held: " + e;
+                    }
+                }
+                if (e != null) {
+                    error.set(e);
+                    return;
+                }
+                last = n;
+                ++taken[0];
+            }
+            if (last < FRAMES) {
+                error.set("timed out after frame " + last);
+            }
+        }, "consumer");
+        consumer.start();
+        for (int n = 1; n <= FRAMES; ++n) {
+            publish(ex, n);
+        }
+        consumer.join(120000);
+        assertFalse("consumer stuck", consumer.isAlive());
+        assertNull(error.get(), error.get());
+        assertTrue("only took " + taken[0] + " frames", taken[0] > 1);
+    }
+}
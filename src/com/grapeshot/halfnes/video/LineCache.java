@@ -0,0 +1,115 @@
+/*
+ * HalfNES by Andrew Hoffman
+ * Licensed under the GNU GPL Version 3. See LICENSE file
+ */
+package com.grapeshot.halfnes.video;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed size cache of filtered scan lines, keyed by a 64 bit hash of
+ * whatever went into them. It's set associative: a key can only live in one
+ * of the WAYS slots of its set, and once those are full a CLOCK hand throws
+ * out the first one that hasn't been hit since the hand last went past. The
+ * sets are split between a handful of locks so threads filtering different
+ * lines rarely wait on each other, and all the line buffers are allocated
+ * up front.
+ */
+final class LineCache {
+
+    private final static int WAYS = 8, STRIPES = 16;
+    private final int setmask, width;
+    private final long[] keys;
+    private final boolean[] used, referenced;
+    private final int[][] lines;
+    //next slot the clock hand looks at in each set
+    private final int[] hands;
+    private final Object[] locks = new Object[STRIPES];
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+    /**
+     * @param sets number of sets, a power of 2; holds WAYS lines per set
+     * @param width length of a line
+     */
+    LineCache(final int sets, final int width) {
+        if (Integer.bitCount(sets) != 1) {
+            throw new IllegalArgumentException("set count " + sets + " is not a power of 2");
+        }
+        setmask = sets - 1;
+        this.width = width;
+        keys = new long[sets * WAYS];
+        used = new boolean[sets * WAYS];
+        referenced = new boolean[sets * WAYS];
+        lines = new int[sets * WAYS][width];
+        hands = new int[sets];
+        for (int i = 0; i < STRIPES; ++i) {
+            locks[i] = new Object();
+        }
+    }
+
+    private int set(final long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & setmask;
+    }
+
+    /**
+     * Copies the line stored under key into dest, if there is one.
+     *
+     * @return whether it was there
+     */
+    boolean get(final long key, final int[] dest, final int destpos) {
+        final int set = set(key);
+        synchronized (locks[set & (STRIPES - 1)]) {
+            for (int i = set * WAYS; i < (set + 1) * WAYS; ++i) {
+                if (used[i] && keys[i] == key) {
+                    referenced[i] = true;
+                    System.arraycopy(lines[i], 0, dest, destpos, width);
+                    hits.increment();
+                    return true;
+                }
+            }
+        }
+        misses.increment();
+        return false;
+    }
+
+    /**
+     * Stores a copy of a line under key, evicting another from its set if
+     * need be.
+     */
+    void put(final long key, final int[] src, final int srcpos) {
+        final int set = set(key), base = set * WAYS;
+        synchronized (locks[set & (STRIPES - 1)]) {
+            int slot = -1;
+            for (int i = base; i < base + WAYS; ++i) {
+                if (used[i] && keys[i] == key) {
+                    //another thread got here first with the same line
+                    return;
+                }
+                if (!used[i] && slot < 0) {
+                    slot = i;
+                }
+            }
+            if (slot < 0) {
+                int hand = hands[set];
+                while (referenced[base + hand]) {
+                    referenced[base + hand] = false;
+                    hand = (hand + 1) % WAYS;
+                }
+                slot = base + hand;
+                hands[set] = (hand + 1) % WAYS;
+            }
+            keys[slot] = key;
+            used[slot] = true;
+            referenced[slot] = false;
+            System.arraycopy(src, srcpos, lines[slot], 0, width);
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+}
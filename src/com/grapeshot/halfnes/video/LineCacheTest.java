@@ -0,0 +1,138 @@
+/*
+ * HalfNES by Andrew Hoffman
+ * Licensed under the GNU GPL Version 3. See LICENSE file
+ */
+package com.grapeshot.halfnes.video;
+
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import org.testng.annotations.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks LineCache on its own, with one set so every key competes for the
+ * same slots, and then through NTSCRenderer that anything that changes how
+ * a line looks changes its key.
+ */
+public class LineCacheTest {
+
+    private static final int WIDTH = 4;
+
+    private static int[] line(final long key) {
+        final int[] l = new int[WIDTH];
+        Arrays.fill(l, (int) key);
+        return l;
+    }
+
+    private static boolean has(final LineCache cache, final long key) {
+        return cache.get(key, new int[WIDTH], 0);
+    }
+
+    @Test
+    public void hitCopiesTheLine() {
+        final LineCache cache = new LineCache(16, WIDTH);
+        cache.put(42, new int[]{9, 1, 2, 3, 4, 9}, 1);
+        final int[] dest = new int[WIDTH + 2];
+        assertTrue(cache.get(42, dest, 2));
+        assertArrayEquals(new int[]{0, 0, 1, 2, 3, 4}, dest);
+        assertFalse(cache.get(43, dest, 0));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    public void fullSetKeepsEveryLine() {
+        final LineCache cache = new LineCache(1, WIDTH);
+        for (long k = 0; k < 8; ++k) {
+            cache.put(k, line(k), 0);
+        }
+        //putting a key that's already there mustn't throw anything out
+        cache.put(3, line(3), 0);
+        for (long k = 0; k < 8; ++k) {
+            final int[] dest = new int[WIDTH];
+            assertTrue("line " + k, cache.get(k, dest, 0));
+            assertArrayEquals(line(k), dest);
+        }
+    }
+
+    @Test
+    public void clockEvictsLinesNotHitSinceTheHandPassed() {
+        final LineCache cache = new LineCache(1, WIDTH);
+        for (long k = 0; k < 8; ++k) {
+            cache.put(k, line(k), 0);
+        }
+        assertTrue(has(cache, 1));
+        assertTrue(has(cache, 3));
+        //the hand starts at slot 0 and skips 1 and 3 once, clearing them
+        cache.put(8, line(8), 0);
+        cache.put(9, line(9), 0);
+        cache.put(10, line(10), 0);
+        cache.put(11, line(11), 0);
+        for (long k : new long[]{0, 2, 4, 5}) {
+            assertFalse("line " + k + " should have gone", has(cache, k));
+        }
+        for (long k : new long[]{1, 3, 6, 7, 8, 9, 10, 11}) {
+            assertTrue("line " + k + " should still be there", has(cache, k));
+        }
+    }
+
+    @Test
+    public void secondChanceOnlyLastsOneLap() {
+        final LineCache cache = new LineCache(1, WIDTH);
+        for (long k = 0; k < 8; ++k) {
+            cache.put(k, line(k), 0);
+        }
+        assertTrue(has(cache, 0));
+        //skips 0, takes 1 to 7, then comes round to 0 with its bit cleared
+        for (long k = 8; k < 16; ++k) {
+            cache.put(k, line(k), 0);
+        }
+        assertFalse(has(cache, 0));
+        assertTrue(has(cache, 8));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsSetCountNotPowerOf2() {
+        new LineCache(96, WIDTH);
+    }
+
+    private static int[] render(final NTSCRenderer r, final int[] frame, final int[] bgcolors) {
+        return ((DataBufferInt) r.render(frame, bgcolors, false).getRaster().getDataBuffer()).getData().clone();
+    }
+
+    //each line a different color, so no two share a key
+    private static int[] stripes() {
+        final int[] frame = new int[256 * 240];
+        for (int y = 0; y < 240; ++y) {
+            Arrays.fill(frame, y << 8, (y + 1) << 8, y);
+        }
+        return frame;
+    }
+
+    @Test
+    public void changedLinesMissInTheRenderer() {
+        final NTSCRenderer r = new NTSCRenderer(null, 16);
+        final int[] frame = stripes(), bgcolors = new int[240];
+        render(r, frame, bgcolors);
+        final long hits = r.getCacheHits();
+        long misses = r.getCacheMisses();
+        render(r, frame, bgcolors);
+        assertEquals("the same frame again", misses, r.getCacheMisses());
+        assertTrue(r.getCacheHits() > hits);
+
+        //the backdrop color, one pixel, and color emphasis, which only the
+        //high half of the key sees
+        bgcolors[50] = 0x21;
+        frame[(100 << 8) + 128] ^= 1;
+        for (int x = 0; x < 256; ++x) {
+            frame[(150 << 8) + x] ^= 0x100;
+        }
+        misses = r.getCacheMisses();
+        final int[] out = render(r, frame, bgcolors);
+        assertEquals(misses + 3, r.getCacheMisses());
+        assertArrayEquals("cached lines came out different", render(new NTSCRenderer(null, 16), frame, bgcolors), out);
+    }
+}
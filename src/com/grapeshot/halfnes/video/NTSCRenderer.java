@@ -6,6 +6,8 @@ package com.grapeshot.halfnes.video;
 
 import java.awt.image.*;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import java.util.zip.CRC32;
 
@@ -15,13 +17,11 @@ import java.util.zip.CRC32;
  */
 public class NTSCRenderer extends Renderer {
 
-    private final static List<Integer> lines;
-    static {
-        lines = new ArrayList<>();
-        for (int line = 0; line < 240; ++line) {
-            lines.add(line);
-        }
-    }
+    //where the filter runs (null for just the thread calling render()), how
+    //many lines go in each task, and which lines need doing this frame
+    private final ExecutorService pool;
+    private final int chunk;
+    private final int[] todo = new int[240];
 
     //hm, if I downsampled these perfectly to 4Fsc i could get rid of matrix decode
     //and the sine tables altogether...
@@ -59,7 +59,26 @@ public class NTSCRenderer extends Renderer {
     private final float[] i_filter = new float[12], q_filter = new float[12];
     private final static int[] colortbl = genColorCorrectTbl();
 
+    /**
+     * Filters on a pool from newPool(), shut down by close().
+     */
     public NTSCRenderer() {
+        this(newPool(), 16);
+        ownPool(pool);
+    }
+
+    /**
+     * @param pool runs the filter on blocks of lines, or null to filter the
+     * whole frame on the thread calling render(), for when the other cores
+     * are busy running emulators anyway
+     * @param chunk lines in each block handed to the pool
+     */
+    public NTSCRenderer(final ExecutorService pool, final int chunk) {
+        if (chunk < 1) {
+            throw new IllegalArgumentException("chunk of " + chunk + " lines");
+        }
+        this.pool = pool;
+        this.chunk = chunk;
         frame_width = 704 * 3;
         init_images();
         int hue = -512;
@@ -101,6 +120,12 @@ public class NTSCRenderer extends Renderer {
     }
 
     public final float[] ntsc_encode(final int[] nescolors, final int offset, final int scanline, final int bgcolor) {
+        return encode(nescolors, 0, offset, bgcolor, new float[2728 - 240]);
+    }
+
+    //encodes the 256 pixels from start into sample, which has to be either
+    //new or last used by this method, since not every entry gets written
+    private float[] encode(final int[] nescolors, final int start, final int offset, final int bgcolor, final float[] sample) {
         //part one of the process. creates a 2728 pxl array of floats representing
         //ntsc version of scanline passed to it. Meant to be called 240x a frame
 
@@ -123,7 +148,6 @@ public class NTSCRenderer extends Renderer {
         //dot 2656-2720:black
         //but then i'm going to chop off before dot 240 and after 2656 b/c it's not used
         //so after this comment, add 240 to any num. in this for dot #
-        final float[] sample = new float[2728 - 240];
         for (i = 400 - 240; i < 520 - 240; ++i) { //bg color at beginning
             final int phase = (i + offset) % 12;
             final int hue = colorphases[col][phase];
@@ -136,7 +160,7 @@ public class NTSCRenderer extends Renderer {
         }
         for (i = 520 - 240; i < 2568 - 240; ++i) { //picture
             if ((i & 7) == 0) {
-                col = nescolors[(((i - (520 - 240)) >> 3))];
+                col = nescolors[start + ((i - (520 - 240)) >> 3)];
                 if ((col & 0xf) > 0xd) {
                     col = 0x0f;
                 }
@@ -156,11 +180,16 @@ public class NTSCRenderer extends Renderer {
     //starting point for color burst (depends on offset of previous line, even values not used in a progressive signal)
 
     public final int[] ntsc_decode(final float[] ntsc, final int offset) {
-        final float[] chroma = new float[2656 - 240];
-        final float[] luma = new float[2656 - 240];
-        final float[] eye = new float[2656 - 240];
-        final float[] queue = new float[2656 - 240];
         final int[] line = new int[frame_w];
+        decode(ntsc, offset, new Scratch(), line, 0);
+        return line;
+    }
+
+    private void decode(final float[] ntsc, final int offset, final Scratch s, final int[] line, final int linestart) {
+        final float[] chroma = s.chroma, luma = s.luma, eye = s.eye, queue = s.queue;
+        //only part of these gets written below, the rest has to be 0
+        Arrays.fill(eye, 0);
+        Arrays.fill(queue, 0);
 
         //decodes one scan line of ntsc video and outputs as rgb packed in int
         //uses the cheap TV method, which is filtering the chroma from the luma w/o
@@ -176,13 +205,12 @@ public class NTSCRenderer extends Renderer {
         lowpass_filter(eye, 0.06f);
         lowpass_filter(queue, 0.05f);
 
-        for (int i = 0, x = 492 - 240; i < frame_w; ++i, ++x) {
+        for (int i = linestart, x = 492 - 240; i < linestart + frame_w; ++i, ++x) {
             line[i] = compose_col(
                     ((luma[x] <= 0) ? 0 : colortbl[clamp((int) (iqm[0][0] * luma[x] + iqm[0][1] * eye[x] + iqm[0][2] * queue[x]))]),
                     ((luma[x] <= 0) ? 0 : colortbl[clamp((int) (iqm[1][0] * luma[x] + iqm[1][1] * eye[x] + iqm[1][2] * queue[x]))]),
                     ((luma[x] <= 0) ? 0 : colortbl[clamp((int) (iqm[2][0] * luma[x] + iqm[2][1] * eye[x] + iqm[2][2] * queue[x]))]));
         }
-        return line;
     }
 
     public static void box_filter(final float[] in, final float[] lpout, final float[] hpout, final int order) {
@@ -219,39 +247,115 @@ public class NTSCRenderer extends Renderer {
 //                -.0625f, .125f, -.0625f});
 //    BufferedImageOp op = new ConvolveOp(kernel);
 
+    //dot crawl phase each line of frame[] was last rendered with, -1 for none
+    private final int[] lineoffsets = initOffsets();
+
+    private static int[] initOffsets() {
+        final int[] o = new int[240];
+        Arrays.fill(o, -1);
+        return o;
+    }
+
     @Override
     public BufferedImage render(final int[] nespixels, final int[] bgcolors, final boolean dotcrawl) {
-        // multithreaded filter
-        lines.parallelStream().forEach(line -> cacheRender(nespixels, line, bgcolors, dotcrawl));
+        return render(nespixels, bgcolors, dotcrawl, null);
+    }
+
+    @Override
+    public BufferedImage render(final int[] nespixels, final int[] bgcolors, final boolean dotcrawl, final long[] dirtylines) {
+        //a line that hasn't changed is still there from last time unless the
+        //dot crawl moved it
+        int n = 0;
+        for (int line = 0; line < 240; ++line) {
+            if (isDirty(dirtylines, line) || lineoffsets[line] != lineOffset(line, dotcrawl)) {
+                todo[n++] = line;
+            }
+        }
+        if (pool == null || n <= chunk) {
+            renderLines(nespixels, bgcolors, dotcrawl, 0, n);
+        } else {
+            // multithreaded filter
+            final List<Future<?>> tasks = new ArrayList<>();
+            for (int start = chunk; start < n; start += chunk) {
+                final int from = start, to = Math.min(start + chunk, n);
+                tasks.add(pool.submit(() -> renderLines(nespixels, bgcolors, dotcrawl, from, to)));
+            }
+            //the first block here instead of just waiting
+            renderLines(nespixels, bgcolors, dotcrawl, 0, chunk);
+            finish(tasks);
+        }
 
         BufferedImage i = getBufferedImage(frame);
         ++frames;
         //i = op.filter(i, null); //sharpen
         return i;
     }
-    //ConcurrentHashMap cache = new ConcurrentHashMap<Long, int[]>(600);
-    Map<Long, int[]> cache = Collections.synchronizedMap(new WeakHashMap<Long, int[]>(600));
-    //weak hash map allows things in it to be garbage collected
+    private void renderLines(final int[] nespixels, final int[] bgcolors, final boolean dotcrawl, final int from, final int to) {
+        final Scratch s = scratch.get();
+        for (int i = from; i < to; ++i) {
+            cacheRender(nespixels, todo[i], bgcolors, dotcrawl, s);
+        }
+    }
 
-    private void cacheRender(final int[] nespixels, final int line, final int[] bgcolors, final boolean dotcrawl) {
+    //about 8 MB of decoded lines, 1024 of them
+    private final LineCache cache = new LineCache(128, frame_w);
+
+    //buffers for filtering one line, reused so the inner loops run over the
+    //same arrays every time instead of new ones
+    private static final class Scratch {
+
+        final float[] sample = new float[2728 - 240], chroma = new float[2656 - 240],
+                luma = new float[2656 - 240], eye = new float[2656 - 240],
+                queue = new float[2656 - 240];
+        final CRC32 crc = new CRC32();
+    }
+    private final static ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private void cacheRender(final int[] nespixels, final int line, final int[] bgcolors, final boolean dotcrawl, final Scratch s) {
 
         //first of all, increment scanline numbers and get the offset for this line.
-        int offset = ((frames & 1) == 0 && dotcrawl) ? 0 : 6;
-        offset = (4 * line + offset) % 12; //3 line dot crawl
-        final int[] inpixels = new int[256];
-        System.arraycopy(nespixels, line << 8, inpixels, 0, 256);
-        final long crc = crc32(inpixels, offset, bgcolors[line]);
-//        //you'd think crc32 would have too many collisions but i haven't seen a one
-        int[] outpixels;
-        outpixels = (int[]) cache.get(crc);
-        if (outpixels == null) { //not in cache
+        final int offset = lineOffset(line, dotcrawl);
+        lineoffsets[line] = offset;
+        final long key = lineKey(nespixels, line << 8, offset, bgcolors[line], s.crc);
+        if (!cache.get(key, frame, line * frame_w)) { //not in cache
             //could do with hints from the PPU here: if the entire screen is
             //scrolling horizontally, the cache will be useless.
-            outpixels = ntsc_decode(ntsc_encode(inpixels, offset, line, bgcolors[line]), offset);
-           cache.put(crc, outpixels);
+            decode(encode(nespixels, line << 8, offset, bgcolors[line], s.sample), offset, s, frame, line * frame_w);
+            cache.put(key, frame, line * frame_w);
         }
+    }
+
+    //the crc of the line as before in the low half, since it only sees the
+    //low 8 bits of each pixel the high half hashes all 9
+    private static long lineKey(final int[] nespixels, final int start, final int offset, final int bgcolor, final CRC32 c) {
+        c.reset();
+        int h = 0;
+        for (int i = start; i < start + 256; ++i) {
+            c.update(nespixels[i]);
+            h = h * 31 + nespixels[i];
+        }
+        c.update(offset);
+        c.update(bgcolor);
+        return (((long) (h * 31 + bgcolor)) << 32) | c.getValue();
+    }
+
+    /**
+     * @return lines found in the cache since this renderer was made
+     */
+    public long getCacheHits() {
+        return cache.hits();
+    }
+
+    /**
+     * @return lines that had to be filtered since this renderer was made
+     */
+    public long getCacheMisses() {
+        return cache.misses();
+    }
 
-        System.arraycopy(outpixels, 0, frame, line * frame_w, frame_w);
+    private int lineOffset(final int line, final boolean dotcrawl) {
+        final int offset = ((frames & 1) == 0 && dotcrawl) ? 0 : 6;
+        return (4 * line + offset) % 12; //3 line dot crawl
     }
 
     public static long crc32(int[] array, int offset, int bgcolor) {
@@ -15,6 +15,9 @@ public class NesColors {
     private final static double att = 0.7;
     public final static int[][] col = GetNESColors();
     public final static byte[][][] colbytes = NESColorsToBytes(col);
+    //the same colors in one table, indexed straight by the PPU's pixel values
+    //(emphasis << 6) | color
+    public final static int[] rgb = flatten(col);
 
     private static int[][] GetNESColors() {
         //just or's all the colors with opaque alpha and does the color emphasis calcs
@@ -71,6 +74,14 @@ public class NesColors {
     }
 
 
+    private static int[] flatten(int[][] col) {
+        int[] flat = new int[col.length * 64];
+        for (int i = 0; i < flat.length; ++i) {
+            flat[i] = col[i >> 6][i & 0x3f];
+        }
+        return flat;
+    }
+
     private static byte[][][] NESColorsToBytes(int[][] col) {
         byte[][][] colbytes = new byte[col.length][][];
         for (int i=0; i<col.length; i++) {
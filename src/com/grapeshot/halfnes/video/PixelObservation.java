@@ -0,0 +1,175 @@
+/*
+ * HalfNES by Andrew Hoffman
+ * Licensed under the GNU GPL Version 3. See LICENSE file
+ */
+package com.grapeshot.halfnes.video;
+
+import java.util.Arrays;
+
+/**
+ * Turns the PPU's palette index bitmap into a small network input without
+ * going through a renderer or a BufferedImage. Color lookup, cropping and
+ * area-average downsampling are done in a single pass over the cropped
+ * pixels, into arrays the caller reuses every frame.
+ *
+ * Each source pixel is added to exactly one output cell, so when the crop
+ * size isn't a multiple of the output size some cells average one more
+ * row or column than their neighbors.
+ */
+public class PixelObservation {
+
+    public final static int NES_WIDTH = 256, NES_HEIGHT = 240;
+    private final int cropX, cropY, cropW, cropH, outW, outH;
+    //output column for each cropped column, and output row offset for each cropped row
+    private final int[] cellX, cellY;
+    //1 / number of source pixels in each output cell
+    private final float[] weight;
+    //scratch sums for the byte output
+    private final float[] sums;
+    //value of each of the 512 palette index + emphasis combinations
+    private float[] lut = grayscale();
+
+    /**
+     * @param cropX first column to keep
+     * @param cropY first line to keep (8 skips the usual overscan)
+     * @param cropW number of columns to keep
+     * @param cropH number of lines to keep
+     * @param outW width of the observation
+     * @param outH height of the observation
+     * @throws IllegalArgumentException if the crop is off the screen or the
+     * output is bigger than the crop
+     */
+    public PixelObservation(int cropX, int cropY, int cropW, int cropH, int outW, int outH) {
+        if (cropX < 0 || cropY < 0 || cropW < 1 || cropH < 1
+                || cropX + cropW > NES_WIDTH || cropY + cropH > NES_HEIGHT) {
+            throw new IllegalArgumentException("Crop is off the screen: "
+                    + cropX + "," + cropY + " " + cropW + "x" + cropH);
+        }
+        if (outW < 1 || outH < 1 || outW > cropW || outH > cropH) {
+            throw new IllegalArgumentException("Can't downsample "
+                    + cropW + "x" + cropH + " to " + outW + "x" + outH);
+        }
+        this.cropX = cropX;
+        this.cropY = cropY;
+        this.cropW = cropW;
+        this.cropH = cropH;
+        this.outW = outW;
+        this.outH = outH;
+        cellX = new int[cropW];
+        cellY = new int[cropH];
+        final int[] countX = new int[outW], countY = new int[outH];
+        for (int x = 0; x < cropW; ++x) {
+            cellX[x] = x * outW / cropW;
+            ++countX[cellX[x]];
+        }
+        for (int y = 0; y < cropH; ++y) {
+            final int row = y * outH / cropH;
+            cellY[y] = row * outW;
+            ++countY[row];
+        }
+        weight = new float[outW * outH];
+        for (int i = 0; i < weight.length; ++i) {
+            weight[i] = 1f / (countX[i % outW] * countY[i / outW]);
+        }
+        sums = new float[outW * outH];
+    }
+
+    /**
+     * Grayscale of the whole visible screen (minus overscan) at the given
+     * size.
+     */
+    public PixelObservation(int outW, int outH) {
+        this(0, 8, NES_WIDTH, NES_HEIGHT - 16, outW, outH);
+    }
+
+    /**
+     * Replaces the color conversion, e.g. to map palette entries to classes
+     * like "solid", "enemy" and "background".
+     *
+     * @param table 64 values, one per NES color (emphasis ignored), or 512
+     * values indexed by (emphasis << 6) | color
+     * @throws IllegalArgumentException for any other length
+     */
+    public void setPalette(float[] table) {
+        if (table.length == 64) {
+            lut = new float[512];
+            for (int i = 0; i < lut.length; ++i) {
+                lut[i] = table[i & 0x3f];
+            }
+        } else if (table.length == 512) {
+            lut = table.clone();
+        } else {
+            throw new IllegalArgumentException("Palette table needs 64 or 512 entries, not " + table.length);
+        }
+    }
+
+    public int getWidth() {
+        return outW;
+    }
+
+    public int getHeight() {
+        return outH;
+    }
+
+    /**
+     * @return number of values in one observation
+     */
+    public int size() {
+        return outW * outH;
+    }
+
+    /**
+     * Fills out with the observation of one frame, row major.
+     *
+     * @param nespixels 256x240 palette index bitmap as handed to setFrame()
+     * @param out at least size() floats; averages of the palette table values
+     * @return out
+     */
+    public float[] extract(final int[] nespixels, final float[] out) {
+        final int n = outW * outH;
+        Arrays.fill(out, 0, n, 0);
+        for (int y = 0; y < cropH; ++y) {
+            final int src = ((cropY + y) << 8) + cropX;
+            final int row = cellY[y];
+            for (int x = 0; x < cropW; ++x) {
+                out[row + cellX[x]] += lut[nespixels[src + x] & 0x1ff];
+            }
+        }
+        for (int i = 0; i < n; ++i) {
+            out[i] *= weight[i];
+        }
+        return out;
+    }
+
+    /**
+     * Same as the float version but scaled to 0-255 and stored as unsigned
+     * bytes, for keeping lots of frames around cheaply. Assumes the palette
+     * table is in 0-1.
+     *
+     * @param nespixels 256x240 palette index bitmap as handed to setFrame()
+     * @param out at least size() bytes
+     * @return out
+     */
+    public byte[] extract(final int[] nespixels, final byte[] out) {
+        extract(nespixels, sums);
+        for (int i = 0; i < sums.length; ++i) {
+            out[i] = (byte) (sums[i] * 255f + 0.5f);
+        }
+        return out;
+    }
+
+    /**
+     * @return luma (0-1) of every color and emphasis combination, from the
+     * same palette RGBRenderer uses
+     */
+    public static float[] grayscale() {
+        final float[] table = new float[512];
+        for (int i = 0; i < table.length; ++i) {
+            final int rgb = NesColors.rgb[i];
+            table[i] = (0.299f * ((rgb >> 16) & 0xff)
+                    + 0.587f * ((rgb >> 8) & 0xff)
+                    + 0.114f * (rgb & 0xff)) / 255f;
+        }
+        return table;
+    }
+}
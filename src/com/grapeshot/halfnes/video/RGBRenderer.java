@@ -4,8 +4,6 @@
  */
 package com.grapeshot.halfnes.video;
 
-import com.grapeshot.halfnes.video.NesColors;
-import com.grapeshot.halfnes.video.Renderer;
 import java.awt.image.BufferedImage;
 
 /**
@@ -14,6 +12,9 @@ import java.awt.image.BufferedImage;
  */
 public class RGBRenderer extends Renderer {
 
+    private final static int[] lut = NesColors.rgb;
+    private final long[] redo = new long[4];
+
     public RGBRenderer() {
         frame_width = 256;
         init_images();
@@ -21,10 +22,22 @@ public class RGBRenderer extends Renderer {
 
     @Override
     public BufferedImage render(int[] nespixels, int[] bgcolors, boolean dotcrawl) {
-        //and now replace the nes color numbers with rgb colors (respecting color emph bits)
-        for (int i = 0; i < nespixels.length; ++i) {
-            nespixels[i] = NesColors.col[(nespixels[i] & 0x1c0) >> 6][nespixels[i] & 0x3f];
+        return render(nespixels, bgcolors, dotcrawl, null);
+    }
+
+    @Override
+    public BufferedImage render(int[] nespixels, int[] bgcolors, boolean dotcrawl, long[] dirtylines) {
+        //replace the nes color numbers with rgb colors (respecting color emph bits)
+        //straight into the image, only on the lines it doesn't have yet
+        final int[] pixels = nextImage(dirtylines, redo);
+        for (int line = clip; line < 240 - clip; ++line) {
+            if (!isDirty(redo, line)) {
+                continue;
+            }
+            for (int i = line << 8, o = (line - clip) << 8, end = i + 256; i < end; ++i, ++o) {
+                pixels[o] = lut[nespixels[i] & 0x1ff];
+            }
         }
-        return getBufferedImage(nespixels);
+        return currentImage();
     }
 }
@@ -7,6 +7,14 @@ package com.grapeshot.halfnes.video;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
 import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -22,21 +30,134 @@ public abstract class Renderer {
      */
     int clip = 8;
     int height = 240 - 2 * clip;
+    //output rows per NES line
+    int scale = 1;
     BufferedImage[] imgs = {null, null, null, null};
     int imgctr = 0;
+    //lines of each image that don't hold the last frame, see nextImage()
+    private final long[][] stale = new long[imgs.length][4];
 
     protected final void init_images() {
         for (int i = 0; i < imgs.length; ++i) {
-            imgs[i] = new BufferedImage(frame_width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+            imgs[i] = new BufferedImage(frame_width, height * scale, BufferedImage.TYPE_INT_ARGB_PRE);
+            Arrays.fill(stale[i], -1L);
         }
     }
 
     public abstract BufferedImage render(int[] nespixels, int[] bgcolors, boolean dotcrawl);
 
+    /**
+     * Like render(), but lines not set in dirtylines can be taken from the
+     * last frame rendered, so only use it when this renderer saw every frame
+     * the dirty bits are relative to.
+     *
+     * @param dirtylines a bit per line as from PPU.getDirtyLines(), or null
+     * if every line may have changed
+     */
+    public BufferedImage render(int[] nespixels, int[] bgcolors, boolean dotcrawl, long[] dirtylines) {
+        return render(nespixels, bgcolors, dotcrawl);
+    }
+
+    protected static boolean isDirty(final long[] dirtylines, final int line) {
+        return dirtylines == null || (dirtylines[line >> 6] & (1L << (line & 63))) != 0;
+    }
+
     public void setClip(int i) {
         //how many lines to clip from top + bottom
         clip = i;
         height = 240 - 2 * clip;
+        if (imgs[0] != null && imgs[0].getHeight() != height * scale) {
+            init_images();
+        }
+    }
+
+    /**
+     * Moves on to the next image, for renderers that draw into it directly
+     * rather than through getBufferedImage(). The image is one of several
+     * that get reused in turn, so it can be a few frames old: the lines that
+     * need drawing are the ones that changed in any frame since.
+     *
+     * @param dirtylines lines changed since the last frame, or null for all
+     * @param redo gets the lines of the image that need drawing, a bit per
+     * NES scan line like dirtylines
+     * @return the image's pixels; line y of the NES frame starts at row
+     * (y - clip) * scale
+     */
+    protected final int[] nextImage(final long[] dirtylines, final long[] redo) {
+        for (long[] s : stale) {
+            for (int w = 0; w < s.length; ++w) {
+                s[w] |= (dirtylines == null) ? -1L : dirtylines[w];
+            }
+        }
+        final int next = ++imgctr % imgs.length;
+        System.arraycopy(stale[next], 0, redo, 0, redo.length);
+        Arrays.fill(stale[next], 0);
+        return ((DataBufferInt) imgs[next].getRaster().getDataBuffer()).getData();
+    }
+
+    protected final BufferedImage currentImage() {
+        return imgs[imgctr % imgs.length];
+    }
+
+    //the pool close() shuts down, if the renderer made its own
+    private ExecutorService ownpool;
+
+    /**
+     * @return a pool of daemon threads, one per processor, for filters to
+     * split frames over when they aren't given one. It queues up to a frame
+     * of one line blocks; past that the thread submitting a block runs it.
+     */
+    protected static ExecutorService newPool() {
+        final int threads = Runtime.getRuntime().availableProcessors();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(240), r -> {
+                    final Thread t = new Thread(r, "video filter");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Has close() shut down a pool from newPool() this renderer made for
+     * itself.
+     */
+    protected final void ownPool(final ExecutorService pool) {
+        ownpool = pool;
+    }
+
+    /**
+     * Stops the renderer's own filter threads, if it has any, when it's being
+     * replaced. It can't render after this.
+     */
+    public void close() {
+        if (ownpool != null) {
+            ownpool.shutdown();
+        }
+    }
+
+    /**
+     * Waits for all of a frame's blocks to be done, even if interrupted since
+     * they're still writing to it.
+     *
+     * @throws RuntimeException if a block threw
+     */
+    protected static void finish(final List<Future<?>> tasks) {
+        boolean interrupted = false;
+        for (Future<?> t : tasks) {
+            while (true) {
+                try {
+                    t.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("video filter failed", e.getCause());
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     public BufferedImage getBufferedImage(int[] frame) {
@@ -0,0 +1,348 @@
+/*
+ * HalfNES by Andrew Hoffman
+ * Licensed under the GNU GPL Version 3. See LICENSE file
+ */
+package com.grapeshot.halfnes.video;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Pixel art upscalers that work on the PPU's palette indexes instead of RGB.
+ * There are only 512 colors, so the color comparisons these filters spend
+ * most of their time on come out of tables built once: pixels are equal if
+ * their indexes are, the hq filters' "different enough" test is a bit per
+ * pair of colors, and the xBR filter's color distance an int per pair. The
+ * frame is split into bands of lines run on a thread pool, and lines whose
+ * neighborhood didn't change since the image was last drawn are skipped.
+ */
+public class ScaleRenderer extends Renderer {
+
+    public enum Filter {
+        /**
+         * AdvMAME Scale2x/3x: copies a neighbor's color into a corner when two
+         * neighbors meeting there match. No new colors.
+         */
+        SCALE2X(2, 1), SCALE3X(3, 1),
+        /**
+         * In the style of hq2x/hq3x: the hqx YUV threshold decides which
+         * neighbors differ, and corners an edge runs across get blended with
+         * the hqx interpolation weights. The corner rules are worked out from
+         * the 3 pixels around each corner rather than from the full 256
+         * pattern table, so it's a bit softer on some diagonals than hqx.
+         */
+        HQ2X(2, 1), HQ3X(3, 1),
+        /**
+         * xBR level 1: each corner compares the color distance along the
+         * two diagonals through it over a 5x5 neighborhood and blends towards
+         * the closer neighbor when an edge runs across it.
+         */
+        XBR2X(2, 2), XBR3X(3, 2);
+        final int scale;
+        //how many lines away an output line looks
+        final int reach;
+
+        Filter(final int scale, final int reach) {
+            this.scale = scale;
+            this.reach = reach;
+        }
+    }
+    //source with 2 pixels of edge repeated all round, so neighbors never need
+    //bounds checks
+    private final static int PAD = 2, PW = 256 + 2 * PAD;
+    private final static int[] lut = NesColors.rgb;
+    //hqx: whether 2 colors differ by more than the threshold, a bit per pair
+    private final static long[] hqdiff = new long[512 * 512 / 64];
+    //xBR: weighted YUV distance between 2 colors
+    private final static int[] dist = new int[512 * 512];
+
+    static {
+        final int[] y = new int[512], u = new int[512], v = new int[512];
+        for (int i = 0; i < 512; ++i) {
+            final int r = (lut[i] >> 16) & 0xff, g = (lut[i] >> 8) & 0xff, b = lut[i] & 0xff;
+            y[i] = (int) (0.299 * r + 0.587 * g + 0.114 * b);
+            u[i] = (int) (-0.169 * r - 0.331 * g + 0.5 * b) + 128;
+            v[i] = (int) (0.5 * r - 0.419 * g - 0.081 * b) + 128;
+        }
+        for (int a = 0; a < 512; ++a) {
+            for (int b = 0; b < 512; ++b) {
+                final int dy = Math.abs(y[a] - y[b]), du = Math.abs(u[a] - u[b]), dv = Math.abs(v[a] - v[b]);
+                if (dy > 0x30 || du > 7 || dv > 6) {
+                    hqdiff[(a << 3) | (b >> 6)] |= 1L << (b & 63);
+                }
+                dist[(a << 9) | b] = 48 * dy + 7 * du + 6 * dv;
+            }
+        }
+    }
+    private final Filter filter;
+    private final int s, outw;
+    private final ExecutorService pool;
+    private final int chunk;
+    private final int[] src = new int[PW * (240 + 2 * PAD)], todo = new int[240];
+    private final long[] redo = new long[4];
+
+    /**
+     * Runs on a pool from newPool(), shut down by close().
+     */
+    public ScaleRenderer(final Filter filter) {
+        this(filter, newPool(), 16);
+        ownPool(pool);
+    }
+
+    /**
+     * @param pool runs the filter on bands of lines, or null to do the whole
+     * frame on the thread calling render()
+     * @param chunk lines in each band handed to the pool
+     */
+    public ScaleRenderer(final Filter filter, final ExecutorService pool, final int chunk) {
+        if (chunk < 1) {
+            throw new IllegalArgumentException("chunk of " + chunk + " lines");
+        }
+        this.filter = filter;
+        this.pool = pool;
+        this.chunk = chunk;
+        s = filter.scale;
+        outw = 256 * s;
+        frame_width = outw;
+        scale = s;
+        init_images();
+    }
+
+    @Override
+    public BufferedImage render(final int[] nespixels, final int[] bgcolors, final boolean dotcrawl) {
+        return render(nespixels, bgcolors, dotcrawl, null);
+    }
+
+    @Override
+    public BufferedImage render(final int[] nespixels, final int[] bgcolors, final boolean dotcrawl, final long[] dirtylines) {
+        final int[] out = nextImage(dirtylines, redo);
+        int n = 0;
+        for (int line = clip; line < 240 - clip; ++line) {
+            for (int l = Math.max(line - filter.reach, 0); l <= Math.min(line + filter.reach, 239); ++l) {
+                if (isDirty(redo, l)) {
+                    todo[n++] = line;
+                    break;
+                }
+            }
+        }
+        if (n == 0) {
+            return currentImage();
+        }
+        pad(nespixels);
+        if (pool == null || n <= chunk) {
+            scaleLines(out, 0, n);
+        } else {
+            final List<Future<?>> tasks = new ArrayList<>();
+            for (int start = chunk; start < n; start += chunk) {
+                final int from = start, to = Math.min(start + chunk, n);
+                tasks.add(pool.submit(() -> scaleLines(out, from, to)));
+            }
+            //the first band here instead of just waiting
+            scaleLines(out, 0, chunk);
+            finish(tasks);
+        }
+        return currentImage();
+    }
+
+    private void pad(final int[] nespixels) {
+        for (int y = -PAD; y < 240 + PAD; ++y) {
+            final int from = Math.min(Math.max(y, 0), 239) << 8, to = (y + PAD) * PW + PAD;
+            for (int x = 0; x < 256; ++x) {
+                src[to + x] = nespixels[from + x] & 0x1ff;
+            }
+            for (int x = 1; x <= PAD; ++x) {
+                src[to - x] = src[to];
+                src[to + 255 + x] = src[to + 255];
+            }
+        }
+    }
+
+    private void scaleLines(final int[] out, final int from, final int to) {
+        for (int i = from; i < to; ++i) {
+            final int line = todo[i];
+            final int p = (line + PAD) * PW + PAD, o = (line - clip) * s * outw;
+            switch (filter) {
+                case SCALE2X:
+                    scale2x(out, p, o);
+                    break;
+                case SCALE3X:
+                    scale3x(out, p, o);
+                    break;
+                case HQ2X:
+                case HQ3X:
+                    hq(out, p, o);
+                    break;
+                default:
+                    xbr(out, p, o);
+                    break;
+            }
+        }
+    }
+
+    private void scale2x(final int[] out, final int p, final int o) {
+        for (int x = 0; x < 256; ++x) {
+            final int c = p + x, o0 = o + 2 * x, o1 = o0 + outw;
+            final int e = src[c], b = src[c - PW], h = src[c + PW], d = src[c - 1], f = src[c + 1];
+            if (b != h && d != f) {
+                out[o0] = lut[d == b ? d : e];
+                out[o0 + 1] = lut[b == f ? f : e];
+                out[o1] = lut[d == h ? d : e];
+                out[o1 + 1] = lut[h == f ? f : e];
+            } else {
+                out[o0] = out[o0 + 1] = out[o1] = out[o1 + 1] = lut[e];
+            }
+        }
+    }
+
+    private void scale3x(final int[] out, final int p, final int o) {
+        for (int x = 0; x < 256; ++x) {
+            final int c = p + x, o0 = o + 3 * x, o1 = o0 + outw, o2 = o1 + outw;
+            final int e = src[c], b = src[c - PW], h = src[c + PW], d = src[c - 1], f = src[c + 1];
+            final int col = lut[e];
+            if (b != h && d != f) {
+                final int a = src[c - PW - 1], cc = src[c - PW + 1], g = src[c + PW - 1], i = src[c + PW + 1];
+                out[o0] = lut[d == b ? d : e];
+                out[o0 + 1] = lut[(d == b && e != cc) || (b == f && e != a) ? b : e];
+                out[o0 + 2] = lut[b == f ? f : e];
+                out[o1] = lut[(d == b && e != g) || (d == h && e != a) ? d : e];
+                out[o1 + 1] = col;
+                out[o1 + 2] = lut[(b == f && e != i) || (h == f && e != cc) ? f : e];
+                out[o2] = lut[d == h ? d : e];
+                out[o2 + 1] = lut[(d == h && e != i) || (h == f && e != g) ? h : e];
+                out[o2 + 2] = lut[h == f ? f : e];
+            } else {
+                out[o0] = out[o0 + 1] = out[o0 + 2] = col;
+                out[o1] = out[o1 + 1] = out[o1 + 2] = col;
+                out[o2] = out[o2 + 1] = out[o2 + 2] = col;
+            }
+        }
+    }
+
+    private static boolean differ(final int a, final int b) {
+        return (hqdiff[(a << 3) | (b >> 6)] & (1L << (b & 63))) != 0;
+    }
+
+    private void hq(final int[] out, final int p, final int o) {
+        final boolean three = s == 3;
+        for (int x = 0; x < 256; ++x) {
+            final int c = p + x, o0 = o + s * x, o1 = o0 + outw, o2 = o1 + outw;
+            final int e = src[c], b = src[c - PW], h = src[c + PW], d = src[c - 1], f = src[c + 1];
+            final int a = src[c - PW - 1], cc = src[c - PW + 1], g = src[c + PW - 1], i = src[c + PW + 1];
+            final int col = lut[e];
+            if (a == e && b == e && cc == e && d == e && f == e && g == e && h == e && i == e) {
+                fill(out, o0, col);
+                continue;
+            }
+            final boolean xb = differ(e, b), xd = differ(e, d), xf = differ(e, f), xh = differ(e, h);
+            //edges running across each corner
+            final boolean tl = xb && xd && !differ(b, d), tr = xb && xf && !differ(b, f),
+                    bl = xh && xd && !differ(h, d), br = xh && xf && !differ(h, f);
+            final int c00 = hqCorner(tl, xb || xd, col, e, a, b, d),
+                    c01 = hqCorner(tr, xb || xf, col, e, cc, b, f),
+                    c10 = hqCorner(bl, xh || xd, col, e, g, h, d),
+                    c11 = hqCorner(br, xh || xf, col, e, i, h, f);
+            if (three) {
+                out[o0] = c00;
+                out[o0 + 1] = (tl || tr) ? blend(col, 6, lut[b], 2, 0, 0) : col;
+                out[o0 + 2] = c01;
+                out[o1] = (tl || bl) ? blend(col, 6, lut[d], 2, 0, 0) : col;
+                out[o1 + 1] = col;
+                out[o1 + 2] = (tr || br) ? blend(col, 6, lut[f], 2, 0, 0) : col;
+                out[o2] = c10;
+                out[o2 + 1] = (bl || br) ? blend(col, 6, lut[h], 2, 0, 0) : col;
+                out[o2 + 2] = c11;
+            } else {
+                out[o0] = c00;
+                out[o0 + 1] = c01;
+                out[o1] = c10;
+                out[o1 + 1] = c11;
+            }
+        }
+    }
+
+    //one corner: b and d are the neighbors either side of it, a the one
+    //diagonally across
+    private static int hqCorner(final boolean edge, final boolean side, final int col,
+            final int e, final int a, final int b, final int d) {
+        if (edge) {
+            //the diagonal neighbor going along with the edge makes it a
+            //stair step, which gets rounded off harder
+            return (!differ(a, b) && !differ(a, d))
+                    ? blend(col, 2, lut[b], 3, lut[d], 3)
+                    : blend(col, 4, lut[b], 2, lut[d], 2);
+        }
+        if (!side && differ(e, a)) {
+            return blend(col, 6, lut[a], 2, 0, 0);
+        }
+        return col;
+    }
+
+    private void xbr(final int[] out, final int p, final int o) {
+        for (int x = 0; x < 256; ++x) {
+            final int c = p + x, o0 = o + s * x;
+            final int e = src[c];
+            final int col = lut[e];
+            fill(out, o0, col);
+            if (src[c - PW] == e && src[c + PW] == e && src[c - 1] == e && src[c + 1] == e) {
+                continue;
+            }
+            //each corner as (step towards f, step towards h, subpixel row, column)
+            xbrCorner(out, o0, c, 1, PW, s - 1, s - 1);
+            xbrCorner(out, o0, c, -1, PW, s - 1, 0);
+            xbrCorner(out, o0, c, 1, -PW, 0, s - 1);
+            xbrCorner(out, o0, c, -1, -PW, 0, 0);
+        }
+    }
+
+    private static int d(final int a, final int b) {
+        return dist[(a << 9) | b];
+    }
+
+    //the corner of the pixel at c that faces u + v, with f at c + u and h at
+    //c + v, named as if it were the bottom right one
+    private void xbrCorner(final int[] out, final int o0, final int c, final int u, final int v,
+            final int row, final int column) {
+        final int e = src[c], f = src[c + u], h = src[c + v];
+        if (e == f || e == h) {
+            return;
+        }
+        final int i = src[c + u + v], b = src[c - v], d = src[c - u],
+                cc = src[c + u - v], g = src[c + v - u],
+                f4 = src[c + 2 * u], i4 = src[c + 2 * u + v],
+                h5 = src[c + 2 * v], i5 = src[c + u + 2 * v];
+        final int across = d(e, cc) + d(e, g) + d(i, f4) + d(i, h5) + 4 * d(h, f),
+                along = d(h, d) + d(h, i5) + d(f, i4) + d(f, b) + 4 * d(e, i);
+        if (across >= along) {
+            return;
+        }
+        final int px = lut[d(e, f) <= d(e, h) ? f : h];
+        final int corner = o0 + row * outw + column;
+        if (s == 2) {
+            out[corner] = blend(out[corner], 4, px, 4, 0, 0);
+        } else {
+            //the corner gets most of the new color, the 2 next to it a bit
+            out[corner] = blend(out[corner], 2, px, 6, 0, 0);
+            final int beside = o0 + row * outw + 1, above = o0 + outw + column;
+            out[beside] = blend(out[beside], 6, px, 2, 0, 0);
+            out[above] = blend(out[above], 6, px, 2, 0, 0);
+        }
+    }
+
+    private void fill(final int[] out, final int o0, final int col) {
+        for (int r = 0, o = o0; r < s; ++r, o += outw) {
+            for (int k = 0; k < s; ++k) {
+                out[o + k] = col;
+            }
+        }
+    }
+
+    //(wa * a + wb * b + wc * c) / 8 on each channel, opaque
+    private static int blend(final int a, final int wa, final int b, final int wb, final int c, final int wc) {
+        final int rb = ((a & 0xff00ff) * wa + (b & 0xff00ff) * wb + (c & 0xff00ff) * wc) >> 3;
+        final int g = ((a & 0xff00) * wa + (b & 0xff00) * wb + (c & 0xff00) * wc) >> 3;
+        return 0xff000000 | (rb & 0xff00ff) | (g & 0xff00);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * HalfNES by Andrew Hoffman
+ * Licensed under the GNU GPL Version 3. See LICENSE file
+ */
+package com.grapeshot.halfnes.video;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.testng.annotations.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs fixed frames through the scalers: a checkerboard of 2x2 squares, whose
+ * Scale2x/3x output can be worked out by hand, and random frames to check
+ * that splitting a frame over threads and skipping clean lines change
+ * nothing.
+ */
+public class ScaleRendererTest {
+
+    private static final int DARK = 0x0f, LIGHT = 0x30;
+
+    private static int[] checker() {
+        final int[] frame = new int[256 * 240];
+        for (int y = 0; y < 240; ++y) {
+            for (int x = 0; x < 256; ++x) {
+                frame[(y << 8) + x] = (((x >> 1) + (y >> 1)) & 1) == 0 ? DARK : LIGHT;
+            }
+        }
+        return frame;
+    }
+
+    private static int[] pixels(final BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData().clone();
+    }
+
+    private static int[] render(final ScaleRenderer r, final int[] frame, final long[] dirtylines) {
+        return pixels(r.render(frame, new int[240], false, dirtylines));
+    }
+
+    //every pixel of the checkerboard sits in a corner of its square, with the
+    //other color on both sides facing out, so that corner of it gets cut off:
+    //one subpixel by Scale2x, the corner and the two next to it by Scale3x.
+    //The edges of the frame are left out since the border repeats them.
+    private static void checkCheckerboard(final ScaleRenderer.Filter filter) {
+        final ScaleRenderer r = new ScaleRenderer(filter, null, 16);
+        r.setClip(0);
+        final int[] frame = checker(), out = render(r, frame, null);
+        final int s = filter.scale, w = 256 * s;
+        for (int y = 2; y < 238; ++y) {
+            for (int x = 2; x < 254; ++x) {
+                final int e = frame[(y << 8) + x], other = (e == DARK) ? LIGHT : DARK;
+                //the corner this pixel is in, in subpixels
+                final int cx = ((x & 1) == 0) ? 0 : s - 1, cy = ((y & 1) == 0) ? 0 : s - 1;
+                for (int sy = 0; sy < s; ++sy) {
+                    for (int sx = 0; sx < s; ++sx) {
+                        final int far = Math.abs(sx - cx) + Math.abs(sy - cy);
+                        final int expected = NesColors.rgb[(far < s - 1) ? other : e];
+                        assertEquals(filter + " at " + x + "," + y + " subpixel " + sx + "," + sy,
+                                expected, out[(y * s + sy) * w + x * s + sx]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void scale2xCheckerboard() {
+        checkCheckerboard(ScaleRenderer.Filter.SCALE2X);
+    }
+
+    @Test
+    public void scale3xCheckerboard() {
+        checkCheckerboard(ScaleRenderer.Filter.SCALE3X);
+    }
+
+    @Test
+    public void flatColorStaysFlat() {
+        final int[] frame = new int[256 * 240];
+        Arrays.fill(frame, 0x21);
+        for (ScaleRenderer.Filter f : ScaleRenderer.Filter.values()) {
+            final int[] out = render(new ScaleRenderer(f, null, 16), frame, null);
+            for (int i = 0; i < out.length; ++i) {
+                assertEquals(f + " pixel " + i, NesColors.rgb[0x21], out[i]);
+            }
+        }
+    }
+
+    @Test
+    public void threadsMatchOneThread() {
+        final int[] frame = randomFrame(new Random(1), null);
+        final ExecutorService pool = Executors.newFixedThreadPool(3);
+        try {
+            for (ScaleRenderer.Filter f : ScaleRenderer.Filter.values()) {
+                assertArrayEquals(f.toString(), render(new ScaleRenderer(f, null, 16), frame, null),
+                        render(new ScaleRenderer(f, pool, 7), frame, null));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    //goes on for more frames than the renderer has images, so the lines it
+    //skips have to be caught up from several frames back
+    @Test
+    public void dirtyLinesMatchFullRender() {
+        final Random rnd = new Random(2);
+        for (ScaleRenderer.Filter f : ScaleRenderer.Filter.values()) {
+            final ScaleRenderer r = new ScaleRenderer(f, null, 16);
+            int[] frame = randomFrame(rnd, null);
+            render(r, frame, null);
+            for (int n = 0; n < 10; ++n) {
+                final int[] next = randomFrame(rnd, frame);
+                final long[] dirty = new long[4];
+                for (int line = 0; line < 240; ++line) {
+                    if (!Arrays.equals(Arrays.copyOfRange(frame, line << 8, (line + 1) << 8),
+                            Arrays.copyOfRange(next, line << 8, (line + 1) << 8))) {
+                        dirty[line >> 6] |= 1L << (line & 63);
+                    }
+                }
+                frame = next;
+                assertArrayEquals(f + " frame " + n, render(new ScaleRenderer(f, null, 16), frame, null),
+                        render(r, frame, dirty));
+            }
+        }
+    }
+
+    //a few colors in runs, so the filters find edges to work on; changes a
+    //few lines of last if there is one
+    private static int[] randomFrame(final Random rnd, final int[] last) {
+        final int[] frame;
+        if (last == null) {
+            frame = new int[256 * 240];
+            for (int i = 0; i < frame.length; ++i) {
+                frame[i] = rnd.nextInt(3) == 0 ? rnd.nextInt(4) << 4 | 0x06 : frame[Math.max(i - 1, 0)];
+            }
+        } else {
+            frame = last.clone();
+            for (int k = 0; k < 3; ++k) {
+                final int line = rnd.nextInt(240);
+                for (int x = 0; x < 256; ++x) {
+                    frame[(line << 8) + x] = rnd.nextInt(4) << 4 | 0x06;
+                }
+            }
+        }
+        return frame;
+    }
+}
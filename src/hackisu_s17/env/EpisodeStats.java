@@ -0,0 +1,99 @@
+package hackisu_s17.env;
+
+/**
+ * Running statistics of one evaluation episode, updated once per environment
+ * step and read by {@link TerminationPolicy termination policies}.
+ */
+public class EpisodeStats
+{
+  /**
+   * The number of frames emulated in this episode.
+   */
+  private long frames;
+
+  /**
+   * The best progress reached in this episode; this is the episode's fitness.
+   */
+  private int fitness;
+
+  /**
+   * The frame on which {@link #fitness} last increased.
+   */
+  private long lastProgressFrame;
+
+  /**
+   * The number of lives lost in this episode.
+   */
+  private int deaths;
+
+  /**
+   * Records the outcome of one step.
+   *
+   * @param stepFrames
+   *          the number of frames the step ran for
+   * @param progress
+   *          the progress at the end of the step
+   * @param died
+   *          whether a life was lost during the step
+   */
+  void update(int stepFrames, int progress, boolean died)
+  {
+    frames += stepFrames;
+    if (progress > fitness)
+    {
+      fitness = progress;
+      lastProgressFrame = frames;
+    }
+    if (died)
+    {
+      ++deaths;
+    }
+  }
+
+  /**
+   * Returns the number of frames emulated in this episode.
+   *
+   * @return the number of frames emulated
+   */
+  public long getFrames()
+  {
+    return frames;
+  }
+
+  /**
+   * Returns the best progress reached in this episode.
+   *
+   * @return the episode's fitness so far
+   */
+  public int getFitness()
+  {
+    return fitness;
+  }
+
+  /**
+   * Returns the number of frames since the fitness last increased.
+   *
+   * @return the number of frames without forward progress
+   */
+  public long getFramesSinceProgress()
+  {
+    return frames - lastProgressFrame;
+  }
+
+  /**
+   * Returns the number of lives lost in this episode.
+   *
+   * @return the number of deaths
+   */
+  public int getDeaths()
+  {
+    return deaths;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "{\"frames\":" + frames + ",\"fitness\":" + fitness + ",\"framesSinceProgress\":"
+        + getFramesSinceProgress() + ",\"deaths\":" + deaths + "}";
+  }
+}
@@ -0,0 +1,139 @@
+package hackisu_s17.env;
+
+/**
+ * The last few observations of an environment, oldest first, so a network can
+ * see motion. Every observation is written twice into one preallocated array
+ * (a mirrored ring buffer), which keeps the stacked frames contiguous: the
+ * whole stack is the {@link #length()} values of {@link #array()} starting at
+ * {@link #offset()}, and can be passed to
+ * {@link hackisu_s17.neur.NeuralNet#calculate(float[], int)} without copying.
+ */
+public class FrameStack
+{
+  /**
+   * The number of observations kept.
+   */
+  private final int frames;
+
+  /**
+   * The size of one observation.
+   */
+  private final int size;
+
+  /**
+   * Two copies of the ring, each {@code frames * size} long.
+   */
+  private final float[] data;
+
+  /**
+   * The slot of the oldest observation.
+   */
+  private int oldest;
+
+  /**
+   * Creates an empty stack.
+   *
+   * @param frames
+   *          the number of observations kept
+   * @param size
+   *          the size of one observation
+   * @throws IllegalArgumentException
+   *           if either argument is not positive
+   */
+  public FrameStack(int frames, int size) throws IllegalArgumentException
+  {
+    if (frames < 1 || size < 1)
+    {
+      throw new IllegalArgumentException("Frames and size must be positive: were " + frames + ", " + size);
+    }
+    this.frames = frames;
+    this.size = size;
+    this.data = new float[2 * frames * size];
+  }
+
+  /**
+   * Fills every slot with the given observation, e.g. at the start of an
+   * episode so the network never sees an empty stack.
+   *
+   * @param obs
+   *          the observation to fill the stack with
+   */
+  public void reset(float[] obs)
+  {
+    for (int i = 0; i < 2 * frames; ++i)
+    {
+      System.arraycopy(obs, 0, data, i * size, size);
+    }
+    oldest = 0;
+  }
+
+  /**
+   * Adds an observation, dropping the oldest one.
+   *
+   * @param obs
+   *          the newest observation; it is copied
+   */
+  public void push(float[] obs)
+  {
+    int slot = oldest;
+    System.arraycopy(obs, 0, data, slot * size, size);
+    System.arraycopy(obs, 0, data, (slot + frames) * size, size);
+    oldest = slot + 1 == frames ? 0 : slot + 1;
+  }
+
+  /**
+   * Returns one value of one stacked observation.
+   *
+   * @param age
+   *          0 for the oldest observation up to {@code frames() - 1} for the
+   *          newest
+   * @param i
+   *          the index within the observation
+   * @return the value
+   */
+  public float get(int age, int i)
+  {
+    return data[(oldest + age) * size + i];
+  }
+
+  /**
+   * Returns the array backing the stack. It is overwritten by
+   * {@link #push(float[])}.
+   *
+   * @return the backing array
+   */
+  public float[] array()
+  {
+    return data;
+  }
+
+  /**
+   * Returns where the stacked observations start in {@link #array()}.
+   *
+   * @return the offset of the oldest observation
+   */
+  public int offset()
+  {
+    return oldest * size;
+  }
+
+  /**
+   * Returns the number of values in the stacked view.
+   *
+   * @return {@code frames() * size}
+   */
+  public int length()
+  {
+    return frames * size;
+  }
+
+  /**
+   * Returns the number of observations kept.
+   *
+   * @return the number of observations
+   */
+  public int frames()
+  {
+    return frames;
+  }
+}
@@ -0,0 +1,110 @@
+package hackisu_s17.env;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+/**
+ * Checks that a {@link FrameStack} keeps its observations oldest first, both
+ * through {@link FrameStack#get(int, int)} and as the contiguous view, while
+ * the ring wraps around.
+ */
+public class FrameStackTest
+{
+  private static float[] obs(float a, float b)
+  {
+    return new float[] { a, b };
+  }
+
+  /**
+   * Returns a copy of the stacked view.
+   *
+   * @param stack
+   *          the stack
+   * @return the {@link FrameStack#length()} values from its offset on
+   */
+  private static float[] view(FrameStack stack)
+  {
+    return Arrays.copyOfRange(stack.array(), stack.offset(), stack.offset() + stack.length());
+  }
+
+  @Test
+  public void resetFillsEverySlot()
+  {
+    FrameStack stack = new FrameStack(3, 2);
+    stack.reset(obs(1, 2));
+
+    assertEquals(6, stack.length());
+    assertArrayEquals(new float[] { 1, 2, 1, 2, 1, 2 }, view(stack), 0);
+  }
+
+  @Test
+  public void keepsOrderAcrossWraparound()
+  {
+    FrameStack stack = new FrameStack(3, 2);
+    stack.reset(obs(0, 0));
+
+    // seven pushes wrap the three slot ring twice
+    for (int n = 1; n <= 7; ++n)
+    {
+      stack.push(obs(n, -n));
+      float[] expected = new float[6];
+      for (int age = 0; age < 3; ++age)
+      {
+        int frame = Math.max(0, n - 2 + age);
+        expected[2 * age] = frame;
+        expected[2 * age + 1] = -frame;
+        assertEquals("push " + n + ", age " + age, frame, stack.get(age, 0), 0);
+        assertEquals("push " + n + ", age " + age, -frame, stack.get(age, 1), 0);
+      }
+      assertArrayEquals("view after push " + n, expected, view(stack), 0);
+    }
+  }
+
+  @Test
+  public void pushCopiesTheObservation()
+  {
+    FrameStack stack = new FrameStack(2, 2);
+    float[] o = obs(1, 1);
+    stack.reset(o);
+    o[0] = 5;
+    stack.push(o);
+    o[0] = 9;
+
+    assertArrayEquals(new float[] { 1, 1, 5, 1 }, view(stack), 0);
+  }
+
+  @Test
+  public void resetAfterPushesStartsOver()
+  {
+    FrameStack stack = new FrameStack(2, 1);
+    stack.reset(new float[] { 0 });
+    stack.push(new float[] { 1 });
+    stack.push(new float[] { 2 });
+    stack.push(new float[] { 3 });
+    stack.reset(new float[] { 4 });
+    stack.push(new float[] { 5 });
+
+    assertArrayEquals(new float[] { 4, 5 }, view(stack), 0);
+  }
+
+  @Test
+  public void singleFrameStackHoldsTheNewest()
+  {
+    FrameStack stack = new FrameStack(1, 2);
+    stack.reset(obs(0, 0));
+    stack.push(obs(1, 2));
+    stack.push(obs(3, 4));
+
+    assertArrayEquals(new float[] { 3, 4 }, view(stack), 0);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void rejectsEmptyStack()
+  {
+    new FrameStack(0, 4);
+  }
+}
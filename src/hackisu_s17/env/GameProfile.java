@@ -0,0 +1,226 @@
+package hackisu_s17.env;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Declares what a game's RAM means to the trainer: where progress is kept,
+ * when a life counts as lost, what to pin every frame, and how to build the
+ * observation. {@link #compile() Compiling} a profile gives a
+ * {@link RamExtractor} that the emulator calls once per frame, so supporting a
+ * new game needs a profile rather than changes to the emulator core.
+ * <p>
+ * Only internal RAM ($0000-$07FF) can be watched or poked.
+ */
+public class GameProfile
+{
+  /**
+   * The size of the console's internal RAM.
+   */
+  static final int RAM_SIZE = 0x800;
+
+  private final String name;
+
+  private ToIntFunction<int[]> progress = (ram) -> 0;
+
+  private Predicate<int[]> death = (ram) -> false;
+
+  private ObservationExtractor observation = (ram, out) -> {};
+
+  private int observationSize;
+
+  /**
+   * RAM writes applied every frame, as address and value pairs.
+   */
+  private int[] pins = new int[0];
+
+  /**
+   * RAM writes applied on the frame a death is detected.
+   */
+  private int[] deathPokes = new int[0];
+
+  /**
+   * RAM writes applied when the score of a life is taken.
+   */
+  private int[] respawnPokes = new int[0];
+
+  /**
+   * Creates an empty profile.
+   *
+   * @param name
+   *          the name of the game
+   */
+  public GameProfile(String name)
+  {
+    this.name = name;
+  }
+
+  /**
+   * Returns the name of the game.
+   *
+   * @return the name of the game
+   */
+  public String getName()
+  {
+    return name;
+  }
+
+  /**
+   * Sets how far the player has gotten; the best value reached is the
+   * episode's fitness.
+   *
+   * @param progress
+   *          decodes the progress from RAM
+   * @return this profile
+   */
+  public GameProfile progress(ToIntFunction<int[]> progress)
+  {
+    this.progress = progress;
+    return this;
+  }
+
+  /**
+   * Sets the condition for a lost life. It is checked before the frame's
+   * pokes are applied.
+   *
+   * @param death
+   *          true when a life has been lost
+   * @return this profile
+   */
+  public GameProfile death(Predicate<int[]> death)
+  {
+    this.death = death;
+    return this;
+  }
+
+  /**
+   * Sets the observation fed to the network.
+   *
+   * @param size
+   *          the number of values in the observation
+   * @param observation
+   *          builds the observation from RAM
+   * @return this profile
+   */
+  public GameProfile observation(int size, ObservationExtractor observation)
+  {
+    this.observationSize = size;
+    this.observation = observation;
+    return this;
+  }
+
+  /**
+   * Writes {@code value} to {@code addr} at the end of every frame, e.g. for
+   * an infinite timer.
+   *
+   * @param addr
+   *          the RAM address
+   * @param value
+   *          the value to hold it at
+   * @return this profile
+   * @throws IllegalArgumentException
+   *           if {@code addr} is not in internal RAM
+   */
+  public GameProfile pin(int addr, int value) throws IllegalArgumentException
+  {
+    pins = append(pins, addr, value);
+    return this;
+  }
+
+  /**
+   * Writes {@code value} to {@code addr} on the frame a death is detected,
+   * e.g. to refill the lives counter.
+   *
+   * @param addr
+   *          the RAM address
+   * @param value
+   *          the value to write
+   * @return this profile
+   * @throws IllegalArgumentException
+   *           if {@code addr} is not in internal RAM
+   */
+  public GameProfile onDeath(int addr, int value) throws IllegalArgumentException
+  {
+    deathPokes = append(deathPokes, addr, value);
+    return this;
+  }
+
+  /**
+   * Writes {@code value} to {@code addr} when the score of a lost life is
+   * taken, e.g. to make the game play out a death it would otherwise skip.
+   *
+   * @param addr
+   *          the RAM address
+   * @param value
+   *          the value to write
+   * @return this profile
+   * @throws IllegalArgumentException
+   *           if {@code addr} is not in internal RAM
+   */
+  public GameProfile onRespawn(int addr, int value) throws IllegalArgumentException
+  {
+    respawnPokes = append(respawnPokes, addr, value);
+    return this;
+  }
+
+  /**
+   * Builds the per-frame extractor for this profile. Later changes to the
+   * profile do not affect extractors already compiled.
+   *
+   * @return a new extractor
+   */
+  public RamExtractor compile()
+  {
+    return new RamExtractor(progress, death, observation, observationSize, pins.clone(), deathPokes.clone(),
+        respawnPokes.clone());
+  }
+
+  /**
+   * Decodes a 16-bit value split over two bytes.
+   *
+   * @param hi
+   *          the address of the high byte
+   * @param lo
+   *          the address of the low byte
+   * @return the decoder
+   */
+  public static ToIntFunction<int[]> word(int hi, int lo)
+  {
+    checkAddr(hi);
+    checkAddr(lo);
+    return (ram) -> ram[hi] * 0x100 + ram[lo];
+  }
+
+  /**
+   * True when the byte at {@code addr} is below {@code value}.
+   *
+   * @param addr
+   *          the RAM address
+   * @param value
+   *          the exclusive bound
+   * @return the condition
+   */
+  public static Predicate<int[]> below(int addr, int value)
+  {
+    checkAddr(addr);
+    return (ram) -> ram[addr] < value;
+  }
+
+  private static int[] append(int[] pokes, int addr, int value)
+  {
+    checkAddr(addr);
+    int[] result = Arrays.copyOf(pokes, pokes.length + 2);
+    result[pokes.length] = addr;
+    result[pokes.length + 1] = value & 0xff;
+    return result;
+  }
+
+  private static void checkAddr(int addr) throws IllegalArgumentException
+  {
+    if (addr < 0 || addr >= RAM_SIZE)
+    {
+      throw new IllegalArgumentException("Not an internal RAM address: " + Integer.toHexString(addr));
+    }
+  }
+}
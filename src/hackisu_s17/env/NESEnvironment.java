@@ -0,0 +1,443 @@
+package hackisu_s17.env;
+
+import com.grapeshot.halfnes.ui.HeadlessUI;
+import com.grapeshot.halfnes.ui.PuppetController;
+import com.grapeshot.halfnes.ui.PuppetController.Button;
+import com.grapeshot.halfnes.video.PixelObservation;
+
+import hackisu_s17.neur.NeuralNet;
+
+/**
+ * A headless emulator wrapped up as an agent environment. Each
+ * {@link #step(float...) step} holds the chosen buttons for
+ * {@link #getActionRepeat() actionRepeat} frames, and only builds the
+ * observation once at the end of those frames, so the neural network and the
+ * observation extraction run once per step instead of once per frame.
+ * <p>
+ * What the game's RAM means (progress, deaths, the observation) comes from a
+ * {@link GameProfile}; {@link SuperMarioBros} is used if none is given. The
+ * observation can instead be taken from the screen with
+ * {@link #setPixelObservation(PixelObservation)}, and the last few
+ * observations can be stacked for the network with
+ * {@link #setStackedFrames(int)}.
+ */
+public class NESEnvironment
+{
+  /**
+   * The buttons the network outputs map to, in output order.
+   */
+  public static final Button[] ACTIONS =
+  { Button.UP, Button.RIGHT, Button.DOWN, Button.A, Button.B };
+
+  /**
+   * The emulator being stepped.
+   */
+  private final HeadlessUI ui;
+
+  /**
+   * Watches the game's RAM every frame and builds observations.
+   */
+  private final RamExtractor extractor;
+
+  /**
+   * Builds observations from the screen instead of the profile, or null.
+   */
+  private PixelObservation pixels;
+
+  /**
+   * The observation returned by {@link #observe()} and {@link #step(float...)},
+   * reused between calls.
+   */
+  private float[] obs;
+
+  /**
+   * The observation of the second-to-last frame of a step when max-pooling.
+   */
+  private float[] pooled;
+
+  /**
+   * The number of frames each chosen action is held for.
+   */
+  private int actionRepeat;
+
+  /**
+   * If true, the observation is pooled element-wise over the last two frames
+   * of a step, to smooth over sprite flicker. See {@link #pool()}.
+   */
+  private boolean maxPool;
+
+  /**
+   * The last few observations fed to the network, or null to feed only the
+   * newest one.
+   */
+  private FrameStack stack;
+
+  /**
+   * The buttons currently held on controller 1, indexed like {@link #ACTIONS}.
+   */
+  private final boolean[] held = new boolean[ACTIONS.length];
+
+  /**
+   * The number of frames emulated since this environment was created.
+   */
+  private long frames;
+
+  /**
+   * Creates an environment running Super Mario Bros. from the given ROM.
+   *
+   * @param romPath
+   *          the ROM to load
+   * @param actionRepeat
+   *          the number of frames each action is held for
+   * @param maxPool
+   *          whether to max-pool the observations of the last two frames of
+   *          each step
+   * @throws IllegalArgumentException
+   *           if {@code actionRepeat < 1}
+   */
+  public NESEnvironment(String romPath, int actionRepeat, boolean maxPool) throws IllegalArgumentException
+  {
+    this(romPath, SuperMarioBros.profile(), actionRepeat, maxPool);
+  }
+
+  /**
+   * Creates an environment running the given ROM.
+   *
+   * @param romPath
+   *          the ROM to load
+   * @param profile
+   *          describes the game's RAM
+   * @param actionRepeat
+   *          the number of frames each action is held for
+   * @param maxPool
+   *          whether to max-pool the observations of the last two frames of
+   *          each step
+   * @throws IllegalArgumentException
+   *           if {@code actionRepeat < 1}
+   */
+  public NESEnvironment(String romPath, GameProfile profile, int actionRepeat, boolean maxPool)
+      throws IllegalArgumentException
+  {
+    this.extractor = profile.compile();
+    setPixelObservation(null);
+    this.ui = new HeadlessUI(romPath, false);
+    ui.getNes().setRAMWatch(extractor);
+    setActionRepeat(actionRepeat);
+    this.maxPool = maxPool;
+  }
+
+  /**
+   * Sets the number of frames each action is held for.
+   *
+   * @param actionRepeat
+   *          the number of frames each action is held for
+   * @throws IllegalArgumentException
+   *           if {@code actionRepeat < 1}
+   */
+  public void setActionRepeat(int actionRepeat) throws IllegalArgumentException
+  {
+    if (actionRepeat < 1)
+    {
+      throw new IllegalArgumentException("Action repeat must be positive: was " + actionRepeat);
+    }
+    this.actionRepeat = actionRepeat;
+  }
+
+  /**
+   * Returns the number of frames each action is held for.
+   *
+   * @return the number of frames each action is held for
+   */
+  public int getActionRepeat()
+  {
+    return actionRepeat;
+  }
+
+  /**
+   * Sets whether the observation is max-pooled over the last two frames of
+   * each step. Has no effect if the action repeat is 1.
+   *
+   * @param maxPool
+   *          whether to max-pool observations
+   */
+  public void setMaxPool(boolean maxPool)
+  {
+    this.maxPool = maxPool;
+  }
+
+  /**
+   * Takes observations from the screen rather than from the game profile, or
+   * goes back to the profile's observation if {@code pixels} is null. Pixel
+   * observations are built from the PPU's palette indexes once per step,
+   * without rendering the frame. The frames observed are drawn even if
+   * {@link com.grapeshot.halfnes.NES#setRenderEvery(int) render skipping}
+   * would skip them.
+   *
+   * @param pixels
+   *          the crop, size and color conversion of the observation
+   */
+  public void setPixelObservation(PixelObservation pixels)
+  {
+    this.pixels = pixels;
+    int size = null == pixels ? extractor.getObservationSize() : pixels.size();
+    this.obs = new float[size];
+    this.pooled = new float[size];
+    if (null != stack)
+    {
+      setStackedFrames(stack.frames());
+    }
+  }
+
+  /**
+   * Feeds the network the last {@code frames} observations, oldest first,
+   * instead of just the newest one. Networks must then have
+   * {@code frames * getObservationSize()} inputs.
+   *
+   * @param frames
+   *          the number of observations stacked; 1 turns stacking off
+   * @throws IllegalArgumentException
+   *           if {@code frames < 1}
+   */
+  public void setStackedFrames(int frames) throws IllegalArgumentException
+  {
+    if (frames < 1)
+    {
+      throw new IllegalArgumentException("Stacked frames must be positive: was " + frames);
+    }
+    this.stack = frames == 1 ? null : new FrameStack(frames, obs.length);
+  }
+
+  /**
+   * Returns the stacked observations, or null if stacking is off.
+   *
+   * @return the frame stack
+   */
+  public FrameStack getFrameStack()
+  {
+    return stack;
+  }
+
+  /**
+   * Returns the number of values in an observation.
+   *
+   * @return the observation size
+   */
+  public int getObservationSize()
+  {
+    return obs.length;
+  }
+
+  /**
+   * Returns the emulator this environment steps.
+   *
+   * @return the underlying headless emulator
+   */
+  public HeadlessUI getUI()
+  {
+    return ui;
+  }
+
+  /**
+   * Returns the number of frames emulated so far.
+   *
+   * @return the number of frames emulated
+   */
+  public long getFrameCount()
+  {
+    return frames;
+  }
+
+  /**
+   * Returns true if the agent lost a life since the last call to
+   * {@link #takeScore()}.
+   *
+   * @return true if the agent died
+   */
+  public boolean isDead()
+  {
+    return extractor.isDead();
+  }
+
+  /**
+   * Returns the score of the last life and resets the death flag for the next
+   * one.
+   *
+   * @return the score reached before dying
+   */
+  public int takeScore()
+  {
+    return extractor.takeScore();
+  }
+
+  /**
+   * Builds the observation for the current frame without advancing the
+   * emulator. The returned array is overwritten by the next call to this
+   * method or {@link #step(float...)}.
+   *
+   * @return the current observation
+   */
+  public float[] observe()
+  {
+    return observe(obs);
+  }
+
+  /**
+   * Holds the buttons given by {@code outputs} for {@link #getActionRepeat()}
+   * frames, then returns the resulting observation. An output above 0.5
+   * presses the button of the same index in {@link #ACTIONS}.
+   *
+   * @param outputs
+   *          the network outputs, one per entry of {@link #ACTIONS}
+   * @return the observation after the last frame of the step, overwritten by
+   *         the next step
+   * @throws IllegalArgumentException
+   *           if the number of outputs does not match {@link #ACTIONS}
+   */
+  public float[] step(float... outputs) throws IllegalArgumentException
+  {
+    if (outputs.length != ACTIONS.length)
+    {
+      throw new IllegalArgumentException("Requires " + ACTIONS.length + " outputs: was " + outputs.length);
+    }
+
+    setButtons(outputs);
+
+    boolean pool = false;
+    for (int i = 0; i < actionRepeat; ++i)
+    {
+      if (null != pixels && (i == actionRepeat - 1 || (maxPool && i == actionRepeat - 2)))
+      {
+        // the frames observed have to be drawn even when render skipping
+        ui.getNes().drawNextFrame();
+      }
+      ui.runFrame();
+      ++frames;
+
+      if (maxPool && i == actionRepeat - 2)
+      {
+        observe(pooled);
+        pool = true;
+      }
+    }
+
+    observe();
+    if (pool)
+    {
+      pool();
+    }
+
+    return obs;
+  }
+
+  /**
+   * Merges the pooled observation into the current one. Pixel values are
+   * brightness, so the larger one wins. RAM observations mark things like
+   * enemies with negative values, so there the value furthest from 0 wins,
+   * and something seen in either frame stays in the observation.
+   */
+  private void pool()
+  {
+    if (null != pixels)
+    {
+      for (int i = 0; i < obs.length; ++i)
+      {
+        obs[i] = Math.max(obs[i], pooled[i]);
+      }
+    }
+    else
+    {
+      for (int i = 0; i < obs.length; ++i)
+      {
+        if (Math.abs(pooled[i]) > Math.abs(obs[i]))
+        {
+          obs[i] = pooled[i];
+        }
+      }
+    }
+  }
+
+  /**
+   * Lets the given network play until it loses a life.
+   *
+   * @param net
+   *          the network choosing the buttons
+   * @return the best progress reached before dying
+   */
+  public int runEpisode(NeuralNet net)
+  {
+    return runEpisode(net, TerminationPolicy.deathCount(1)).getFitness();
+  }
+
+  /**
+   * Lets the given network play until {@code policy} ends the episode. Lost
+   * lives are counted and play continues, so policies decide how many deaths
+   * an episode may take.
+   *
+   * @param net
+   *          the network choosing the buttons
+   * @param policy
+   *          decides when the episode is over; see
+   *          {@link TerminationPolicy#anyOf(TerminationPolicy...) anyOf()} to
+   *          combine several
+   * @return the statistics of the finished episode
+   */
+  public EpisodeStats runEpisode(NeuralNet net, TerminationPolicy policy)
+  {
+    EpisodeStats stats = new EpisodeStats();
+    float[] input = observe();
+    if (null != stack)
+    {
+      stack.reset(input);
+    }
+    do
+    {
+      if (null == stack)
+      {
+        input = step(net.calculate(input));
+      }
+      else
+      {
+        stack.push(step(net.calculate(stack.array(), stack.offset())));
+      }
+
+      boolean died = isDead();
+      if (died)
+      {
+        takeScore();
+      }
+      stats.update(actionRepeat, extractor.getProgress(), died);
+    }
+    while (!policy.shouldTerminate(stats));
+
+    return stats;
+  }
+
+  private float[] observe(float[] out)
+  {
+    return null == pixels ? extractor.observe(out) : ui.getPixels(pixels, out);
+  }
+
+  /**
+   * Presses or releases the buttons whose state changed since the last step.
+   */
+  private void setButtons(float[] outputs)
+  {
+    PuppetController pad = ui.getController1();
+    for (int i = 0; i < ACTIONS.length; ++i)
+    {
+      boolean press = outputs[i] > 0.5f;
+      if (held[i] != press)
+      {
+        held[i] = press;
+        if (press)
+        {
+          pad.pressButton(ACTIONS[i]);
+        }
+        else
+        {
+          pad.releaseButton(ACTIONS[i]);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package hackisu_s17.env;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.testng.annotations.Test;
+
+import com.grapeshot.halfnes.ui.HeadlessUI;
+import com.grapeshot.halfnes.video.PixelObservation;
+
+/**
+ * Checks that pixel observations show the frame they were taken on when the
+ * emulator is skipping frames it does not draw.
+ */
+public class NESEnvironmentTest
+{
+  /**
+   * Network outputs that press nothing.
+   */
+  private static final float[] NOTHING = new float[NESEnvironment.ACTIONS.length];
+
+  @Test
+  public void pixelsWithRenderSkipMatchEveryFrameDrawn() throws IOException
+  {
+    File rom = paletteCycleROM();
+    try
+    {
+      for (boolean maxPool : new boolean[] { false, true })
+      {
+        NESEnvironment drawn = environment(rom, maxPool, 1);
+        NESEnvironment skipped = environment(rom, maxPool, 0);
+        float[] previous = null;
+        boolean changed = false;
+        for (int step = 0; step < 20; ++step)
+        {
+          float[] expected = drawn.step(NOTHING).clone();
+          assertArrayEquals("step " + step + (maxPool ? " with pooling" : ""), expected, skipped.step(NOTHING),
+              0);
+          changed |= null != previous && expected[0] != previous[0];
+          previous = expected;
+        }
+        assertTrue("the picture never changed, so this proves nothing", changed);
+      }
+    }
+    finally
+    {
+      rom.delete();
+    }
+  }
+
+  @Test
+  public void skippedFrameIsNotObserved() throws IOException
+  {
+    File rom = paletteCycleROM();
+    try
+    {
+      HeadlessUI ui = new HeadlessUI(rom.getPath(), false);
+      PixelObservation obs = new PixelObservation(4, 4);
+      float[] out = new float[obs.size()];
+      ui.runFrame();
+      ui.getPixels(obs, out);
+
+      ui.getNes().setRenderEvery(0);
+      ui.runFrame();
+      boolean thrown = false;
+      try
+      {
+        ui.getPixels(obs, out);
+      }
+      catch (IllegalStateException e)
+      {
+        thrown = true;
+      }
+      assertTrue("pixels of a skipped frame were handed out", thrown);
+
+      ui.getNes().drawNextFrame();
+      ui.runFrame();
+      assertTrue(ui.getNes().frameDrawn());
+      ui.getPixels(obs, out);
+      ui.runFrame();
+      assertFalse("drawNextFrame() only draws one frame", ui.getNes().frameDrawn());
+    }
+    finally
+    {
+      rom.delete();
+    }
+  }
+
+  private static NESEnvironment environment(File rom, boolean maxPool, int renderEvery)
+  {
+    GameProfile profile = new GameProfile("palette cycle").observation(1, (ram, out) -> out[0] = ram[0x10]);
+    NESEnvironment env = new NESEnvironment(rom.getPath(), profile, 3, maxPool);
+    env.setPixelObservation(new PixelObservation(8, 8));
+    env.getUI().getNes().setRenderEvery(renderEvery);
+    return env;
+  }
+
+  /**
+   * Writes out an NROM image with rendering off whose NMI handler sets the
+   * backdrop color to the frame count, so every frame looks different.
+   *
+   * @return the image file
+   * @throws IOException
+   *           if it cannot be written
+   */
+  private static File paletteCycleROM() throws IOException
+  {
+    int[] code =
+    { 0x78, // SEI
+        0xd8, // CLD
+        0xa2, 0xff, // LDX #$FF
+        0x9a, // TXS
+        0x2c, 0x02, 0x20, // $C005: BIT $2002
+        0x10, 0xfb, // BPL $C005
+        0xa9, 0x80, // LDA #$80
+        0x8d, 0x00, 0x20, // STA $2000
+        0x4c, 0x0f, 0xc0, // $C00F: JMP $C00F
+        // NMI at $C012
+        0xe6, 0x10, // INC $10
+        0xa9, 0x3f, // LDA #$3F
+        0x8d, 0x06, 0x20, // STA $2006
+        0xa9, 0x00, // LDA #$00
+        0x8d, 0x06, 0x20, // STA $2006
+        0xa5, 0x10, // LDA $10
+        0x29, 0x3f, // AND #$3F
+        0x8d, 0x07, 0x20, // STA $2007
+        0xa9, 0x00, // LDA #$00, so the PPU address leaves the palette
+        0x8d, 0x06, 0x20, // STA $2006
+        0x8d, 0x06, 0x20, // STA $2006
+        0x40 // RTI, also the IRQ handler at $C02D
+    };
+    byte[] image = new byte[16 + 0x4000 + 0x2000];
+    image[0] = 'N';
+    image[1] = 'E';
+    image[2] = 'S';
+    image[3] = 0x1a;
+    image[4] = 1; // 16K PRG
+    image[5] = 1; // 8K CHR
+    for (int i = 0; i < code.length; ++i)
+    {
+      image[16 + i] = (byte) code[i];
+    }
+    // NMI, reset and IRQ vectors
+    int[] vectors =
+    { 0x12, 0xc0, 0x00, 0xc0, 0x2d, 0xc0 };
+    for (int i = 0; i < vectors.length; ++i)
+    {
+      image[16 + 0x3ffa + i] = (byte) vectors[i];
+    }
+    File rom = File.createTempFile("palettecycle", ".nes");
+    try (FileOutputStream out = new FileOutputStream(rom))
+    {
+      out.write(image);
+    }
+    return rom;
+  }
+}
@@ -0,0 +1,19 @@
+package hackisu_s17.env;
+
+/**
+ * Builds a network input from a snapshot of the console's internal RAM.
+ */
+@FunctionalInterface
+public interface ObservationExtractor
+{
+  /**
+   * Fills {@code out} with the observation for the current frame. Every entry
+   * must be written, since {@code out} is reused between frames.
+   *
+   * @param ram
+   *          the 2K of internal RAM, indexed by address
+   * @param out
+   *          the array to write the observation into
+   */
+  void extract(int[] ram, float[] out);
+}
@@ -0,0 +1,139 @@
+package hackisu_s17.env;
+
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+import com.grapeshot.halfnes.RAMWatch;
+
+/**
+ * A compiled {@link GameProfile}. Installed on the emulator with
+ * {@link com.grapeshot.halfnes.NES#setRAMWatch(RAMWatch) setRAMWatch()}, it
+ * checks for death and applies the profile's pins once per frame, reading and
+ * writing internal RAM directly. Observations are only built when asked for.
+ */
+public class RamExtractor implements RAMWatch
+{
+  private final ToIntFunction<int[]> progress;
+
+  private final Predicate<int[]> death;
+
+  private final ObservationExtractor observation;
+
+  private final int observationSize;
+
+  private final int[] pins;
+
+  private final int[] deathPokes;
+
+  private final int[] respawnPokes;
+
+  /**
+   * The RAM seen on the last frame, or null before the first frame.
+   */
+  private int[] ram;
+
+  private boolean dead;
+
+  /**
+   * The progress on the frame the last life was lost.
+   */
+  private int score;
+
+  RamExtractor(ToIntFunction<int[]> progress, Predicate<int[]> death, ObservationExtractor observation,
+      int observationSize, int[] pins, int[] deathPokes, int[] respawnPokes)
+  {
+    this.progress = progress;
+    this.death = death;
+    this.observation = observation;
+    this.observationSize = observationSize;
+    this.pins = pins;
+    this.deathPokes = deathPokes;
+    this.respawnPokes = respawnPokes;
+  }
+
+  @Override
+  public void frameDone(int[] wram)
+  {
+    ram = wram;
+    if (death.test(wram))
+    {
+      score = progress.applyAsInt(wram);
+      dead = true;
+      poke(wram, deathPokes);
+    }
+    poke(wram, pins);
+  }
+
+  /**
+   * Returns true if a life was lost since the last call to
+   * {@link #takeScore()}.
+   *
+   * @return true if the player died
+   */
+  public boolean isDead()
+  {
+    return dead;
+  }
+
+  /**
+   * Returns the progress at the last death, clears the death flag and applies
+   * the profile's respawn pokes.
+   *
+   * @return the score of the lost life
+   */
+  public int takeScore()
+  {
+    int temp = score;
+    score = 0;
+    dead = false;
+    if (null != ram)
+    {
+      poke(ram, respawnPokes);
+    }
+    return temp;
+  }
+
+  /**
+   * Returns the player's current progress.
+   *
+   * @return the progress on the last frame, or 0 before the first frame
+   */
+  public int getProgress()
+  {
+    return null == ram ? 0 : progress.applyAsInt(ram);
+  }
+
+  /**
+   * Returns the number of values in an observation.
+   *
+   * @return the observation size
+   */
+  public int getObservationSize()
+  {
+    return observationSize;
+  }
+
+  /**
+   * Builds the observation for the last frame into {@code out}.
+   *
+   * @param out
+   *          an array of at least {@link #getObservationSize()} values
+   * @return {@code out}
+   */
+  public float[] observe(float[] out)
+  {
+    if (null != ram)
+    {
+      observation.extract(ram, out);
+    }
+    return out;
+  }
+
+  private static void poke(int[] ram, int[] pokes)
+  {
+    for (int i = 0; i < pokes.length; i += 2)
+    {
+      ram[pokes[i]] = pokes[i + 1];
+    }
+  }
+}
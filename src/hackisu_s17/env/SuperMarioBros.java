@@ -0,0 +1,111 @@
+package hackisu_s17.env;
+
+/**
+ * The {@link GameProfile} for Super Mario Bros.: progress is how far right
+ * Mario has gotten, lives and the timer are pinned, and the observation is
+ * the 8x8 block of level tiles in front of Mario with enemies marked as -1.
+ */
+public final class SuperMarioBros
+{
+  /**
+   * The number of values in an observation.
+   */
+  public static final int OBSERVATION_SIZE = 64;
+
+  /**
+   * The two 16x13 pages of level tiles the game keeps in RAM.
+   */
+  private static final int PAGE_0 = 0x0500, PAGE_1 = 0x05d0, PAGE_ROWS = 13;
+
+  /**
+   * The page and position of Mario within the page.
+   */
+  private static final int PLAYER_PAGE = 0x6D, PLAYER_X = 0x86, PLAYER_Y = 0x00ce;
+
+  /**
+   * Mario's and the enemies' on-screen positions; enemy i is at
+   * {@code ENEMY_POS + 4 * i} if its flag at {@code ENEMY_FLAGS + i} is 1.
+   */
+  private static final int PLAYER_SCREEN_POS = 0x04ac, ENEMY_POS = 0x04b0, ENEMY_FLAGS = 0x000f, ENEMIES = 5;
+
+  private SuperMarioBros()
+  {
+  }
+
+  /**
+   * Returns a new profile for Super Mario Bros.
+   *
+   * @return the profile
+   */
+  public static GameProfile profile()
+  {
+    return new GameProfile("Super Mario Bros.")
+        .progress(GameProfile.word(PLAYER_PAGE, PLAYER_X))
+        // infinite lives: a death shows up as the lives counter dropping
+        .death(GameProfile.below(0x075a, 2))
+        .onDeath(0x075a, 2)
+        // infinite time
+        .pin(0x07f8, 0)
+        .pin(0x07f9, 7)
+        .pin(0x07fa, 0)
+        // $000E is the player's engine state and $0B its dying routine: the
+        // lives hack above swallows the real death, so when a lost life is
+        // scored this kills the player outright (as the old titanic() hack
+        // did) and lets the game restart them the way it normally would
+        .onRespawn(0x000e, 0x0b)
+        .observation(OBSERVATION_SIZE, SuperMarioBros::observe);
+  }
+
+  private static void observe(int[] ram, float[] out)
+  {
+    int marioX = ram[PLAYER_PAGE] * 0x100 + ram[PLAYER_X];
+    int page = (marioX / 256) % 2;
+    int x = (int) Math.round((marioX % 256) / 16.0);
+    int y = ram[PLAYER_Y] / 16;
+    for (int l = 0; l < 8; ++l)
+    {
+      for (int m = 0; m < 8; ++m)
+      {
+        int row = y + m - 4;
+        int col = x + l;
+        float value;
+        if (row < 0 || row > 15 || col < 0 || col > 15)
+        {
+          // off the edge of this page, so look at the next one
+          int wrapRow = row < 0 ? 0 : row > 15 ? row - 15 : row;
+          int wrapCol = col < 0 ? 0 : col > 15 ? col - 15 : col;
+          value = page == 0 ? solid(ram, PAGE_1, wrapRow, wrapCol) : 0;
+        }
+        else
+        {
+          value = solid(ram, page == 0 ? PAGE_0 : PAGE_1, row, col);
+        }
+        out[l * 8 + m] = value;
+      }
+    }
+
+    // enemies, relative to Mario
+    int screenX = ram[PLAYER_SCREEN_POS];
+    int screenY = ram[PLAYER_SCREEN_POS + 1];
+    for (int i = 0; i < ENEMIES; ++i)
+    {
+      if (ram[ENEMY_FLAGS + i] == 1)
+      {
+        int dx = ram[ENEMY_POS + 4 * i] - screenX;
+        int dy = ram[ENEMY_POS + 4 * i + 1] - screenY;
+        if (dx > 0 && dx < 8 * 16 && dy > 0 && dy < 5 * 16)
+        {
+          out[(dx / 16) * 8 + dy / 16 + 3] = -1f;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns 1 if the tile at the given row and column of a page is not empty.
+   */
+  private static float solid(int[] ram, int page, int row, int col)
+  {
+    return row < PAGE_ROWS && ram[page + row * 16 + col] != 0 ? 1 : 0;
+  }
+}
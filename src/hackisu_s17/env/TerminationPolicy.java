@@ -0,0 +1,98 @@
+package hackisu_s17.env;
+
+import java.util.function.IntSupplier;
+
+/**
+ * Decides when an evaluation episode is over. Policies are checked after every
+ * environment step; the episode ends as soon as one of them returns
+ * {@code true}.
+ */
+@FunctionalInterface
+public interface TerminationPolicy
+{
+  /**
+   * Returns true if the episode described by {@code stats} should stop.
+   *
+   * @param stats
+   *          the statistics of the running episode
+   * @return true if the episode is over
+   */
+  boolean shouldTerminate(EpisodeStats stats);
+
+  /**
+   * Ends the episode once the fitness has not increased for the given number
+   * of frames.
+   *
+   * @param frames
+   *          the number of frames without forward progress allowed
+   * @return the policy
+   */
+  static TerminationPolicy noProgress(long frames)
+  {
+    return (s) -> s.getFramesSinceProgress() >= frames;
+  }
+
+  /**
+   * Ends the episode once the given number of frames has been emulated.
+   *
+   * @param frames
+   *          the frame budget of the episode
+   * @return the policy
+   */
+  static TerminationPolicy frameBudget(long frames)
+  {
+    return (s) -> s.getFrames() >= frames;
+  }
+
+  /**
+   * Ends the episode once the given number of lives has been lost.
+   *
+   * @param deaths
+   *          the number of deaths allowed
+   * @return the policy
+   */
+  static TerminationPolicy deathCount(int deaths)
+  {
+    return (s) -> s.getDeaths() >= deaths;
+  }
+
+  /**
+   * Ends the episode once it can no longer beat the best fitness seen so far,
+   * assuming the fitness rises by at most {@code maxGainPerFrame} on each of
+   * the frames left in {@code frameBudget}.
+   *
+   * @param best
+   *          supplies the best fitness of the generation so far
+   * @param maxGainPerFrame
+   *          the largest possible fitness increase per frame
+   * @param frameBudget
+   *          the frame budget of the episode
+   * @return the policy
+   */
+  static TerminationPolicy fitnessBound(IntSupplier best, int maxGainPerFrame, long frameBudget)
+  {
+    return (s) -> s.getFitness() + maxGainPerFrame * Math.max(0, frameBudget - s.getFrames()) <= best.getAsInt();
+  }
+
+  /**
+   * Combines the given policies; the episode ends when any of them says so.
+   *
+   * @param policies
+   *          the policies to combine
+   * @return the combined policy
+   */
+  static TerminationPolicy anyOf(TerminationPolicy... policies)
+  {
+    return (s) ->
+    {
+      for (TerminationPolicy p : policies)
+      {
+        if (p.shouldTerminate(s))
+        {
+          return true;
+        }
+      }
+      return false;
+    };
+  }
+}
@@ -0,0 +1,124 @@
+package hackisu_s17.env;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+/**
+ * Feeds {@link EpisodeStats} step by step and checks when each
+ * {@link TerminationPolicy} fires.
+ */
+public class TerminationPolicyTest
+{
+  @Test
+  public void noProgressFiresAfterStalledFrames()
+  {
+    TerminationPolicy policy = TerminationPolicy.noProgress(10);
+    EpisodeStats stats = new EpisodeStats();
+
+    stats.update(4, 100, false);
+    assertFalse(policy.shouldTerminate(stats));
+    // progress stays at 100 from here on
+    for (int i = 0; i < 9; ++i)
+    {
+      stats.update(1, 100, false);
+      assertFalse("fired after " + (i + 1) + " unchanged frames", policy.shouldTerminate(stats));
+    }
+    stats.update(1, 100, false);
+    assertEquals(10, stats.getFramesSinceProgress());
+    assertTrue(policy.shouldTerminate(stats));
+  }
+
+  @Test
+  public void noProgressIgnoresGoingBackwards()
+  {
+    TerminationPolicy policy = TerminationPolicy.noProgress(6);
+    EpisodeStats stats = new EpisodeStats();
+
+    stats.update(2, 50, false);
+    stats.update(3, 40, false);
+    assertFalse(policy.shouldTerminate(stats));
+    stats.update(3, 49, false);
+    assertTrue("moving back does not count as progress", policy.shouldTerminate(stats));
+  }
+
+  @Test
+  public void noProgressRestartsOnProgress()
+  {
+    TerminationPolicy policy = TerminationPolicy.noProgress(5);
+    EpisodeStats stats = new EpisodeStats();
+
+    stats.update(4, 10, false);
+    stats.update(4, 10, false);
+    assertFalse(policy.shouldTerminate(stats));
+    stats.update(1, 11, false);
+    assertEquals(0, stats.getFramesSinceProgress());
+    stats.update(4, 11, false);
+    assertFalse(policy.shouldTerminate(stats));
+    stats.update(1, 11, false);
+    assertTrue(policy.shouldTerminate(stats));
+  }
+
+  @Test
+  public void frameBudgetCountsEveryFrameOfAStep()
+  {
+    TerminationPolicy policy = TerminationPolicy.frameBudget(12);
+    EpisodeStats stats = new EpisodeStats();
+
+    stats.update(4, 1, false);
+    stats.update(4, 2, false);
+    assertFalse(policy.shouldTerminate(stats));
+    stats.update(4, 3, false);
+    assertTrue(policy.shouldTerminate(stats));
+  }
+
+  @Test
+  public void deathCountFiresOnTheLastLife()
+  {
+    TerminationPolicy policy = TerminationPolicy.deathCount(2);
+    EpisodeStats stats = new EpisodeStats();
+
+    stats.update(1, 0, true);
+    assertFalse(policy.shouldTerminate(stats));
+    stats.update(1, 0, false);
+    assertFalse(policy.shouldTerminate(stats));
+    stats.update(1, 0, true);
+    assertTrue(policy.shouldTerminate(stats));
+  }
+
+  @Test
+  public void fitnessBoundFiresWhenTheBestIsOutOfReach()
+  {
+    int[] best = { 100 };
+    TerminationPolicy policy = TerminationPolicy.fitnessBound(() -> best[0], 2, 50);
+    EpisodeStats stats = new EpisodeStats();
+
+    // 10 frames in at 20: can still reach 20 + 2 * 40 = 100, which only ties
+    stats.update(10, 20, false);
+    assertTrue(policy.shouldTerminate(stats));
+    best[0] = 99;
+    assertFalse("reads the best fitness on every check", policy.shouldTerminate(stats));
+    // at the end of the budget only the fitness itself counts
+    stats.update(40, 99, false);
+    assertTrue(policy.shouldTerminate(stats));
+    best[0] = 98;
+    assertFalse(policy.shouldTerminate(stats));
+  }
+
+  @Test
+  public void anyOfFiresOnTheFirstPolicyThatDoes()
+  {
+    TerminationPolicy policy = TerminationPolicy.anyOf(TerminationPolicy.frameBudget(100),
+        TerminationPolicy.noProgress(3));
+    EpisodeStats stats = new EpisodeStats();
+
+    stats.update(1, 1, false);
+    stats.update(2, 1, false);
+    assertFalse(policy.shouldTerminate(stats));
+    stats.update(1, 1, false);
+    assertTrue(policy.shouldTerminate(stats));
+    assertFalse(TerminationPolicy.anyOf().shouldTerminate(stats));
+  }
+}
@@ -124,6 +124,34 @@ public class NeuralNet
   {
     layers[0].setInputs(inputs);
 
+    return propagate();
+  }
+
+  /**
+   * Calculates the output of this neural network using the inputs stored in
+   * {@code inputs} starting at {@code offset}, e.g. a window of a larger
+   * buffer such as a {@link hackisu_s17.env.FrameStack}.
+   * 
+   * @param inputs
+   *          the array holding the input values
+   * @param offset
+   *          the index of the first input value
+   * @return the resulting output of the neural network on the given inputs
+   * @throws IllegalArgumentException
+   *           if {@code inputs} holds too few values after {@code offset}
+   */
+  public float[] calculate(float[] inputs, int offset) throws IllegalArgumentException
+  {
+    layers[0].setInputs(inputs, offset);
+
+    return propagate();
+  }
+
+  /**
+   * Runs the inputs already set on the input layer through the network.
+   */
+  private float[] propagate()
+  {
     float[] tmp = new float[0];
 
     for (int i = 0; i < layers.length; ++i)
@@ -269,6 +297,23 @@ public class NeuralNet
       }
     }
 
+    public void setInputs(float[] inputs, int offset)
+    {
+      if (!isInputLayer())
+      {
+        throw new IllegalStateException("Not an input layer");
+      }
+      if (offset < 0 || inputs.length - offset < neurons.length)
+      {
+        throw new IllegalArgumentException("Requires " + neurons.length + " inputs after offset " + offset);
+      }
+
+      for (int i = 0; i < neurons.length; ++i)
+      {
+        ((Neuron.InputNeuron) neurons[i]).set(inputs[offset + i]);
+      }
+    }
+
     public float[] calculate(float... inputs)
     {
       float[] result = new float[neurons.length];